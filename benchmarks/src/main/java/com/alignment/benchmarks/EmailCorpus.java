@@ -0,0 +1,71 @@
+package com.alignment.benchmarks;
+
+import java.util.Random;
+
+/**
+ * Generates marketing email HTML of a requested size. The documents follow
+ * the shape of the emails we send: a head with inline styles, nested layout
+ * tables, paragraphs of copy and a tracked link every few paragraphs. The
+ * output is deterministic for a given size so runs can be compared.
+ */
+final class EmailCorpus {
+
+	/**
+	 * Sizes of the generated documents in bytes, from a plain text style
+	 * notice up to a heavy newsletter.
+	 */
+	static final String SMALL = "2048";
+
+	static final String MEDIUM = "20480";
+
+	static final String LARGE = "102400";
+
+	static final String HUGE = "512000";
+
+	private static final String[] WORDS = { "offer", "your", "account",
+			"spring", "collection", "free", "shipping", "today", "only",
+			"members", "save", "on", "the", "new", "season", "and", "discover",
+			"more", "styles", "for", "every", "occasion" };
+
+	private EmailCorpus() {
+	}
+
+	/**
+	 * Generate an email of at least the provided number of bytes.
+	 */
+	static String email(int bytes) {
+		Random random = new Random(bytes);
+		StringBuilder html = new StringBuilder(bytes + 1024);
+		html.append("<html><head><title>Newsletter</title>")
+				.append("<style>td{font-family:Arial;font-size:14px}</style>")
+				.append("</head><body>")
+				.append("<table width=\"600\" align=\"center\">");
+		int row = 0;
+		while (html.length() < bytes) {
+			html.append("<tr><td class=\"row").append(row).append("\">")
+					.append("<h2>").append(sentence(random, 5)).append("</h2>");
+			for (int i = 0; i < 3; i++) {
+				html.append("<p>").append(sentence(random, 30)).append("</p>");
+			}
+			html.append("<p><a href=\"http://www.example.com/alignment/")
+					.append(Integer.toString(row, 36))
+					.append("\" style=\"color:#0066cc\">")
+					.append(sentence(random, 3)).append("</a></p>")
+					.append("</td></tr>");
+			row++;
+		}
+		html.append("</table></body></html>");
+		return html.toString();
+	}
+
+	private static String sentence(Random random, int words) {
+		StringBuilder sentence = new StringBuilder();
+		for (int i = 0; i < words; i++) {
+			if (i > 0) {
+				sentence.append(' ');
+			}
+			sentence.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		return sentence.toString();
+	}
+}
@@ -0,0 +1,81 @@
+package com.alignment.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.alignment.store.EmailLinkStore;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * Redirect lookups against the local datastore and memcache services, one
+ * benchmark per tier the lookup is answered from. The services are bound to
+ * the thread that sets them up, so the state is per thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EmailLinkStoreBenchmark {
+
+	// More ids than the local cache holds, so cycling through them in order
+	// always misses the local tier.
+	private static final int MEMCACHE_IDS = 75000;
+
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+			new LocalDatastoreServiceTestConfig(),
+			new LocalMemcacheServiceTestConfig());
+
+	private EmailLinkStore store;
+
+	private String[] ids;
+
+	private int next;
+
+	@Setup
+	public void setUp() {
+		helper.setUp();
+		store = new EmailLinkStore();
+		ids = new String[MEMCACHE_IDS];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = "ID" + i;
+			store.createUrlRedirect(ids[i], "http://www.example.com/" + i,
+					"BENCHMARK");
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	@Benchmark
+	public String localHit() throws EntityNotFoundException {
+		return store.getRedirect(ids[0]);
+	}
+
+	@Benchmark
+	public String memcacheHit() throws EntityNotFoundException {
+		String id = ids[next];
+		next = next + 1 == ids.length ? 0 : next + 1;
+		return store.getRedirect(id);
+	}
+
+	@Benchmark
+	public String datastoreMiss() {
+		try {
+			return store.getRedirect("UNKNOWN");
+		} catch (EntityNotFoundException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package com.alignment.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.alignment.html.HtmlTag;
+import com.alignment.html.parser.HtmlParser;
+
+/**
+ * Parsing generated emails from a short notice up to a heavy newsletter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HtmlParserBenchmark {
+
+	@Param({ EmailCorpus.SMALL, EmailCorpus.MEDIUM, EmailCorpus.LARGE,
+			EmailCorpus.HUGE })
+	public int size;
+
+	private String html;
+
+	// The email as an archive job reads it, encoded and off heap.
+	private ByteBuffer bytes;
+
+	@Setup
+	public void setUp() {
+		html = EmailCorpus.email(size);
+		byte[] encoded = html.getBytes(StandardCharsets.UTF_8);
+		bytes = ByteBuffer.allocateDirect(encoded.length);
+		bytes.put(encoded).flip();
+	}
+
+	@Benchmark
+	public HtmlTag parseSingleTag() {
+		return HtmlParser.parseSingleTag(html);
+	}
+
+	@Benchmark
+	public HtmlTag parseBytes() {
+		return HtmlParser.parseSingleTag(bytes, null);
+	}
+}
@@ -0,0 +1,61 @@
+package com.alignment.benchmarks;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.alignment.html.HtmlTag;
+import com.alignment.html.parser.HtmlParser;
+
+/**
+ * Reading a parsed email: the children of the root and the html rendering of
+ * the whole tree.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HtmlTagBenchmark {
+
+	@Param({ EmailCorpus.SMALL, EmailCorpus.LARGE })
+	public int size;
+
+	private HtmlTag root;
+
+	private HtmlTag widest;
+
+	@Setup
+	public void setUp() {
+		root = HtmlParser.parseSingleTag(EmailCorpus.email(size));
+		widest = widest(root);
+	}
+
+	@Benchmark
+	public Set<HtmlTag> getChildren() {
+		return widest.getChildren();
+	}
+
+	@Benchmark
+	public String toStringTree() {
+		return root.toString();
+	}
+
+	// The tag with the most children, the table in the generated emails.
+	private static HtmlTag widest(HtmlTag tag) {
+		HtmlTag widest = tag;
+		for (HtmlTag child : tag.getChildren()) {
+			HtmlTag candidate = widest(child);
+			if (candidate.getChildren().size() > widest.getChildren().size()) {
+				widest = candidate;
+			}
+		}
+		return widest;
+	}
+}
@@ -0,0 +1,61 @@
+package com.alignment.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.alignment.html.HtmlTag;
+import com.alignment.html.TagBuilder;
+import com.alignment.html.TagType;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Building tags, alone and with children attached by the builder.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TagBuilderBenchmark {
+
+	private Map<String, String> attributes;
+
+	private HtmlTag[] children;
+
+	@Setup
+	public void setUp() {
+		attributes = ImmutableMap.of("href", "http://www.example.com/",
+				"style", "color:#0066cc");
+		children = new HtmlTag[8];
+		for (int i = 0; i < children.length; i++) {
+			children[i] = TagBuilder.create().ofType(TagType.P)
+					.withText("Paragraph " + i)
+					.withAttributes(ImmutableMap.of("class", "p" + i)).build();
+		}
+	}
+
+	@Benchmark
+	public HtmlTag build() {
+		return TagBuilder.create().ofType(TagType.A).withText("Shop now")
+				.withAttributes(attributes).build();
+	}
+
+	@Benchmark
+	public HtmlTag buildWithChildren() {
+		TagBuilder builder = TagBuilder.create().ofType(TagType.BODY)
+				.withText("");
+		// The children are fresh each time, a tag only takes one parent.
+		for (int i = 0; i < children.length; i++) {
+			builder.andChild(TagBuilder.create().ofType(TagType.P)
+					.withText(children[i].getText())
+					.withAttributes(children[i].getAttributes()).build());
+		}
+		return builder.build();
+	}
+}
@@ -0,0 +1,48 @@
+package com.alignment.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import com.alignment.html.TreeNode;
+
+/**
+ * Adding children to a single node from several threads at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TreeNodeBenchmark {
+
+	private final AtomicInteger next = new AtomicInteger();
+
+	private TreeNode<Integer> parent;
+
+	// A fresh parent every iteration keeps the child set from growing
+	// without bound.
+	@Setup(Level.Iteration)
+	public void setUp() {
+		parent = TreeNode.create(-1);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void addChildUncontended() {
+		parent.addChild(TreeNode.create(next.getAndIncrement()));
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void addChildContended() {
+		parent.addChild(TreeNode.create(next.getAndIncrement()));
+	}
+}
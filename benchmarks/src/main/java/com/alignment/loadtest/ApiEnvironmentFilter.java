@@ -0,0 +1,47 @@
+package com.alignment.loadtest;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.Environment;
+
+/**
+ * Makes the App Engine environment of the thread that set up the local
+ * services available to the container threads serving requests. The local
+ * services are shared, but the environment they are called with is bound to
+ * a thread.
+ */
+final class ApiEnvironmentFilter implements Filter {
+
+	private final Environment environment;
+
+	ApiEnvironmentFilter(Environment environment) {
+		this.environment = environment;
+	}
+
+	@Override
+	public void init(FilterConfig config) {
+	}
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response,
+			FilterChain chain) throws IOException, ServletException {
+		ApiProxy.setEnvironmentForCurrentThread(environment);
+		try {
+			chain.doFilter(request, response);
+		} finally {
+			ApiProxy.clearEnvironmentForCurrentThread();
+		}
+	}
+
+	@Override
+	public void destroy() {
+	}
+}
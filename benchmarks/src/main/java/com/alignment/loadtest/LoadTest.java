@@ -0,0 +1,343 @@
+package com.alignment.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.mortbay.jetty.Handler;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.servlet.Context;
+import org.mortbay.jetty.servlet.FilterHolder;
+import org.mortbay.jetty.servlet.ServletHolder;
+import org.mortbay.thread.QueuedThreadPool;
+
+import com.alignment.metrics.Histogram;
+import com.alignment.metrics.Metrics;
+import com.alignment.servlets.AlignmentServlet;
+import com.alignment.store.EmailLinkStore;
+import com.alignment.store.LinkIds;
+import com.alignment.store.RedirectTier;
+import com.google.apphosting.api.ApiProxy;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * Load test of the redirect servlet. The servlet runs in an embedded Jetty
+ * against the local datastore and memcache services, seeded with compact
+ * redirects, and is sent requests for ids picked with a Zipf distribution.
+ * The load is either a fixed request rate (open loop) or a number of clients
+ * sending requests back to back (closed loop).
+ *
+ * At a fixed rate the latency of a request is measured from the time it was
+ * due to be sent, so a stalled server is charged for the requests queued
+ * behind the stall instead of hiding it.
+ *
+ * Options are passed as {@code name=value} arguments, see {@link Options}:
+ *
+ * <pre>
+ * java -cp benchmarks.jar com.alignment.loadtest.LoadTest ids=100000 rate=2000 seconds=60
+ * java -cp benchmarks.jar com.alignment.loadtest.LoadTest clients=32 seconds=60
+ * </pre>
+ */
+public final class LoadTest {
+
+	// Sent with every request so clicks take the same path as real ones.
+	private static final String USER_AGENT = "Mozilla/5.0 (X11; Linux x86_64) "
+			+ "AppleWebKit/537.36 (KHTML, like Gecko) Chrome/50.0 Safari/537.36";
+
+	/**
+	 * Load test options, with their defaults.
+	 */
+	static final class Options {
+
+		// Number of seeded redirects.
+		int ids = 100000;
+
+		// Exponent of the Zipf distribution the ids are picked with.
+		double zipf = 1.0;
+
+		// Fraction of requests for ids that have no redirect. They are new
+		// compact ids, which the live id filter lets through.
+		double unknown = 0.01;
+
+		// Requests per second, zero for a closed loop.
+		int rate = 0;
+
+		// Threads sending requests. In a closed loop each one is a client.
+		int clients = 16;
+
+		// Length of the measured run.
+		int seconds = 30;
+
+		// Length of the unmeasured run before it.
+		int warmupSeconds = 5;
+
+		// Redirect mode of the servlet, async or blocking.
+		String mode = "async";
+
+		// Whether the servlet rejects unknown ids with the live id filter.
+		boolean filter = false;
+
+		static Options parse(String[] args) {
+			Map<String, String> values = new HashMap<>();
+			for (String arg : args) {
+				int split = arg.indexOf('=');
+				if (split < 0) {
+					throw new IllegalArgumentException("Expected name=value but was "
+							+ arg);
+				}
+				values.put(arg.substring(0, split), arg.substring(split + 1));
+			}
+			Options options = new Options();
+			if (values.containsKey("ids")) {
+				options.ids = Integer.parseInt(values.remove("ids"));
+			}
+			if (values.containsKey("zipf")) {
+				options.zipf = Double.parseDouble(values.remove("zipf"));
+			}
+			if (values.containsKey("unknown")) {
+				options.unknown = Double.parseDouble(values.remove("unknown"));
+			}
+			if (values.containsKey("rate")) {
+				options.rate = Integer.parseInt(values.remove("rate"));
+			}
+			if (values.containsKey("clients")) {
+				options.clients = Integer.parseInt(values.remove("clients"));
+			}
+			if (values.containsKey("seconds")) {
+				options.seconds = Integer.parseInt(values.remove("seconds"));
+			}
+			if (values.containsKey("warmupSeconds")) {
+				options.warmupSeconds = Integer.parseInt(values
+						.remove("warmupSeconds"));
+			}
+			if (values.containsKey("mode")) {
+				options.mode = values.remove("mode");
+			}
+			if (values.containsKey("filter")) {
+				options.filter = Boolean.parseBoolean(values.remove("filter"));
+			}
+			if (!values.isEmpty()) {
+				throw new IllegalArgumentException("Unknown options "
+						+ values.keySet());
+			}
+			return options;
+		}
+	}
+
+	private final Options options;
+
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+			new LocalDatastoreServiceTestConfig(),
+			new LocalMemcacheServiceTestConfig());
+
+	private Server server;
+
+	private ZipfIds workload;
+
+	private String url;
+
+	// Client side latency, from when the request was due to its response.
+	private final Histogram latency = Metrics.latency("loadtest.request");
+
+	// Responses by status class, 2xx to 5xx, and failed connections.
+	private final AtomicLongArray statuses = new AtomicLongArray(6);
+
+	private final AtomicLong sent = new AtomicLong();
+
+	private volatile boolean measuring;
+
+	LoadTest(Options options) {
+		this.options = options;
+	}
+
+	public static void main(String[] args) throws Exception {
+		LoadTest test = new LoadTest(Options.parse(args));
+		test.start();
+		try {
+			test.run();
+		} finally {
+			test.stop();
+		}
+	}
+
+	void start() throws Exception {
+		helper.setUp();
+		seed();
+
+		server = new Server(0);
+		server.setThreadPool(new QueuedThreadPool(Math.max(64,
+				options.clients * 2)));
+		Context context = new Context(server, "/", Context.NO_SESSIONS);
+		context.addFilter(new FilterHolder(new ApiEnvironmentFilter(ApiProxy
+				.getCurrentEnvironment())), "/*", Handler.DEFAULT);
+		ServletHolder servlet = new ServletHolder(new AlignmentServlet());
+		servlet.setInitParameter("redirectMode", options.mode);
+		servlet.setInitParameter("liveIdFilter",
+				String.valueOf(options.filter));
+		context.addServlet(servlet, "/alignment/*");
+		server.start();
+		url = "http://localhost:" + server.getConnectors()[0].getLocalPort()
+				+ "/alignment/?id=";
+	}
+
+	// Seed compact redirects from a separate store so the servlet starts with
+	// a cold local tier, like a new instance.
+	private void seed() {
+		EmailLinkStore store = new EmailLinkStore();
+		String[] ids = new String[options.ids];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = store.createCompactRedirect("http://www.example.com/" + i,
+					"LOADTEST");
+		}
+		workload = new ZipfIds(ids, options.zipf);
+	}
+
+	void run() throws InterruptedException {
+		runFor(options.warmupSeconds);
+		Map<RedirectTier, Long> tiersBefore = tierCounts();
+		measuring = true;
+		long start = System.nanoTime();
+		runFor(options.seconds);
+		long elapsed = System.nanoTime() - start;
+		measuring = false;
+		report(elapsed, tiersBefore);
+	}
+
+	void stop() throws Exception {
+		if (server != null) {
+			server.stop();
+		}
+		helper.tearDown();
+	}
+
+	private void runFor(int seconds) throws InterruptedException {
+		final long start = System.nanoTime();
+		final long end = start + TimeUnit.SECONDS.toNanos(seconds);
+		final AtomicLong next = new AtomicLong();
+		final long interval = options.rate > 0 ? TimeUnit.SECONDS.toNanos(1)
+				/ options.rate : 0;
+		Thread[] clients = new Thread[options.clients];
+		for (int i = 0; i < clients.length; i++) {
+			clients[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					// Open loop requests are due at a fixed interval whatever
+					// the response times, closed loop ones when the client is
+					// free.
+					while (true) {
+						long due = interval > 0 ? start + next.getAndIncrement()
+								* interval : System.nanoTime();
+						if (due >= end) {
+							return;
+						}
+						long wait = due - System.nanoTime();
+						if (wait > 0) {
+							sleepNanos(wait);
+						}
+						send(due);
+					}
+				}
+			}, "loadtest-client-" + i);
+			clients[i].start();
+		}
+		for (Thread client : clients) {
+			client.join();
+		}
+	}
+
+	private void send(long due) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		String id = random.nextDouble() < options.unknown ? LinkIds
+				.encode(LinkIds.newId())
+				: workload.next(random);
+		int statusClass;
+		try {
+			HttpURLConnection connection = (HttpURLConnection) new URL(url + id)
+					.openConnection();
+			connection.setInstanceFollowRedirects(false);
+			// The default agent names Java and would be counted as a bot.
+			connection.setRequestProperty("User-Agent", USER_AGENT);
+			int status = connection.getResponseCode();
+			drain(status < 400 ? connection.getInputStream() : connection
+					.getErrorStream());
+			statusClass = Math.min(5, status / 100);
+		} catch (IOException e) {
+			statusClass = 0;
+		}
+		if (measuring) {
+			latency.recordSince(due);
+			statuses.incrementAndGet(statusClass);
+			sent.incrementAndGet();
+		}
+	}
+
+	// Read the body so the connection can be kept alive.
+	private static void drain(InputStream body) throws IOException {
+		if (body == null) {
+			return;
+		}
+		try (InputStream in = body) {
+			byte[] buffer = new byte[4096];
+			while (in.read(buffer) >= 0) {
+				// Discard.
+			}
+		}
+	}
+
+	private static void sleepNanos(long nanos) {
+		try {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static Map<RedirectTier, Long> tierCounts() {
+		Map<RedirectTier, Long> counts = new EnumMap<>(RedirectTier.class);
+		for (RedirectTier tier : RedirectTier.values()) {
+			counts.put(tier, tier.latency().getCount());
+		}
+		return counts;
+	}
+
+	private void report(long elapsedNanos, Map<RedirectTier, Long> tiersBefore) {
+		double seconds = elapsedNanos / 1E9;
+		long requests = sent.get();
+		System.out.println(String.format(Locale.ROOT,
+				"%s loop, %d clients, %d ids, zipf %.2f, %s mode",
+				options.rate > 0 ? "Open (" + options.rate + "/s)" : "Closed",
+				options.clients, options.ids, options.zipf, options.mode));
+		System.out.println(String.format(Locale.ROOT,
+				"Requests %d in %.1fs, %.0f/s", requests, seconds, requests
+						/ seconds));
+		System.out.println(String.format(Locale.ROOT,
+				"Latency us p50=%d p99=%d p999=%d max=%d",
+				latency.getPercentile(50), latency.getPercentile(99),
+				latency.getPercentile(99.9), latency.getMax()));
+		System.out.println(String.format(Locale.ROOT,
+				"Status 3xx=%d 4xx=%d 5xx=%d failed=%d", statuses.get(3),
+				statuses.get(4), statuses.get(5), statuses.get(0)));
+		Map<RedirectTier, Long> tiersAfter = tierCounts();
+		long resolved = 0;
+		for (RedirectTier tier : RedirectTier.values()) {
+			resolved += tiersAfter.get(tier) - tiersBefore.get(tier);
+		}
+		for (RedirectTier tier : RedirectTier.values()) {
+			long hits = tiersAfter.get(tier) - tiersBefore.get(tier);
+			System.out.println(String.format(Locale.ROOT,
+					"Tier %-9s %5.1f%% (%d)", tier.name().toLowerCase(),
+					resolved == 0 ? 0 : 100.0 * hits / resolved, hits));
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package com.alignment.loadtest;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Picks link ids with a Zipf distribution, so the first id is requested most
+ * often and the k-th id about {@code 1 / k^exponent} as often. That is the
+ * shape of the clicks on a send: a few links in the header of the email take
+ * most of the traffic and the long tail is rarely clicked.
+ */
+final class ZipfIds {
+
+	private final String[] ids;
+
+	// Cumulative probability of the ids up to and including each rank.
+	private final double[] cumulative;
+
+	ZipfIds(String[] ids, double exponent) {
+		checkArgument(ids.length > 0, "Must have at least one id.");
+		checkArgument(exponent >= 0, "Exponent must not be negative.");
+		this.ids = ids;
+		this.cumulative = new double[ids.length];
+		double total = 0;
+		for (int rank = 0; rank < ids.length; rank++) {
+			total += 1 / Math.pow(rank + 1, exponent);
+			cumulative[rank] = total;
+		}
+		for (int rank = 0; rank < ids.length; rank++) {
+			cumulative[rank] /= total;
+		}
+	}
+
+	/**
+	 * @return The id at the rank drawn from the provided random source.
+	 */
+	String next(Random random) {
+		int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+		if (rank < 0) {
+			rank = -rank - 1;
+		}
+		return ids[Math.min(rank, ids.length - 1)];
+	}
+}
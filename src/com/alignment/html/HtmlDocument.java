@@ -1,5 +1,134 @@
 package com.alignment.html;
 
+import java.util.List;
+
+/**
+ * A parsed html document. Along with the tree of tags, the document answers
+ * lookups of its tags by identifier, type, attribute and link target. The
+ * lookups use indexes that are built from the tree the first time they are
+ * needed, so a document that is only walked never pays for them.
+ *
+ * Lists of tags are in the order of the tag identifiers, which for parsed
+ * documents is the order the tags start in the html.
+ */
 public interface HtmlDocument {
 
+	/**
+	 * Get the root of the document, normally its {@link TagType#HTML} tag.
+	 *
+	 * @return The non-null root tag.
+	 */
+	HtmlTag getRoot();
+
+	/**
+	 * Get the length of the source the document was parsed from, in the
+	 * characters or bytes it was given in.
+	 *
+	 * @return The length of the source, or {@code 0} if it is not known.
+	 */
+	long getSourceLength();
+
+	/**
+	 * Get the number of tags in the document.
+	 *
+	 * @return The number of tags, including the root.
+	 */
+	int getElementCount();
+
+	/**
+	 * Get the number of text characters held by the tags of the document.
+	 *
+	 * @return The number of text characters.
+	 */
+	long getTextLength();
+
+	/**
+	 * Get the number of tags in the subtree under a tag of the document.
+	 *
+	 * @param tag The tag at the top of the subtree.
+	 *
+	 * @return The number of tags, including the tag itself.
+	 *
+	 * @throws IllegalArgumentException if the tag is not in the document.
+	 */
+	int getSubtreeSize(HtmlTag tag);
+
+	/**
+	 * Get the depth of a tag of the document.
+	 *
+	 * @param tag The tag.
+	 *
+	 * @return The number of tags above the tag, {@code 0} for the root.
+	 *
+	 * @throws IllegalArgumentException if the tag is not in the document.
+	 */
+	int getDepth(HtmlTag tag);
+
+	/**
+	 * Find whether a tag is inside another, such as a link inside a footer
+	 * table, without walking the parents of the tag.
+	 *
+	 * @param ancestor The outer tag.
+	 *
+	 * @param descendant The inner tag.
+	 *
+	 * @return {@code true} if the descendant is below the ancestor, a tag is
+	 * not its own ancestor.
+	 *
+	 * @throws IllegalArgumentException if either tag is not in the document.
+	 */
+	boolean isAncestorOf(HtmlTag ancestor, HtmlTag descendant);
+
+	/**
+	 * Find the lowest tag that holds two tags.
+	 *
+	 * @param first One tag.
+	 *
+	 * @param second The other tag.
+	 *
+	 * @return The lowest common ancestor, which is one of the tags if it holds
+	 * the other.
+	 *
+	 * @throws IllegalArgumentException if either tag is not in the document.
+	 */
+	HtmlTag getCommonAncestor(HtmlTag first, HtmlTag second);
+
+	/**
+	 * Find a tag by its identifier.
+	 *
+	 * @param id The identifier of the tag.
+	 *
+	 * @return The tag, or {@code null} if there is no tag with the identifier.
+	 */
+	HtmlTag getTag(double id);
+
+	/**
+	 * Find the tags of a type.
+	 *
+	 * @param type The type of the tags.
+	 *
+	 * @return A possibly empty, unmodifiable list of the tags.
+	 */
+	List<HtmlTag> getTags(TagType type);
+
+	/**
+	 * Find the tags with an attribute set to a value.
+	 *
+	 * @param name The name of the attribute.
+	 *
+	 * @param value The value of the attribute.
+	 *
+	 * @return A possibly empty, unmodifiable list of the tags.
+	 */
+	List<HtmlTag> getTags(String name, String value);
+
+	/**
+	 * Find the tags that link to a target, which is compared without its
+	 * surrounding whitespace.
+	 *
+	 * @param href The target of the links.
+	 *
+	 * @return A possibly empty, unmodifiable list of the tags.
+	 */
+	List<HtmlTag> getLinks(String href);
 }
@@ -0,0 +1,441 @@
+package com.alignment.html;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.ImmutableListMultimap;
+
+/**
+ * Html document over a built tree of tags. Each index is built on its first
+ * lookup and kept for the life of the document:
+ * <ul>
+ * <li>the tags sorted by identifier, which identifier lookups search and
+ * every other index is built from,</li>
+ * <li>the tags by type,</li>
+ * <li>the tags by value, one index for each attribute name that is looked
+ * up, and</li>
+ * <li>the tags by their trimmed {@code href}, and</li>
+ * <li>the pre-order rank, depth and subtree size of each tag, which answer
+ * ancestor queries in constant time.</li>
+ * </ul>
+ * The document is safe to share between threads. Two threads that need a
+ * missing index at the same time may both build it, in which case one copy
+ * is kept.
+ */
+public final class IndexedHtmlDocument implements HtmlDocument {
+
+	/**
+	 * Orders tags by their identifiers.
+	 */
+	private static final Comparator<HtmlTag> BY_ID = new Comparator<HtmlTag>() {
+		@Override
+		public int compare(HtmlTag first, HtmlTag second)
+		{
+			return Double.compare(first.getId(), second.getId());
+		}
+	};
+
+	private final HtmlTag root;
+
+	private final long sourceLength;
+
+	private final int elementCount;
+
+	private final long textLength;
+
+	/**
+	 * All tags of the document sorted by identifier, built on first use.
+	 */
+	private volatile SortedTags sortedTags;
+
+	/**
+	 * Pre-order ranks, depths and subtree sizes of the tags, built on first use.
+	 */
+	private volatile TreeNumbering numbering;
+
+	private volatile ImmutableListMultimap<TagType, HtmlTag> byType;
+
+	private volatile ImmutableListMultimap<String, HtmlTag> byHref;
+
+	/**
+	 * Tags by attribute value, for each attribute name that was looked up.
+	 */
+	private final ConcurrentMap<String, ImmutableListMultimap<String, HtmlTag>> byAttribute = new ConcurrentHashMap<>();
+
+	/**
+	 * Create a document over a tree of tags.
+	 *
+	 * @param root The root of the tree.
+	 *
+	 * @param sourceLength The length of the source, {@code 0} if it is not known.
+	 *
+	 * @param elementCount The number of tags in the tree.
+	 *
+	 * @param textLength The number of text characters in the tree.
+	 */
+	public IndexedHtmlDocument(HtmlTag root, long sourceLength, int elementCount, long textLength)
+	{
+		this.root = checkNotNull(root, "Must have a non-null root.");
+		this.sourceLength = sourceLength;
+		this.elementCount = elementCount;
+		this.textLength = textLength;
+	}
+
+	@Override
+	public HtmlTag getRoot()
+	{
+		return root;
+	}
+
+	@Override
+	public long getSourceLength()
+	{
+		return sourceLength;
+	}
+
+	@Override
+	public int getElementCount()
+	{
+		return elementCount;
+	}
+
+	@Override
+	public long getTextLength()
+	{
+		return textLength;
+	}
+
+	@Override
+	public int getSubtreeSize(HtmlTag tag)
+	{
+		TreeNumbering tree = numbering();
+		return tree.sizes[tree.rank(tag)];
+	}
+
+	@Override
+	public int getDepth(HtmlTag tag)
+	{
+		TreeNumbering tree = numbering();
+		return tree.depths[tree.rank(tag)];
+	}
+
+	@Override
+	public boolean isAncestorOf(HtmlTag ancestor, HtmlTag descendant)
+	{
+		TreeNumbering tree = numbering();
+		int above = tree.rank(ancestor);
+		int below = tree.rank(descendant);
+		return above != below && tree.contains(above, below);
+	}
+
+	@Override
+	public HtmlTag getCommonAncestor(HtmlTag first, HtmlTag second)
+	{
+		TreeNumbering tree = numbering();
+		return tree.tags[tree.commonAncestor(tree.rank(first), tree.rank(second))];
+	}
+
+	/**
+	 * Find a tag by its identifier with a binary search of the tags. If
+	 * several tags share the identifier, one of them is returned.
+	 */
+	@Override
+	public HtmlTag getTag(double id)
+	{
+		SortedTags sorted = sortedTags();
+		int index = Arrays.binarySearch(sorted.ids, id);
+		return index >= 0 ? sorted.tags[index] : null;
+	}
+
+	@Override
+	public List<HtmlTag> getTags(TagType type)
+	{
+		ImmutableListMultimap<TagType, HtmlTag> index = byType;
+		if(index == null)
+		{
+			ImmutableListMultimap.Builder<TagType, HtmlTag> builder = ImmutableListMultimap.builder();
+			for(HtmlTag tag : sortedTags().tags)
+			{
+				builder.put(tag.getTagType(), tag);
+			}
+			index = builder.build();
+			byType = index;
+		}
+		return index.get(type);
+	}
+
+	@Override
+	public List<HtmlTag> getTags(String name, String value)
+	{
+		ImmutableListMultimap<String, HtmlTag> index = byAttribute.get(name);
+		if(index == null)
+		{
+			index = indexAttribute(name, false);
+			ImmutableListMultimap<String, HtmlTag> raced = byAttribute.putIfAbsent(name, index);
+			if(raced != null)
+			{
+				index = raced;
+			}
+		}
+		return index.get(value);
+	}
+
+	@Override
+	public List<HtmlTag> getLinks(String href)
+	{
+		ImmutableListMultimap<String, HtmlTag> index = byHref;
+		if(index == null)
+		{
+			index = indexAttribute("href", true);
+			byHref = index;
+		}
+		return index.get(href.trim());
+	}
+
+	/**
+	 * Index the tags that have an attribute by its value.
+	 */
+	private ImmutableListMultimap<String, HtmlTag> indexAttribute(String name, boolean trim)
+	{
+		ImmutableListMultimap.Builder<String, HtmlTag> builder = ImmutableListMultimap.builder();
+		for(HtmlTag tag : sortedTags().tags)
+		{
+			String value = tag.getAttributes().get(name);
+			if(value != null)
+			{
+				builder.put(trim ? value.trim() : value, tag);
+			}
+		}
+		return builder.build();
+	}
+
+	private TreeNumbering numbering()
+	{
+		TreeNumbering tree = numbering;
+		if(tree == null)
+		{
+			tree = new TreeNumbering(root, elementCount);
+			numbering = tree;
+		}
+		return tree;
+	}
+
+	/**
+	 * Get all tags of the document sorted by identifier, collecting them on
+	 * the first call.
+	 */
+	private SortedTags sortedTags()
+	{
+		SortedTags sorted = sortedTags;
+		if(sorted == null)
+		{
+			List<HtmlTag> collected = walk();
+			sorted = new SortedTags(collected.toArray(new HtmlTag[collected.size()]));
+			sortedTags = sorted;
+		}
+		return sorted;
+	}
+
+	/**
+	 * Collect the tags of the document with every tag before the tags below
+	 * it. The tree is walked without recursion, so deep documents cannot
+	 * overflow the stack.
+	 */
+	private List<HtmlTag> walk()
+	{
+		List<HtmlTag> collected = new ArrayList<>(Math.max(elementCount, 16));
+		Deque<HtmlTag> pending = new ArrayDeque<>();
+		pending.push(root);
+		while(!pending.isEmpty())
+		{
+			HtmlTag tag = pending.pop();
+			collected.add(tag);
+			for(HtmlTag child : tag.getChildren())
+			{
+				pending.push(child);
+			}
+		}
+		return collected;
+	}
+
+	/**
+	 * The tags of a document in identifier order, alongside their
+	 * identifiers for searching.
+	 */
+	private static final class SortedTags
+	{
+		private final HtmlTag[] tags;
+
+		private final double[] ids;
+
+		private SortedTags(HtmlTag[] tags)
+		{
+			Arrays.sort(tags, BY_ID);
+			this.tags = tags;
+			this.ids = new double[tags.length];
+			for(int i = 0; i < tags.length; i++)
+			{
+				ids[i] = tags[i].getId();
+			}
+		}
+	}
+
+	/**
+	 * Numbers the tags of a tree in pre-order. The subtree of a tag holds the
+	 * tags ranked from the tag up to its rank plus its subtree size, so
+	 * whether one tag is inside another is two comparisons. Common ancestors
+	 * are found by jumping up the tree in powers of two, using tables that
+	 * are only built for the first such lookup.
+	 */
+	private static final class TreeNumbering
+	{
+		/**
+		 * The tags by pre-order rank.
+		 */
+		private final HtmlTag[] tags;
+
+		/**
+		 * Pre-order ranks of the tags.
+		 */
+		private final Map<HtmlTag, Integer> ranks;
+
+		/**
+		 * The rank of the parent of each tag, the root is its own parent.
+		 */
+		private final int[] parents;
+
+		private final int[] depths;
+
+		private final int[] sizes;
+
+		/**
+		 * The ancestors of each tag 2^k levels up, by k.
+		 */
+		private volatile int[][] jumps;
+
+		private TreeNumbering(HtmlTag root, int expected)
+		{
+			int capacity = Math.max(expected, 16);
+			HtmlTag[] order = new HtmlTag[capacity];
+			int[] up = new int[capacity];
+			int[] down = new int[capacity];
+			ranks = new IdentityHashMap<>(capacity);
+			//The parent is tracked alongside each pending tag rather than read
+			//back from the tag, which is only as reliable as the tree's links.
+			Deque<HtmlTag> pending = new ArrayDeque<>();
+			Deque<Integer> pendingParents = new ArrayDeque<>();
+			pending.push(root);
+			pendingParents.push(0);
+			int count = 0;
+			while(!pending.isEmpty())
+			{
+				HtmlTag tag = pending.pop();
+				int parent = pendingParents.pop();
+				if(count == order.length)
+				{
+					order = Arrays.copyOf(order, count * 2);
+					up = Arrays.copyOf(up, count * 2);
+					down = Arrays.copyOf(down, count * 2);
+				}
+				order[count] = tag;
+				up[count] = parent;
+				down[count] = count == 0 ? 0 : down[parent] + 1;
+				ranks.put(tag, count);
+				for(HtmlTag child : tag.getChildren())
+				{
+					pending.push(child);
+					pendingParents.push(count);
+				}
+				count++;
+			}
+			tags = Arrays.copyOf(order, count);
+			parents = Arrays.copyOf(up, count);
+			depths = Arrays.copyOf(down, count);
+			//Tags come after their parents, so walking backwards finishes every
+			//subtree before the tag above it.
+			sizes = new int[count];
+			Arrays.fill(sizes, 1);
+			for(int i = count - 1; i > 0; i--)
+			{
+				sizes[parents[i]] += sizes[i];
+			}
+		}
+
+		private int rank(HtmlTag tag)
+		{
+			Integer rank = ranks.get(tag);
+			checkArgument(rank != null, "Tag is not in the document.");
+			return rank;
+		}
+
+		/**
+		 * Whether the subtree of a tag holds another tag, or is that tag.
+		 */
+		private boolean contains(int above, int below)
+		{
+			return above <= below && below < above + sizes[above];
+		}
+
+		private int commonAncestor(int first, int second)
+		{
+			if(contains(first, second))
+			{
+				return first;
+			}
+			if(contains(second, first))
+			{
+				return second;
+			}
+			//Climb from the first tag as far as possible without reaching an
+			//ancestor of the second, the parent is then the lowest common one.
+			int[][] up = jumps();
+			int tag = first;
+			for(int k = up.length - 1; k >= 0; k--)
+			{
+				int ancestor = up[k][tag];
+				if(!contains(ancestor, second))
+				{
+					tag = ancestor;
+				}
+			}
+			return parents[tag];
+		}
+
+		private int[][] jumps()
+		{
+			int[][] up = jumps;
+			if(up == null)
+			{
+				int maxDepth = 0;
+				for(int depth : depths)
+				{
+					maxDepth = Math.max(maxDepth, depth);
+				}
+				up = new int[Math.max(1, 32 - Integer.numberOfLeadingZeros(maxDepth))][];
+				up[0] = parents;
+				for(int k = 1; k < up.length; k++)
+				{
+					int[] half = up[k - 1];
+					up[k] = new int[half.length];
+					for(int i = 0; i < half.length; i++)
+					{
+						up[k][i] = half[half[i]];
+					}
+				}
+				jumps = up;
+			}
+			return up;
+		}
+	}
+}
@@ -45,7 +45,6 @@ public class TagBuilder {
 	 * Private constructor to force the use of the static factory methods.
 	 */
 	private TagBuilder(){
-		//TODO need logic here to generate the unique identifier for the tag.
 	}
 
 	/**
@@ -73,6 +72,20 @@ public class TagBuilder {
 		return this;
 	}
 	
+	/**
+	 * Set the identifier of the html tag. Tags that are not given an
+	 * identifier have an identifier of {@code 0}, so tags of the same type
+	 * and attributes are only told apart by their identifiers.
+	 * 
+	 * @param id The identifier of the tag, unique within its document.
+	 * 
+	 * @return The builder.
+	 */
+	public TagBuilder withId(double id) {
+		tagId = id;
+		return this;
+	}
+	
 	/**
 	 * Add a child that will be linked to the created tag.
 	 * 
@@ -95,6 +108,19 @@ public class TagBuilder {
 		return this;
 	}
 
+	/**
+	 * Append to the text content of the tag, for text that is read in more
+	 * than one piece.
+	 * 
+	 * @param string The text to append.
+	 * 
+	 * @return The builder.
+	 */
+	public TagBuilder andText(String string) {
+		tagText = tagText == null || tagText.isEmpty() ? string : tagText + string;
+		return this;
+	}
+
 	/**
 	 * Set the map of attribute names to values. This map cannot be null be can
 	 * be empty if there are no attributes.
@@ -0,0 +1,317 @@
+package com.alignment.html;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Maps every tag of a document and reduces the results, in parallel over a
+ * {@link ForkJoinPool} for large documents. The document is split at its
+ * subtrees: a subtree above the threshold size is divided among its
+ * children, and runs of children are grouped into tasks of about equal size
+ * using the subtree sizes the document keeps. Smaller subtrees are reduced
+ * by a single thread.
+ *
+ * Results are combined in the order the tags appear in the document, with
+ * the children of a tag ordered by identifier, so the reducer only has to be
+ * associative. The mapper and the reducer are called from several threads at
+ * once.
+ */
+public final class TreeReducer {
+
+	/**
+	 * Maps a tag to a result.
+	 */
+	public interface Mapper<R>
+	{
+		R map(HtmlTag tag);
+	}
+
+	/**
+	 * Combines two results. Reducers must be associative, so that
+	 * {@code reduce(reduce(a, b), c)} equals {@code reduce(a, reduce(b, c))}.
+	 */
+	public interface Reducer<R>
+	{
+		/**
+		 * @param first The result of the tags that come first in the document.
+		 *
+		 * @param second The result of the tags that follow them.
+		 *
+		 * @return The combined result.
+		 */
+		R reduce(R first, R second);
+	}
+
+	/**
+	 * Number of tags below which a subtree is not split further.
+	 */
+	public static final int DEFAULT_THRESHOLD = 2048;
+
+	/**
+	 * Orders sibling tags by their identifiers.
+	 */
+	private static final Comparator<HtmlTag> BY_ID = new Comparator<HtmlTag>() {
+		@Override
+		public int compare(HtmlTag first, HtmlTag second)
+		{
+			return Double.compare(first.getId(), second.getId());
+		}
+	};
+
+	private TreeReducer()
+	{
+	}
+
+	/**
+	 * Map and reduce the tags of a document on a pool shared by the callers
+	 * of this method, with a thread for each processor. App Engine front end
+	 * instances may not start threads of their own, so the shared pool is
+	 * only for backends and tools.
+	 *
+	 * @param document The document.
+	 *
+	 * @param mapper Maps each tag.
+	 *
+	 * @param reducer Combines the mapped tags.
+	 *
+	 * @return The reduced result of all tags of the document.
+	 */
+	public static <R> R mapReduce(HtmlDocument document, Mapper<R> mapper, Reducer<R> reducer)
+	{
+		return mapReduce(SharedPool.POOL, document, mapper, reducer, DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * Map and reduce the tags of a document on a pool.
+	 *
+	 * @param pool The pool to run on.
+	 *
+	 * @param document The document.
+	 *
+	 * @param mapper Maps each tag.
+	 *
+	 * @param reducer Combines the mapped tags.
+	 *
+	 * @param threshold The number of tags below which a subtree is reduced by
+	 * a single thread.
+	 *
+	 * @return The reduced result of all tags of the document.
+	 */
+	public static <R> R mapReduce(ForkJoinPool pool, HtmlDocument document, Mapper<R> mapper,
+			Reducer<R> reducer, int threshold)
+	{
+		checkArgument(threshold > 0, "Threshold must be positive.");
+		HtmlTag root = document.getRoot();
+		return pool.invoke(new ForestTask<R>(new Job<R>(document, mapper, reducer, threshold),
+				new HtmlTag[] { root }, 0, 1, document.getSubtreeSize(root)));
+	}
+
+	/**
+	 * Map and reduce a subtree on the calling thread, visiting the tags in
+	 * document order.
+	 */
+	private static <R> R reduceSubtree(HtmlTag top, Mapper<R> mapper, Reducer<R> reducer)
+	{
+		R result = mapper.map(top);
+		Deque<HtmlTag> pending = new ArrayDeque<>();
+		pushChildren(pending, top);
+		while(!pending.isEmpty())
+		{
+			HtmlTag tag = pending.pop();
+			result = reducer.reduce(result, mapper.map(tag));
+			pushChildren(pending, tag);
+		}
+		return result;
+	}
+
+	private static void pushChildren(Deque<HtmlTag> pending, HtmlTag tag)
+	{
+		HtmlTag[] children = children(tag);
+		//Pushed last to first so the first child is visited next.
+		for(int i = children.length - 1; i >= 0; i--)
+		{
+			pending.push(children[i]);
+		}
+	}
+
+	/**
+	 * Get the children of a tag in identifier order.
+	 */
+	private static HtmlTag[] children(HtmlTag tag)
+	{
+		Set<HtmlTag> children = tag.getChildren();
+		HtmlTag[] sorted = children.toArray(new HtmlTag[children.size()]);
+		if(sorted.length > 1)
+		{
+			Arrays.sort(sorted, BY_ID);
+		}
+		return sorted;
+	}
+
+	/**
+	 * What every task of a reduction shares.
+	 */
+	private static final class Job<R>
+	{
+		private final HtmlDocument document;
+
+		private final Mapper<R> mapper;
+
+		private final Reducer<R> reducer;
+
+		private final int threshold;
+
+		private Job(HtmlDocument document, Mapper<R> mapper, Reducer<R> reducer, int threshold)
+		{
+			this.document = checkNotNull(document, "Must have a non-null document.");
+			this.mapper = checkNotNull(mapper, "Must have a non-null mapper.");
+			this.reducer = checkNotNull(reducer, "Must have a non-null reducer.");
+			this.threshold = threshold;
+		}
+	}
+
+	/**
+	 * Reduces a run of sibling subtrees, which hold the given number of tags
+	 * between them.
+	 */
+	@SuppressWarnings("serial")
+	private static final class ForestTask<R> extends RecursiveTask<R>
+	{
+		private final Job<R> job;
+
+		private final HtmlTag[] siblings;
+
+		private final int from;
+
+		private final int to;
+
+		private final int size;
+
+		private ForestTask(Job<R> job, HtmlTag[] siblings, int from, int to, int size)
+		{
+			this.job = job;
+			this.siblings = siblings;
+			this.from = from;
+			this.to = to;
+			this.size = size;
+		}
+
+		/**
+		 * Reduce the run without recursion. A single large subtree is walked
+		 * down into its children in a loop, and at every real split the
+		 * smaller side is forked while the loop carries on with the larger
+		 * side. Deep documents therefore cost no stack, and a forked task
+		 * that ends up being run by the thread that joins it holds at most
+		 * half the tags of its parent task.
+		 */
+		@Override
+		protected R compute()
+		{
+			//Parts of the result before and after the run still being worked
+			//on, in document order.
+			Deque<Part<R>> before = new ArrayDeque<>();
+			Deque<Part<R>> after = new ArrayDeque<>();
+			HtmlTag[] run = siblings;
+			int runFrom = from;
+			int runTo = to;
+			int runSize = size;
+			while(runFrom < runTo)
+			{
+				if(runSize <= job.threshold)
+				{
+					before.addLast(new Part<R>(reduceRun(run, runFrom, runTo), null));
+					break;
+				}
+				if(runTo - runFrom == 1)
+				{
+					//A single large subtree is split among its children.
+					HtmlTag top = run[runFrom];
+					before.addLast(new Part<R>(job.mapper.map(top), null));
+					run = children(top);
+					runFrom = 0;
+					runTo = run.length;
+					runSize--;
+					continue;
+				}
+				//Split the run where about half of its tags are on either side.
+				int half = 0;
+				int split = runFrom;
+				while(split < runTo - 1 && half < runSize / 2)
+				{
+					half += job.document.getSubtreeSize(run[split++]);
+				}
+				if(half >= runSize - half)
+				{
+					ForestTask<R> second = new ForestTask<R>(job, run, split, runTo, runSize - half);
+					second.fork();
+					after.addFirst(new Part<R>(null, second));
+					runTo = split;
+					runSize = half;
+				}
+				else
+				{
+					ForestTask<R> first = new ForestTask<R>(job, run, runFrom, split, half);
+					first.fork();
+					before.addLast(new Part<R>(null, first));
+					runFrom = split;
+					runSize -= half;
+				}
+			}
+			before.addAll(after);
+			R result = before.removeFirst().get();
+			for(Part<R> part : before)
+			{
+				result = job.reducer.reduce(result, part.get());
+			}
+			return result;
+		}
+
+		private R reduceRun(HtmlTag[] run, int runFrom, int runTo)
+		{
+			R result = reduceSubtree(run[runFrom], job.mapper, job.reducer);
+			for(int i = runFrom + 1; i < runTo; i++)
+			{
+				result = job.reducer.reduce(result, reduceSubtree(run[i], job.mapper, job.reducer));
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * A part of a result, either already reduced or still being reduced by a
+	 * forked task.
+	 */
+	private static final class Part<R>
+	{
+		private final R value;
+
+		private final ForestTask<R> task;
+
+		private Part(R value, ForestTask<R> task)
+		{
+			this.value = value;
+			this.task = task;
+		}
+
+		private R get()
+		{
+			return task != null ? task.join() : value;
+		}
+	}
+
+	/**
+	 * Pool for callers that do not provide one, started on first use.
+	 */
+	private static final class SharedPool
+	{
+		private static final ForkJoinPool POOL = new ForkJoinPool();
+	}
+}
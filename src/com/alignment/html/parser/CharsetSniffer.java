@@ -0,0 +1,150 @@
+package com.alignment.html.parser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Detects the charset of an html document from its first bytes: a byte order
+ * mark if there is one, otherwise the charset named by a {@code <meta>} tag in
+ * the first {@link #PRESCAN_BYTES} bytes, found the way browsers prescan a
+ * document, without decoding it.
+ */
+final class CharsetSniffer {
+
+	/**
+	 * Number of bytes searched for a {@code <meta>} charset.
+	 */
+	static final int PRESCAN_BYTES = 1024;
+
+	private CharsetSniffer() {
+	}
+
+	/**
+	 * @return The length of the byte order mark at the position of the
+	 *         buffer, or 0.
+	 */
+	static int bomLength(ByteBuffer head) {
+		Charset bom = bom(head);
+		if (bom == null) {
+			return 0;
+		}
+		return bom == StandardCharsets.UTF_8 ? 3 : 2;
+	}
+
+	/**
+	 * Detect the charset of a document from the bytes between the position
+	 * and the limit of the buffer, which are left untouched.
+	 * 
+	 * @return The charset, or {@code null} if the document does not name
+	 *         one.
+	 */
+	static Charset sniff(ByteBuffer head) {
+		Charset charset = bom(head);
+		if (charset == null) {
+			charset = prescan(head);
+		}
+		return charset;
+	}
+
+	private static Charset bom(ByteBuffer head) {
+		int at = head.position();
+		int remaining = head.remaining();
+		if (remaining >= 3 && (head.get(at) & 0xFF) == 0xEF
+				&& (head.get(at + 1) & 0xFF) == 0xBB
+				&& (head.get(at + 2) & 0xFF) == 0xBF) {
+			return StandardCharsets.UTF_8;
+		}
+		if (remaining >= 2) {
+			int first = head.get(at) & 0xFF;
+			int second = head.get(at + 1) & 0xFF;
+			if (first == 0xFE && second == 0xFF) {
+				return StandardCharsets.UTF_16BE;
+			}
+			if (first == 0xFF && second == 0xFE) {
+				return StandardCharsets.UTF_16LE;
+			}
+		}
+		return null;
+	}
+
+	// Covers both <meta charset="..."> and the charset parameter of
+	// <meta http-equiv="Content-Type" content="...">.
+	private static Charset prescan(ByteBuffer head) {
+		int end = head.position() + Math.min(head.remaining(), PRESCAN_BYTES);
+		for (int meta = indexOf(head, "<meta", head.position(), end); meta >= 0; meta = indexOf(
+				head, "<meta", meta + 5, end)) {
+			int tagEnd = indexOf(head, ">", meta, end);
+			if (tagEnd < 0) {
+				return null;
+			}
+			int charset = indexOf(head, "charset", meta, tagEnd);
+			if (charset >= 0) {
+				Charset named = charsetAt(head, charset + 7, tagEnd);
+				if (named != null) {
+					return named;
+				}
+			}
+		}
+		return null;
+	}
+
+	private static Charset charsetAt(ByteBuffer head, int at, int end) {
+		int i = skipSpaces(head, at, end);
+		if (i >= end || head.get(i) != '=') {
+			return null;
+		}
+		i = skipSpaces(head, i + 1, end);
+		if (i < end && (head.get(i) == '"' || head.get(i) == '\'')) {
+			i++;
+		}
+		StringBuilder name = new StringBuilder();
+		for (; i < end; i++) {
+			char c = (char) head.get(i);
+			if (c == '"' || c == '\'' || c == ';' || c == '/'
+					|| Character.isWhitespace(c)) {
+				break;
+			}
+			name.append(c);
+		}
+		try {
+			if (!Charset.isSupported(name.toString())) {
+				return null;
+			}
+		} catch (IllegalCharsetNameException e) {
+			return null;
+		}
+		Charset charset = Charset.forName(name.toString());
+		// A document that could be read this far is not in UTF-16.
+		if (charset.name().startsWith("UTF-16")) {
+			return StandardCharsets.UTF_8;
+		}
+		return charset;
+	}
+
+	private static int skipSpaces(ByteBuffer head, int at, int end) {
+		int i = at;
+		while (i < end && Character.isWhitespace((char) head.get(i))) {
+			i++;
+		}
+		return i;
+	}
+
+	// Case insensitive search for an ASCII string between two indexes.
+	private static int indexOf(ByteBuffer head, String ascii, int from, int to) {
+		int last = to - ascii.length();
+		for (int i = from; i <= last; i++) {
+			int j = 0;
+			while (j < ascii.length()
+					&& Character.toLowerCase((char) (head.get(i + j) & 0xFF)) == ascii
+							.charAt(j)) {
+				j++;
+			}
+			if (j == ascii.length()) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
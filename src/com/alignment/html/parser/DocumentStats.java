@@ -0,0 +1,107 @@
+package com.alignment.html.parser;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.DefaultHandler;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * Pipeline stage that measures the size and complexity of a document. Text
+ * is only counted, never copied.
+ */
+public final class DocumentStats extends DefaultHandler implements
+		ParsePipeline.Stage {
+
+	private int elements = 0;
+
+	private int depth = 0;
+
+	private int maxDepth = 0;
+
+	private long textChars = 0;
+
+	private int links = 0;
+
+	private int images = 0;
+
+	private int tables = 0;
+
+	@Override
+	public ContentHandler getContentHandler() {
+		return this;
+	}
+
+	@Override
+	public LexicalHandler getLexicalHandler() {
+		return null;
+	}
+
+	@Override
+	public boolean needsText() {
+		return true;
+	}
+
+	@Override
+	public void startElement(String uri, String localName, String qName,
+			Attributes attributes) {
+		elements++;
+		maxDepth = Math.max(maxDepth, ++depth);
+		String name = localName.isEmpty() ? qName : localName;
+		if (name.equalsIgnoreCase("a") || name.equalsIgnoreCase("area")) {
+			if (attributes.getIndex("href") >= 0) {
+				links++;
+			}
+		} else if (name.equalsIgnoreCase("img")) {
+			images++;
+		} else if (name.equalsIgnoreCase("table")) {
+			tables++;
+		}
+	}
+
+	@Override
+	public void endElement(String uri, String localName, String qName) {
+		depth--;
+	}
+
+	@Override
+	public void characters(char[] ch, int start, int length) {
+		textChars += length;
+	}
+
+	public int getElementCount() {
+		return elements;
+	}
+
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	public long getTextChars() {
+		return textChars;
+	}
+
+	/**
+	 * @return The number of links and image map areas with a target.
+	 */
+	public int getLinkCount() {
+		return links;
+	}
+
+	public int getImageCount() {
+		return images;
+	}
+
+	public int getTableCount() {
+		return tables;
+	}
+
+	@Override
+	public String toString() {
+		return MoreObjects.toStringHelper(DocumentStats.class)
+				.add("elements", elements).add("maxDepth", maxDepth)
+				.add("textChars", textChars).add("links", links)
+				.add("images", images).add("tables", tables).toString();
+	}
+}
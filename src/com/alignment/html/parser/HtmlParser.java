@@ -1,21 +1,44 @@
 package com.alignment.html.parser;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Stack;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.ccil.cowan.tagsoup.jaxp.SAXParserImpl;
 import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
 import org.xml.sax.helpers.DefaultHandler;
 
+import com.alignment.html.HtmlDocument;
 import com.alignment.html.HtmlTag;
+import com.alignment.html.IndexedHtmlDocument;
 import com.alignment.html.TagBuilder;
 import com.alignment.html.TagType;
+import com.alignment.html.parser.ParseOptions.LimitAction;
+import com.alignment.html.parser.ParseOptions.ParseLimit;
+import com.alignment.metrics.Counter;
+import com.alignment.metrics.Histogram;
+import com.alignment.metrics.Metrics;
+import com.alignment.metrics.Trace;
+import com.alignment.metrics.TraceEvent;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
+import com.google.common.io.ByteStreams;
 
 /**
  * HTML parser for parsing out HTML into the custom objects.
@@ -29,6 +52,37 @@ public class HtmlParser {
 	 */
 	private static Logger logger = Logger.getLogger(HtmlParser.class.getSimpleName());
 	
+	/**
+	 * Time taken to parse a document.
+	 */
+	private static final Histogram parseLatency = Metrics.latency("parse.latency");
+	
+	/**
+	 * Number of elements in each parsed document.
+	 */
+	private static final Histogram parseNodes = Metrics.histogram("parse.nodes", "nodes");
+	
+	/**
+	 * Number of documents that could not be parsed.
+	 */
+	private static final Counter parseErrors = Metrics.counter("parse.errors");
+	
+	/**
+	 * Number of documents that hit a parse limit.
+	 */
+	private static final Counter parseLimited = Metrics.counter("parse.limited");
+	
+	/**
+	 * Number of callbacks between checks of the deadline, reading the clock
+	 * costs more than the other checks.
+	 */
+	private static final int DEADLINE_CHECK_INTERVAL = 64;
+	
+	/**
+	 * Length of the longest text that is pooled, longer texts rarely repeat.
+	 */
+	private static final int MAX_POOLED_TEXT = 64;
+	
 	/**
 	 * Parse the provided html {@code String} into our well known
 	 * format.
@@ -38,20 +92,298 @@ public class HtmlParser {
 	 * @return The html tag structure reflecting the provided html.
 	 */
 	public static HtmlTag parseSingleTag(String str) {
+		return parse(str, ParseOptions.defaults()).getRoot();
+	}
+	
+	/**
+	 * Parse the provided html {@code String} into a document, which can look
+	 * up its tags as well as be walked.
+	 * 
+	 * @param str The string that we are parsing.
+	 * 
+	 * @return The document, or {@code null} if the html could not be parsed.
+	 */
+	public static HtmlDocument parseDocument(String str) {
+		return parse(str, ParseOptions.defaults()).getDocument();
+	}
+	
+	/**
+	 * Parse the provided html {@code String}, sharing the attribute names,
+	 * attribute values and short texts of the document through a pool.
+	 * Documents parsed with the same pool share their repeated strings.
+	 * 
+	 * @param str The string that we are parsing.
+	 * 
+	 * @param pool The pool of strings, {@code null} to not pool them.
+	 * 
+	 * @return The html tag structure reflecting the provided html.
+	 */
+	public static HtmlTag parseSingleTag(String str, StringPool pool) {
+		return parse(str, pooled(pool)).getRoot();
+	}
+	
+	/**
+	 * Parse the provided html {@code String} within the limits of the
+	 * options.
+	 * 
+	 * @param str The string that we are parsing.
+	 * 
+	 * @param options The pool and limits of the parse.
+	 * 
+	 * @return The result of the parse.
+	 */
+	public static ParseResult parse(String str, ParseOptions options) {
+		try {
+			//The parser reads the characters of the string as they are.
+			return parse(new InputSource(new StringReader(str)), str.length(), options);
+		} catch (IOException e) {
+			//A string reader does not fail.
+			throw new AssertionError(e);
+		}
+	}
+	
+	/**
+	 * Parse html read from a reader, which is not closed.
+	 * 
+	 * @param reader The html to parse.
+	 * 
+	 * @param pool The pool of strings, {@code null} to not pool them.
+	 * 
+	 * @return The html tag structure, or {@code null} if the html could not be parsed.
+	 * 
+	 * @throws IOException if the html could not be read.
+	 */
+	public static HtmlTag parseSingleTag(Reader reader, StringPool pool) throws IOException {
+		return parse(reader, pooled(pool)).getRoot();
+	}
+	
+	/**
+	 * Parse html read from a reader within the limits of the options.
+	 * 
+	 * @see #parseSingleTag(Reader, StringPool)
+	 */
+	public static ParseResult parse(Reader reader, ParseOptions options) throws IOException {
+		return parse(new InputSource(reader), 0, options);
+	}
+	
+	/**
+	 * Parse html bytes read from a stream, which is not closed. The charset
+	 * is taken from the byte order mark or a {@code <meta>} charset near the
+	 * start of the document, and is UTF-8 if there is neither.
+	 * 
+	 * @param in The html to parse.
+	 * 
+	 * @param pool The pool of strings, {@code null} to not pool them.
+	 * 
+	 * @return The html tag structure, or {@code null} if the html could not be parsed.
+	 * 
+	 * @throws IOException if the html could not be read.
+	 */
+	public static HtmlTag parseSingleTag(InputStream in, StringPool pool) throws IOException {
+		return parse(in, pooled(pool)).getRoot();
+	}
+	
+	/**
+	 * Parse html bytes read from a stream within the limits of the options.
+	 * 
+	 * @see #parseSingleTag(InputStream, StringPool)
+	 */
+	public static ParseResult parse(InputStream in, ParseOptions options) throws IOException {
+		return parse(sniffedSource(in), 0, options);
+	}
+	
+	/**
+	 * Get the source of a stream of html bytes in the charset detected from
+	 * its start, past any byte order mark.
+	 */
+	static InputSource sniffedSource(InputStream in) throws IOException {
+		InputStream stream = in.markSupported() ? in : new BufferedInputStream(in);
+		//Peek at the start of the document for its charset.
+		byte[] head = new byte[CharsetSniffer.PRESCAN_BYTES];
+		stream.mark(head.length);
+		int read = ByteStreams.read(stream, head, 0, head.length);
+		stream.reset();
+		ByteBuffer headBuffer = ByteBuffer.wrap(head, 0, read);
+		Charset charset = CharsetSniffer.sniff(headBuffer);
+		ByteStreams.skipFully(stream, CharsetSniffer.bomLength(headBuffer));
+		return source(stream, charset);
+	}
+	
+	/**
+	 * Parse the html bytes between the position and the limit of a buffer,
+	 * which are fed to the parser without being copied. The charset is
+	 * detected as for {@link #parseSingleTag(InputStream, StringPool)}. The
+	 * position of the buffer is left untouched.
+	 * 
+	 * @param html The html to parse.
+	 * 
+	 * @param pool The pool of strings, {@code null} to not pool them.
+	 * 
+	 * @return The html tag structure, or {@code null} if the html could not be parsed.
+	 */
+	public static HtmlTag parseSingleTag(ByteBuffer html, StringPool pool) {
+		return parse(html, pooled(pool)).getRoot();
+	}
+	
+	/**
+	 * Parse the html bytes of a buffer within the limits of the options.
+	 * 
+	 * @see #parseSingleTag(ByteBuffer, StringPool)
+	 */
+	public static ParseResult parse(ByteBuffer html, ParseOptions options) {
+		ByteBuffer bytes = html.duplicate();
+		Charset charset = CharsetSniffer.sniff(bytes);
+		bytes.position(bytes.position() + CharsetSniffer.bomLength(bytes));
+		try {
+			return parse(source(new ByteBufferInputStream(bytes), charset), html.remaining(), options);
+		} catch (IOException e) {
+			//Reading a buffer does not fail.
+			throw new AssertionError(e);
+		}
+	}
+	
+	/**
+	 * Parse an html file. The file is memory mapped rather than read, so
+	 * its bytes are not copied onto the heap before they are decoded.
+	 * 
+	 * @param file The html file to parse.
+	 * 
+	 * @param pool The pool of strings, {@code null} to not pool them.
+	 * 
+	 * @return The html tag structure, or {@code null} if the html could not be parsed.
+	 * 
+	 * @throws IOException if the file could not be read.
+	 */
+	public static HtmlTag parseSingleTag(Path file, StringPool pool) throws IOException {
+		return parse(file, pooled(pool)).getRoot();
+	}
+	
+	/**
+	 * Parse an html file within the limits of the options.
+	 * 
+	 * @see #parseSingleTag(Path, StringPool)
+	 */
+	public static ParseResult parse(Path file, ParseOptions options) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return parse(channel.map(MapMode.READ_ONLY, 0, channel.size()), options);
+		}
+	}
+	
+	private static ParseOptions pooled(StringPool pool) {
+		return pool == null ? ParseOptions.defaults() : ParseOptions.builder().withPool(pool).build();
+	}
+	
+	private static InputSource source(InputStream in, Charset charset) {
+		InputSource source = new InputSource(in);
+		source.setEncoding((charset != null ? charset : StandardCharsets.UTF_8).name());
+		return source;
+	}
+	
+	/**
+	 * Create a pipeline stage that builds the tag tree of the document
+	 * within the limits of the options. A stage that aborts at a limit stops
+	 * building while the rest of the pipeline carries on.
+	 * 
+	 * @param options The pool and limits of the tree.
+	 * 
+	 * @return The stage, which holds the result once the parse is done.
+	 */
+	public static TreeStage treeStage(ParseOptions options) {
+		return new TreeStage(new HtmlHandler(options, System.nanoTime()));
+	}
+	
+	/**
+	 * Pipeline stage that builds the tag tree of a document.
+	 */
+	public static final class TreeStage implements ParsePipeline.Stage
+	{
+		private final HtmlHandler handler;
+		
+		private TreeStage(HtmlHandler handler)
+		{
+			this.handler = handler;
+		}
+		
+		@Override
+		public ContentHandler getContentHandler() {
+			return handler;
+		}
+		
+		@Override
+		public LexicalHandler getLexicalHandler() {
+			return null;
+		}
+		
+		@Override
+		public boolean needsText() {
+			return true;
+		}
+		
+		/**
+		 * Get the tree built by the parse.
+		 * @return
+		 */
+		public ParseResult getResult() {
+			if(handler.isStopped())
+			{
+				return handler.result(handler.closeOpenElements(), 0, false);
+			}
+			return handler.result(handler.getRoot(), 0, handler.getRoot() != null);
+		}
+	}
+	
+	/**
+	 * Parse a document, recording its metrics.
+	 * 
+	 * @param length The length of the document, or 0 if it is not known.
+	 */
+	private static ParseResult parse(InputSource source, long length, ParseOptions options) throws IOException {
 		HtmlTag root = null;
 		long time = System.nanoTime();
+		HtmlHandler handler = new HtmlHandler(options, time);
+		boolean complete = false;
 		try {
-			HtmlHandler handler = new HtmlHandler();
-			SAXParserImpl.newInstance(null).parse(new ByteArrayInputStream(str.getBytes("UTF-8")), handler);
+			SAXParserImpl.newInstance(null).parse(source, handler);
 			root = handler.getRoot();
-		} catch (SAXException | IOException e) {
+			complete = true;
+		} catch (LimitExceededException e) {
+			//Keep what was parsed before the limit.
+			root = handler.closeOpenElements();
+		} catch (SAXException e) {
+			parseErrors.increment();
 			logger.log(Level.SEVERE, "Encountered an exception while parsing HTML.", e);
 		}
-		if(logger.getLevel() == Level.INFO)
+		int elements = handler.getElementCount();
+		if(root != null)
+		{
+			parseNodes.record(elements);
+		}
+		if(handler.getLimit() != null)
 		{
-			logger.log(Level.INFO, "Parsing HTML took " + (System.nanoTime() - time) / 1E6 + "ms.");
+			parseLimited.increment();
+		}
+		parseLatency.recordSince(time);
+		if(Trace.isEnabled())
+		{
+			Trace.record(TraceEvent.documentParsed(System.nanoTime() - time, (int) Math.min(length, Integer.MAX_VALUE), elements));
+		}
+		if(logger.isLoggable(Level.FINE))
+		{
+			logger.log(Level.FINE, "Parsing HTML took " + (System.nanoTime() - time) / 1E6 + "ms.");
+		}
+		return handler.result(root, length, complete);
+	}
+	
+	/**
+	 * Thrown from the handler to stop the parser at a limit.
+	 */
+	@SuppressWarnings("serial")
+	private static class LimitExceededException extends ParsePipeline.StageStoppedException
+	{
+		private LimitExceededException(ParseLimit limit)
+		{
+			super("Parse limit exceeded: " + limit);
 		}
-		return root;
 	}
 	
 	/**
@@ -72,13 +404,113 @@ public class HtmlParser {
 		private HtmlTag root = null;
 		
 		/**
-		 * The start of the document.
+		 * The number of elements that have been started.
 		 */
-	    @Override
-		public void startDocument() throws SAXException {
-	        System.out.println("start document   : ");
-	    }
-
+		private int elementCount = 0;
+		
+		/**
+		 * The pool of repeated strings, may be {@code null}.
+		 */
+		private final StringPool pool;
+		
+		/**
+		 * The limits of the parse.
+		 */
+		private final ParseOptions options;
+		
+		/**
+		 * When the parse started.
+		 */
+		private long startNanos;
+		
+		/**
+		 * The first limit that was hit.
+		 */
+		private ParseLimit limit = null;
+		
+		/**
+		 * The depth within an element that is being dropped, 0 outside of one.
+		 */
+		private int skipDepth = 0;
+		
+		/**
+		 * The number of text characters kept.
+		 */
+		private long textChars = 0;
+		
+		/**
+		 * The number of callbacks since the parse started.
+		 */
+		private int callbacks = 0;
+		
+		/**
+		 * Whether a limit stopped the parse.
+		 */
+		private boolean stopped = false;
+		
+		private HtmlHandler(ParseOptions options, long startNanos)
+		{
+			this.options = options;
+			this.pool = options.getPool();
+			this.startNanos = startNanos;
+		}
+		
+		/**
+		 * Get the first limit that the parse hit.
+		 * @return
+		 */
+		public ParseLimit getLimit() {
+			return limit;
+		}
+		
+		/**
+		 * Whether a limit stopped the parse.
+		 * @return
+		 */
+		public boolean isStopped() {
+			return stopped;
+		}
+		
+		/**
+		 * Build the elements that are still open when the parse stops early,
+		 * returning the root.
+		 */
+		private HtmlTag closeOpenElements() {
+			while(!builderStack.isEmpty())
+			{
+				endTag();
+			}
+			return root;
+		}
+		
+		/**
+		 * Note that a limit was hit, stopping the parse if the options say so.
+		 */
+		private void limitHit(ParseLimit hit, boolean stop) throws SAXException {
+			if(limit == null)
+			{
+				limit = hit;
+			}
+			if(stop || options.getLimitAction() == LimitAction.ABORT)
+			{
+				stopped = true;
+				throw new LimitExceededException(hit);
+			}
+		}
+		
+		@Override
+		public void startDocument() {
+			startNanos = System.nanoTime();
+		}
+		
+		private void checkDeadline() throws SAXException {
+			if(++callbacks % DEADLINE_CHECK_INTERVAL == 0
+					&& System.nanoTime() - startNanos > options.getTimeoutNanos())
+			{
+				limitHit(ParseLimit.DEADLINE, true);
+			}
+		}
+		
 	    /**
 	     * Get the root of the built HTML structure.
 	     * @return
@@ -86,25 +518,69 @@ public class HtmlParser {
 	    public HtmlTag getRoot() {
 			return root;
 		}
-
-		@Override
-		public void endDocument() throws SAXException {
-	        System.out.println("end document     : ");
+	    
+	    /**
+	     * Get the number of elements in the parsed document.
+	     * @return
+	     */
+	    public int getElementCount() {
+	    	return elementCount;
+	    }
+	    
+	    /**
+	     * Get the number of text characters in the parsed document.
+	     * @return
+	     */
+	    public long getTextChars() {
+	    	return textChars;
+	    }
+	    
+	    /**
+	     * Get the result of the parse for a root.
+	     * 
+	     * @param length The length of the document, or 0 if it is not known.
+	     */
+	    private ParseResult result(HtmlTag root, long length, boolean complete) {
+	    	HtmlDocument document = root == null ? null
+	    			: new IndexedHtmlDocument(root, length, elementCount, textChars);
+	    	return new ParseResult(document, limit, complete);
 	    }
 
 	    @Override
 		public void startElement(String uri, String localName,
 	        String qName, Attributes attributes)
 	    throws SAXException {
-	    	TagBuilder builder = TagBuilder.create();
+	    	checkDeadline();
+	    	if(skipDepth > 0)
+	    	{
+	    		skipDepth++;
+	    		return;
+	    	}
+	    	if(elementCount >= options.getMaxElements())
+	    	{
+	    		limitHit(ParseLimit.ELEMENTS, false);
+	    		skipDepth = 1;
+	    		return;
+	    	}
+	    	if(builderStack.size() >= options.getMaxDepth())
+	    	{
+	    		limitHit(ParseLimit.DEPTH, false);
+	    		skipDepth = 1;
+	    		return;
+	    	}
+	    	elementCount++;
+	    	//Elements are numbered in the order they start, which keeps siblings with the same attributes apart.
+	    	TagBuilder builder = TagBuilder.create().withId(elementCount);
+	    	//Without namespaces, as in a pipeline, the name is only reported as the qName.
+	    	String name = localName.isEmpty() ? qName : localName;
 	    	try
 	    	{
-	    		builder.ofType(TagType.valueOf(localName.toUpperCase()));	    		
+	    		builder.ofType(TagType.valueOf(name.toUpperCase()));	    		
 	    	}
 	    	catch(Exception e)
 	    	{
 	    		logger.log(Level.INFO, "Unable to find corresponding tag for tag type " 
-	    					+ localName.toUpperCase(), e);
+	    					+ name.toUpperCase(), e);
 	    		builder.ofType(TagType.DEFAULT);
 	    	}
 
@@ -114,7 +590,8 @@ public class HtmlParser {
 		    	Builder<String, String> immutableBuilder = ImmutableMap.builder();
 	    		for(int i = 0; i < attributes.getLength() ; i++)
 	    		{
-	    			immutableBuilder.put(attributes.getLocalName(i), attributes.getValue(i));
+	    			String attribute = attributes.getLocalName(i).isEmpty() ? attributes.getQName(i) : attributes.getLocalName(i);
+	    			immutableBuilder.put(pooled(attribute), pooled(attributes.getValue(i)));
 	    		}
 	    		builder.withAttributes(immutableBuilder.build());
 	    	}
@@ -124,6 +601,18 @@ public class HtmlParser {
 	    @Override
 		public void endElement(String uri, String localName, String qName)
 	    throws SAXException {
+	    	if(skipDepth > 0)
+	    	{
+	    		skipDepth--;
+	    		return;
+	    	}
+	    	endTag();
+	    }
+	    
+	    /**
+	     * Build the innermost open element and add it to its parent.
+	     */
+	    private void endTag() {
 	    	TagBuilder builder = builderStack.pop();
 	    	HtmlTag tag = builder.build();
 	    	
@@ -136,14 +625,36 @@ public class HtmlParser {
 	    	{
 	    		root = tag;
 	    	}
-	        System.out.println("end element      : " + localName);
 	    }
 
 	    @Override
 		public void characters(char ch[], int start, int length)
 	    throws SAXException {
-	    	TagBuilder builder = builderStack.pop();
-	    	builder.withText(new String(ch));	        
+	    	checkDeadline();
+	    	if(skipDepth > 0 || builderStack.isEmpty())
+	    	{
+	    		return;
+	    	}
+	    	if(textChars + length > options.getMaxTextChars())
+	    	{
+	    		limitHit(ParseLimit.TEXT, false);
+	    		length = (int) (options.getMaxTextChars() - textChars);
+	    		if(length <= 0)
+	    		{
+	    			return;
+	    		}
+	    	}
+	    	textChars += length;
+	    	//Only the given range of the buffer is the text, and it may arrive in pieces.
+	    	String text = pool != null && length <= MAX_POOLED_TEXT
+	    			? pool.intern(ch, start, length)
+	    			: new String(ch, start, length);
+	    	builderStack.peek().andText(text);
+	    }
+	    
+	    private String pooled(String value)
+	    {
+	    	return pool != null ? pool.intern(value) : value;
 	    }
 	}
 
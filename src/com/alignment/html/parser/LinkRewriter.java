@@ -0,0 +1,222 @@
+package com.alignment.html.parser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+import org.ccil.cowan.tagsoup.XMLWriter;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * Rewrites the links of an html document as it streams through the parser.
+ * The document is never held in memory: each element is written out as soon
+ * as it has been parsed, with the {@code href} of every link and image map
+ * area that points at a web page replaced by the mapper. Other links, such as
+ * {@code mailto:} and fragment links, are left as they are.
+ *
+ * The output is the document as the parser understands it, so missing tags
+ * are closed and characters outside ASCII are written as character
+ * references, which keeps the output valid in any charset.
+ */
+public final class LinkRewriter {
+
+	/**
+	 * Decides what a link is rewritten to.
+	 */
+	public interface LinkMapper {
+
+		/**
+		 * @param href
+		 *            The original link.
+		 *
+		 * @param position
+		 *            The position of the link in the document, counting from
+		 *            zero.
+		 *
+		 * @return The link to write instead.
+		 */
+		String map(String href, int position) throws SAXException;
+	}
+
+	private LinkRewriter() {
+	}
+
+	/**
+	 * Rewrite the links of a document.
+	 *
+	 * @param in
+	 *            The html to read.
+	 *
+	 * @param out
+	 *            Where the rewritten html is written. It is not closed.
+	 *
+	 * @param mapper
+	 *            Maps each link to its replacement.
+	 *
+	 * @return The number of links that were rewritten.
+	 */
+	public static int rewrite(Reader in, Writer out, LinkMapper mapper)
+			throws IOException, SAXException {
+		RewriteStage stage = stage(out, mapper);
+		new ParsePipeline().add(stage).parse(in);
+		out.flush();
+		return stage.getLinkCount();
+	}
+
+	/**
+	 * Create a pipeline stage that writes the document with its links
+	 * rewritten, so the links can be rewritten in the same pass as other
+	 * work on the document.
+	 * 
+	 * @param out
+	 *            Where the rewritten html is written. It is not closed.
+	 * 
+	 * @param mapper
+	 *            Maps each link to its replacement.
+	 */
+	public static RewriteStage stage(Writer out, LinkMapper mapper) {
+		XMLWriter writer = new XMLWriter(out);
+		writer.setOutputProperty(XMLWriter.METHOD, "html");
+		writer.setOutputProperty(XMLWriter.OMIT_XML_DECLARATION, "yes");
+
+		RewritingFilter filter = new RewritingFilter(out, writer, mapper);
+		filter.setContentHandler(writer);
+		return new RewriteStage(filter);
+	}
+
+	/**
+	 * Pipeline stage that rewrites the links of a document.
+	 */
+	public static final class RewriteStage implements ParsePipeline.Stage {
+
+		private final RewritingFilter filter;
+
+		private RewriteStage(RewritingFilter filter) {
+			this.filter = filter;
+		}
+
+		@Override
+		public ContentHandler getContentHandler() {
+			return filter;
+		}
+
+		@Override
+		public LexicalHandler getLexicalHandler() {
+			return filter;
+		}
+
+		@Override
+		public boolean needsText() {
+			return true;
+		}
+
+		/**
+		 * @return The number of links that were rewritten.
+		 */
+		public int getLinkCount() {
+			return filter.links;
+		}
+	}
+
+	// Only absolute web links are tracked.
+	private static boolean isWebLink(String href) {
+		return href.regionMatches(true, 0, "http://", 0, 7)
+				|| href.regionMatches(true, 0, "https://", 0, 8);
+	}
+
+	/**
+	 * Replaces link targets on their way from the parser to the writer.
+	 */
+	private static final class RewritingFilter extends XMLFilterImpl implements
+			LexicalHandler {
+
+		private final Writer out;
+
+		private final XMLWriter writer;
+
+		private final LinkMapper mapper;
+
+		private int links = 0;
+
+		RewritingFilter(Writer out, XMLWriter writer, LinkMapper mapper) {
+			this.out = out;
+			this.writer = writer;
+			this.mapper = mapper;
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName,
+				Attributes atts) throws SAXException {
+			Attributes attributes = atts;
+			// Without namespaces the name is only reported as the qName.
+			String name = localName.isEmpty() ? qName : localName;
+			if ("a".equalsIgnoreCase(name) || "area".equalsIgnoreCase(name)) {
+				int href = atts.getIndex("href");
+				if (href >= 0 && isWebLink(atts.getValue(href).trim())) {
+					AttributesImpl rewritten = new AttributesImpl(atts);
+					rewritten.setValue(href,
+							mapper.map(atts.getValue(href).trim(), links++));
+					attributes = rewritten;
+				}
+			}
+			super.startElement(uri, localName, qName, attributes);
+		}
+
+		// The writer prints a doctype without identifiers as a broken
+		// SYSTEM doctype, so the short html5 form is written directly.
+		@Override
+		public void startDTD(String name, String publicId, String systemId)
+				throws SAXException {
+			if (isEmpty(publicId) && isEmpty(systemId)) {
+				try {
+					out.write("<!DOCTYPE " + name + ">\n");
+				} catch (IOException e) {
+					throw new SAXException(e);
+				}
+			} else {
+				writer.startDTD(name, publicId, systemId);
+			}
+		}
+
+		@Override
+		public void endDTD() throws SAXException {
+			writer.endDTD();
+		}
+
+		@Override
+		public void startEntity(String name) throws SAXException {
+			writer.startEntity(name);
+		}
+
+		@Override
+		public void endEntity(String name) throws SAXException {
+			writer.endEntity(name);
+		}
+
+		@Override
+		public void startCDATA() throws SAXException {
+			writer.startCDATA();
+		}
+
+		@Override
+		public void endCDATA() throws SAXException {
+			writer.endCDATA();
+		}
+
+		@Override
+		public void comment(char[] ch, int start, int length)
+				throws SAXException {
+			// Conditional comments carry the Outlook specific markup.
+			writer.comment(ch, start, length);
+		}
+
+		private static boolean isEmpty(String value) {
+			return value == null || value.isEmpty();
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package com.alignment.html.parser;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Options of a parse: the pool its strings are shared through and the limits
+ * that keep a hostile or broken document from using unbounded memory and
+ * time. Limits are checked as the document is parsed:
+ * <ul>
+ * <li>the number of elements,</li>
+ * <li>the depth of the element tree,</li>
+ * <li>the number of text characters, and</li>
+ * <li>the time spent parsing.</li>
+ * </ul>
+ * What happens when a limit is hit is set by the {@link LimitAction}.
+ * Options are immutable and built with {@link #builder()}.
+ */
+public final class ParseOptions {
+
+	/**
+	 * What the parser does when a limit is hit.
+	 */
+	public enum LimitAction {
+		/**
+		 * Drop the element or text that went over the limit and keep parsing
+		 * the rest of the document. Running out of time stops the parse.
+		 */
+		TRUNCATE,
+		/**
+		 * Stop parsing and return the document parsed so far.
+		 */
+		ABORT;
+	}
+
+	/**
+	 * A limit of a parse.
+	 */
+	public enum ParseLimit {
+		ELEMENTS, DEPTH, TEXT, DEADLINE;
+	}
+
+	private static final ParseOptions DEFAULTS = builder().build();
+
+	private final StringPool pool;
+
+	private final int maxElements;
+
+	private final int maxDepth;
+
+	private final long maxTextChars;
+
+	private final long timeoutNanos;
+
+	private final LimitAction limitAction;
+
+	private ParseOptions(Builder builder) {
+		this.pool = builder.pool;
+		this.maxElements = builder.maxElements;
+		this.maxDepth = builder.maxDepth;
+		this.maxTextChars = builder.maxTextChars;
+		this.timeoutNanos = builder.timeoutNanos;
+		this.limitAction = builder.limitAction;
+	}
+
+	/**
+	 * @return Options without a pool or limits.
+	 */
+	public static ParseOptions defaults() {
+		return DEFAULTS;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * @return The pool of strings, or {@code null}.
+	 */
+	public StringPool getPool() {
+		return pool;
+	}
+
+	public int getMaxElements() {
+		return maxElements;
+	}
+
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	public long getMaxTextChars() {
+		return maxTextChars;
+	}
+
+	/**
+	 * @return The longest time a parse may take, in nanoseconds.
+	 */
+	public long getTimeoutNanos() {
+		return timeoutNanos;
+	}
+
+	public LimitAction getLimitAction() {
+		return limitAction;
+	}
+
+	/**
+	 * Builder of parse options. Every limit is off until it is set.
+	 */
+	public static final class Builder {
+
+		private StringPool pool;
+
+		private int maxElements = Integer.MAX_VALUE;
+
+		private int maxDepth = Integer.MAX_VALUE;
+
+		private long maxTextChars = Long.MAX_VALUE;
+
+		private long timeoutNanos = Long.MAX_VALUE;
+
+		private LimitAction limitAction = LimitAction.TRUNCATE;
+
+		private Builder() {
+		}
+
+		/**
+		 * Share the strings of the document through a pool.
+		 * 
+		 * @param pool The pool, {@code null} to not pool strings.
+		 */
+		public Builder withPool(StringPool pool) {
+			this.pool = pool;
+			return this;
+		}
+
+		public Builder maxElements(int maxElements) {
+			checkArgument(maxElements > 0, "Maximum elements must be positive.");
+			this.maxElements = maxElements;
+			return this;
+		}
+
+		public Builder maxDepth(int maxDepth) {
+			checkArgument(maxDepth > 0, "Maximum depth must be positive.");
+			this.maxDepth = maxDepth;
+			return this;
+		}
+
+		public Builder maxTextChars(long maxTextChars) {
+			checkArgument(maxTextChars >= 0,
+					"Maximum text must not be negative.");
+			this.maxTextChars = maxTextChars;
+			return this;
+		}
+
+		/**
+		 * Limit the time the parse may take, measured from when it starts.
+		 */
+		public Builder timeout(long timeout, TimeUnit unit) {
+			checkArgument(timeout > 0, "Timeout must be positive.");
+			this.timeoutNanos = unit.toNanos(timeout);
+			return this;
+		}
+
+		public Builder onLimit(LimitAction limitAction) {
+			this.limitAction = checkNotNull(limitAction);
+			return this;
+		}
+
+		public ParseOptions build() {
+			return new ParseOptions(this);
+		}
+	}
+}
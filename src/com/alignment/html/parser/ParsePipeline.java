@@ -0,0 +1,388 @@
+package com.alignment.html.parser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ccil.cowan.tagsoup.HTMLSchema;
+import org.ccil.cowan.tagsoup.Parser;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+
+/**
+ * Parses a document once and hands every event to several stages, such as
+ * the tree builder of {@link HtmlParser#treeStage(ParseOptions)}, the link
+ * rewriter of {@link LinkRewriter#stage}, a {@link TextExtractor} and
+ * {@link DocumentStats}. Each stage keeps its own state:
+ * <ul>
+ * <li>text is only handed to the stages that need it,</li>
+ * <li>comments and the doctype are only handed to stages with a lexical
+ * handler, and</li>
+ * <li>a stage that throws a {@link StageStoppedException} gets no more
+ * events while the others carry on.</li>
+ * </ul>
+ *
+ * The document is read with namespaces off and without the default
+ * attributes of the html schema, so elements are reported by their qualified
+ * name and carry the attributes of the source.
+ */
+public final class ParsePipeline {
+
+	/**
+	 * A consumer of the events of a parse.
+	 */
+	public interface Stage {
+
+		/**
+		 * @return The handler of the elements and text of the document.
+		 */
+		ContentHandler getContentHandler();
+
+		/**
+		 * @return The handler of comments and the doctype, or {@code null} if
+		 *         the stage does not need them.
+		 */
+		LexicalHandler getLexicalHandler();
+
+		/**
+		 * @return Whether the stage needs the text of the document.
+		 */
+		boolean needsText();
+	}
+
+	/**
+	 * Thrown by a stage that wants no more events. The rest of the pipeline
+	 * keeps parsing.
+	 */
+	@SuppressWarnings("serial")
+	public static class StageStoppedException extends SAXException {
+
+		public StageStoppedException(String message) {
+			super(message);
+		}
+	}
+
+	private final List<Stage> stages = new ArrayList<>();
+
+	/**
+	 * Add a stage. Stages receive each event in the order they were added.
+	 * 
+	 * @return The pipeline.
+	 */
+	public ParsePipeline add(Stage stage) {
+		stages.add(stage);
+		return this;
+	}
+
+	/**
+	 * Parse html read from a reader, which is not closed.
+	 */
+	public void parse(Reader in) throws IOException, SAXException {
+		parse(new InputSource(in));
+	}
+
+	/**
+	 * Parse html bytes read from a stream, which is not closed. The charset
+	 * is detected as by {@link HtmlParser#parseSingleTag(InputStream, StringPool)}.
+	 */
+	public void parse(InputStream in) throws IOException, SAXException {
+		parse(HtmlParser.sniffedSource(in));
+	}
+
+	/**
+	 * Parse a document, handing its events to every stage.
+	 */
+	public void parse(InputSource source) throws IOException, SAXException {
+		Parser parser = newParser();
+		Tee tee = new Tee(stages);
+		parser.setContentHandler(tee);
+		parser.setProperty(Parser.lexicalHandlerProperty, tee);
+		parser.parse(source);
+	}
+
+	/**
+	 * Create a parser with a schema of its own. The parser adds every unknown
+	 * element it meets, such as {@code o:p} or {@code v:shape}, to its schema,
+	 * so a shared schema would grow without bound and be written to by
+	 * parses on several threads at once.
+	 */
+	static Parser newParser() throws SAXException {
+		Parser parser = new Parser();
+		parser.setProperty(Parser.schemaProperty, new HTMLSchema());
+		parser.setFeature(Parser.namespacesFeature, false);
+		parser.setFeature(Parser.namespacePrefixesFeature, false);
+		// Keep the attributes of the source, not the defaults of the schema.
+		parser.setFeature(Parser.defaultAttributesFeature, false);
+		return parser;
+	}
+
+	/**
+	 * Hands each event to the stages that want it.
+	 */
+	private static final class Tee implements ContentHandler, LexicalHandler {
+
+		private final ContentHandler[] content;
+
+		private final LexicalHandler[] lexical;
+
+		private final boolean[] text;
+
+		private final boolean[] stopped;
+
+		Tee(List<Stage> stages) {
+			int size = stages.size();
+			content = new ContentHandler[size];
+			lexical = new LexicalHandler[size];
+			text = new boolean[size];
+			stopped = new boolean[size];
+			for (int i = 0; i < size; i++) {
+				Stage stage = stages.get(i);
+				content[i] = stage.getContentHandler();
+				lexical[i] = stage.getLexicalHandler();
+				text[i] = stage.needsText();
+			}
+		}
+
+		@Override
+		public void setDocumentLocator(Locator locator) {
+			for (ContentHandler handler : content) {
+				handler.setDocumentLocator(locator);
+			}
+		}
+
+		@Override
+		public void startDocument() throws SAXException {
+			for (int i = 0; i < content.length; i++) {
+				if (!stopped[i]) {
+					try {
+						content[i].startDocument();
+					} catch (StageStoppedException e) {
+						stopped[i] = true;
+					}
+				}
+			}
+		}
+
+		@Override
+		public void endDocument() throws SAXException {
+			for (int i = 0; i < content.length; i++) {
+				if (!stopped[i]) {
+					try {
+						content[i].endDocument();
+					} catch (StageStoppedException e) {
+						stopped[i] = true;
+					}
+				}
+			}
+		}
+
+		@Override
+		public void startPrefixMapping(String prefix, String uri)
+				throws SAXException {
+			for (int i = 0; i < content.length; i++) {
+				if (!stopped[i]) {
+					try {
+						content[i].startPrefixMapping(prefix, uri);
+					} catch (StageStoppedException e) {
+						stopped[i] = true;
+					}
+				}
+			}
+		}
+
+		@Override
+		public void endPrefixMapping(String prefix) throws SAXException {
+			for (int i = 0; i < content.length; i++) {
+				if (!stopped[i]) {
+					try {
+						content[i].endPrefixMapping(prefix);
+					} catch (StageStoppedException e) {
+						stopped[i] = true;
+					}
+				}
+			}
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName,
+				Attributes atts) throws SAXException {
+			for (int i = 0; i < content.length; i++) {
+				if (!stopped[i]) {
+					try {
+						content[i].startElement(uri, localName, qName, atts);
+					} catch (StageStoppedException e) {
+						stopped[i] = true;
+					}
+				}
+			}
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName)
+				throws SAXException {
+			for (int i = 0; i < content.length; i++) {
+				if (!stopped[i]) {
+					try {
+						content[i].endElement(uri, localName, qName);
+					} catch (StageStoppedException e) {
+						stopped[i] = true;
+					}
+				}
+			}
+		}
+
+		@Override
+		public void characters(char[] ch, int start, int length)
+				throws SAXException {
+			for (int i = 0; i < content.length; i++) {
+				if (text[i] && !stopped[i]) {
+					try {
+						content[i].characters(ch, start, length);
+					} catch (StageStoppedException e) {
+						stopped[i] = true;
+					}
+				}
+			}
+		}
+
+		@Override
+		public void ignorableWhitespace(char[] ch, int start, int length)
+				throws SAXException {
+			for (int i = 0; i < content.length; i++) {
+				if (text[i] && !stopped[i]) {
+					try {
+						content[i].ignorableWhitespace(ch, start, length);
+					} catch (StageStoppedException e) {
+						stopped[i] = true;
+					}
+				}
+			}
+		}
+
+		@Override
+		public void processingInstruction(String target, String data)
+				throws SAXException {
+			for (int i = 0; i < content.length; i++) {
+				if (!stopped[i]) {
+					try {
+						content[i].processingInstruction(target, data);
+					} catch (StageStoppedException e) {
+						stopped[i] = true;
+					}
+				}
+			}
+		}
+
+		@Override
+		public void skippedEntity(String name) throws SAXException {
+			for (int i = 0; i < content.length; i++) {
+				if (!stopped[i]) {
+					try {
+						content[i].skippedEntity(name);
+					} catch (StageStoppedException e) {
+						stopped[i] = true;
+					}
+				}
+			}
+		}
+
+		@Override
+		public void startDTD(String name, String publicId, String systemId)
+				throws SAXException {
+			for (int i = 0; i < lexical.length; i++) {
+				if (lexical[i] != null && !stopped[i]) {
+					try {
+						lexical[i].startDTD(name, publicId, systemId);
+					} catch (StageStoppedException e) {
+						stopped[i] = true;
+					}
+				}
+			}
+		}
+
+		@Override
+		public void endDTD() throws SAXException {
+			for (int i = 0; i < lexical.length; i++) {
+				if (lexical[i] != null && !stopped[i]) {
+					try {
+						lexical[i].endDTD();
+					} catch (StageStoppedException e) {
+						stopped[i] = true;
+					}
+				}
+			}
+		}
+
+		@Override
+		public void startEntity(String name) throws SAXException {
+			for (int i = 0; i < lexical.length; i++) {
+				if (lexical[i] != null && !stopped[i]) {
+					try {
+						lexical[i].startEntity(name);
+					} catch (StageStoppedException e) {
+						stopped[i] = true;
+					}
+				}
+			}
+		}
+
+		@Override
+		public void endEntity(String name) throws SAXException {
+			for (int i = 0; i < lexical.length; i++) {
+				if (lexical[i] != null && !stopped[i]) {
+					try {
+						lexical[i].endEntity(name);
+					} catch (StageStoppedException e) {
+						stopped[i] = true;
+					}
+				}
+			}
+		}
+
+		@Override
+		public void startCDATA() throws SAXException {
+			for (int i = 0; i < lexical.length; i++) {
+				if (lexical[i] != null && !stopped[i]) {
+					try {
+						lexical[i].startCDATA();
+					} catch (StageStoppedException e) {
+						stopped[i] = true;
+					}
+				}
+			}
+		}
+
+		@Override
+		public void endCDATA() throws SAXException {
+			for (int i = 0; i < lexical.length; i++) {
+				if (lexical[i] != null && !stopped[i]) {
+					try {
+						lexical[i].endCDATA();
+					} catch (StageStoppedException e) {
+						stopped[i] = true;
+					}
+				}
+			}
+		}
+
+		@Override
+		public void comment(char[] ch, int start, int length)
+				throws SAXException {
+			for (int i = 0; i < lexical.length; i++) {
+				if (lexical[i] != null && !stopped[i]) {
+					try {
+						lexical[i].comment(ch, start, length);
+					} catch (StageStoppedException e) {
+						stopped[i] = true;
+					}
+				}
+			}
+		}
+	}
+}
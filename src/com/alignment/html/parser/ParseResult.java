@@ -0,0 +1,66 @@
+package com.alignment.html.parser;
+
+import com.alignment.html.HtmlDocument;
+import com.alignment.html.HtmlTag;
+import com.alignment.html.parser.ParseOptions.LimitAction;
+import com.alignment.html.parser.ParseOptions.ParseLimit;
+
+/**
+ * The outcome of a parse with {@link ParseOptions}: the document and, if the
+ * parse went over one of its limits, the first limit it hit.
+ */
+public final class ParseResult {
+
+	private final HtmlDocument document;
+
+	private final ParseLimit limit;
+
+	private final boolean complete;
+
+	ParseResult(HtmlDocument document, ParseLimit limit, boolean complete) {
+		this.document = document;
+		this.limit = limit;
+		this.complete = complete;
+	}
+
+	/**
+	 * @return The root of the document, {@code null} if nothing could be
+	 *         parsed.
+	 */
+	public HtmlTag getRoot() {
+		return document != null ? document.getRoot() : null;
+	}
+
+	/**
+	 * @return The parsed document, {@code null} if nothing could be parsed.
+	 */
+	public HtmlDocument getDocument() {
+		return document;
+	}
+
+	/**
+	 * @return The first limit the parse hit, or {@code null} if it stayed
+	 *         within all of them.
+	 */
+	public ParseLimit getLimit() {
+		return limit;
+	}
+
+	/**
+	 * @return {@code true} if the whole document was read, which is the case
+	 *         when no limit was hit or the limits only truncated parts of it.
+	 * 
+	 * @see LimitAction
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * @return {@code true} if the document was parsed without hitting a
+	 *         limit.
+	 */
+	public boolean isWithinLimits() {
+		return limit == null;
+	}
+}
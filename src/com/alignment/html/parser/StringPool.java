@@ -0,0 +1,184 @@
+package com.alignment.html.parser;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * Bounded pool of strings shared by the documents parsed with it, so the
+ * attribute names, attribute values and short texts that repeat across the
+ * personalized variants of an email are held once. A pool is meant to be
+ * scoped to a campaign or a batch of documents and dropped with it.
+ *
+ * The pool is a table of slots indexed by the hash of the string. A string
+ * whose slot holds a different string replaces it, so the pool never grows
+ * past its capacity and strings that stop repeating are evicted by the ones
+ * that do. Lookups from a character range only create a string on a miss.
+ * The pool is safe for concurrent use without locking.
+ */
+public final class StringPool {
+
+	/**
+	 * Default number of slots.
+	 */
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+
+	/**
+	 * Default length of the longest string that is pooled.
+	 */
+	public static final int DEFAULT_MAX_LENGTH = 512;
+
+	private final AtomicReferenceArray<String> slots;
+
+	private final int mask;
+
+	private final int maxLength;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	public StringPool() {
+		this(DEFAULT_CAPACITY, DEFAULT_MAX_LENGTH);
+	}
+
+	/**
+	 * @param capacity
+	 *            The number of slots, rounded up to a power of two.
+	 * 
+	 * @param maxLength
+	 *            Longer strings are not pooled.
+	 */
+	public StringPool(int capacity, int maxLength) {
+		checkArgument(capacity > 0 && capacity <= 1 << 30,
+				"Capacity must be between 1 and 2^30.");
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		this.slots = new AtomicReferenceArray<>(size);
+		this.mask = size - 1;
+		this.maxLength = maxLength;
+	}
+
+	/**
+	 * Get the pooled copy of a string, pooling it if it is not there yet.
+	 * 
+	 * @return The pooled string, or the string itself if it is too long to
+	 *         pool. {@code null} is returned as is.
+	 */
+	public String intern(String value) {
+		if (value == null || value.length() > maxLength) {
+			return value;
+		}
+		int slot = slot(value.hashCode());
+		String pooled = slots.get(slot);
+		if (value.equals(pooled)) {
+			hits.incrementAndGet();
+			return pooled;
+		}
+		store(slot, pooled, value);
+		return value;
+	}
+
+	/**
+	 * Get the pooled string made of a range of characters, creating and
+	 * pooling it if it is not there yet.
+	 */
+	public String intern(char[] chars, int start, int length) {
+		if (length > maxLength) {
+			return new String(chars, start, length);
+		}
+		int hash = 0;
+		for (int i = start; i < start + length; i++) {
+			hash = 31 * hash + chars[i];
+		}
+		int slot = slot(hash);
+		String pooled = slots.get(slot);
+		if (pooled != null && matches(pooled, chars, start, length)) {
+			hits.incrementAndGet();
+			return pooled;
+		}
+		String value = new String(chars, start, length);
+		store(slot, pooled, value);
+		return value;
+	}
+
+	/**
+	 * @return The number of lookups that found their string.
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * @return The number of lookups of poolable strings that did not find
+	 *         them.
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * @return The number of pooled strings replaced by another string.
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return The share of lookups that found their string, or 0 if there
+	 *         were none.
+	 */
+	public double hitRate() {
+		long found = hits.get();
+		long total = found + misses.get();
+		return total == 0 ? 0 : (double) found / total;
+	}
+
+	/**
+	 * @return The number of slots.
+	 */
+	public int capacity() {
+		return slots.length();
+	}
+
+	@Override
+	public String toString() {
+		return MoreObjects.toStringHelper(StringPool.class)
+				.add("capacity", capacity()).add("hits", getHitCount())
+				.add("misses", getMissCount())
+				.add("evictions", getEvictionCount()).toString();
+	}
+
+	// The high bits are folded in as strings often differ only at the end.
+	private int slot(int hash) {
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+
+	// Losing a race to another string is fine, the slot holds one of them.
+	private void store(int slot, String current, String value) {
+		misses.incrementAndGet();
+		if (slots.compareAndSet(slot, current, value) && current != null) {
+			evictions.incrementAndGet();
+		}
+	}
+
+	private static boolean matches(String pooled, char[] chars, int start,
+			int length) {
+		if (pooled.length() != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (pooled.charAt(i) != chars[start + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,110 @@
+package com.alignment.html.parser;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.DefaultHandler;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Pipeline stage that extracts the plain text alternative of an email. Runs
+ * of whitespace are collapsed into one space, block elements and line breaks
+ * start a new line, and the content of scripts, styles and the head is left
+ * out.
+ */
+public final class TextExtractor extends DefaultHandler implements
+		ParsePipeline.Stage {
+
+	private static final ImmutableSet<String> BLOCKS = ImmutableSet.of("p",
+			"div", "br", "tr", "li", "table", "ul", "ol", "blockquote", "hr",
+			"h1", "h2", "h3", "h4", "h5", "h6", "title");
+
+	private static final ImmutableSet<String> HIDDEN = ImmutableSet.of(
+			"script", "style", "head");
+
+	private final StringBuilder text = new StringBuilder();
+
+	// Depth within elements whose content is left out.
+	private int hiddenDepth = 0;
+
+	private boolean pendingSpace = false;
+
+	@Override
+	public ContentHandler getContentHandler() {
+		return this;
+	}
+
+	@Override
+	public LexicalHandler getLexicalHandler() {
+		return null;
+	}
+
+	@Override
+	public boolean needsText() {
+		return true;
+	}
+
+	@Override
+	public void startElement(String uri, String localName, String qName,
+			Attributes attributes) {
+		String name = name(localName, qName);
+		if (HIDDEN.contains(name)) {
+			hiddenDepth++;
+		} else if (BLOCKS.contains(name)) {
+			newLine();
+		}
+	}
+
+	@Override
+	public void endElement(String uri, String localName, String qName) {
+		String name = name(localName, qName);
+		if (HIDDEN.contains(name)) {
+			hiddenDepth--;
+		} else if (BLOCKS.contains(name)) {
+			newLine();
+		}
+	}
+
+	@Override
+	public void characters(char[] ch, int start, int length) {
+		if (hiddenDepth > 0) {
+			return;
+		}
+		for (int i = start; i < start + length; i++) {
+			char c = ch[i];
+			if (Character.isWhitespace(c) || c == '\u00a0') {
+				pendingSpace = true;
+			} else {
+				if (pendingSpace && text.length() > 0
+						&& text.charAt(text.length() - 1) != '\n') {
+					text.append(' ');
+				}
+				pendingSpace = false;
+				text.append(c);
+			}
+		}
+	}
+
+	/**
+	 * @return The text of the document.
+	 */
+	public String getText() {
+		int end = text.length();
+		while (end > 0 && text.charAt(end - 1) == '\n') {
+			end--;
+		}
+		return text.substring(0, end);
+	}
+
+	private void newLine() {
+		pendingSpace = false;
+		if (text.length() > 0 && text.charAt(text.length() - 1) != '\n') {
+			text.append('\n');
+		}
+	}
+
+	static String name(String localName, String qName) {
+		return (localName.isEmpty() ? qName : localName).toLowerCase();
+	}
+}
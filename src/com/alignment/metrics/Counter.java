@@ -0,0 +1,26 @@
+package com.alignment.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Monotonic event counter.
+ */
+public final class Counter {
+
+	private final AtomicLong count = new AtomicLong();
+
+	Counter() {
+	}
+
+	public void increment() {
+		count.incrementAndGet();
+	}
+
+	public void add(long delta) {
+		count.addAndGet(delta);
+	}
+
+	public long get() {
+		return count.get();
+	}
+}
@@ -0,0 +1,13 @@
+package com.alignment.metrics;
+
+/**
+ * A value that is sampled when the metrics are reported, such as the depth of
+ * a queue.
+ */
+public interface Gauge {
+
+	/**
+	 * @return The current value.
+	 */
+	long get();
+}
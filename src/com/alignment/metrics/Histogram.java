@@ -0,0 +1,140 @@
+package com.alignment.metrics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of non negative values with log linear buckets, in the
+ * style of HdrHistogram. Values below 32 are counted exactly, larger values
+ * fall into one of 16 buckets per power of two, so a reported value is within
+ * about 6% of the recorded one. Recording is a handful of atomic increments
+ * and never allocates.
+ */
+public final class Histogram {
+
+	// Values below this are recorded exactly.
+	private static final int LINEAR_BUCKETS = 32;
+
+	// Buckets per power of two above the linear range.
+	private static final int SUB_BUCKETS = 16;
+
+	private static final int SUB_BUCKET_BITS = 4;
+
+	// The exponent of the first power of two above the linear range.
+	private static final int FIRST_EXPONENT = 5;
+
+	private static final int BUCKET_COUNT = LINEAR_BUCKETS
+			+ (63 - FIRST_EXPONENT) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong sum = new AtomicLong();
+
+	private final AtomicLong max = new AtomicLong();
+
+	private final String unit;
+
+	Histogram(String unit) {
+		this.unit = unit;
+	}
+
+	/**
+	 * Record a value. Negative values are recorded as zero.
+	 */
+	public void record(long value) {
+		long recorded = Math.max(0, value);
+		buckets.incrementAndGet(bucket(recorded));
+		count.incrementAndGet();
+		sum.addAndGet(recorded);
+		long current = max.get();
+		while (recorded > current && !max.compareAndSet(current, recorded)) {
+			current = max.get();
+		}
+	}
+
+	/**
+	 * Record the time elapsed since the provided {@link System#nanoTime()}
+	 * reading, in microseconds.
+	 */
+	public void recordSince(long startNanos) {
+		record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+	}
+
+	/**
+	 * @return The unit of the recorded values.
+	 */
+	public String getUnit() {
+		return unit;
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long total = count.get();
+		return total == 0 ? 0 : (double) sum.get() / total;
+	}
+
+	/**
+	 * Get the value at the provided percentile. The bucket holding the
+	 * percentile is reported by its highest value.
+	 *
+	 * @param percentile
+	 *            The percentile, between 0 and 100.
+	 */
+	public long getPercentile(double percentile) {
+		checkArgument(percentile >= 0 && percentile <= 100,
+				"Percentile must be between 0 and 100.");
+		long total = 0;
+		long[] counts = new long[BUCKET_COUNT];
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(highestValue(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	static int bucket(long value) {
+		if (value < LINEAR_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS))
+				& (SUB_BUCKETS - 1);
+		return LINEAR_BUCKETS + (exponent - FIRST_EXPONENT) * SUB_BUCKETS
+				+ subBucket;
+	}
+
+	static long highestValue(int bucket) {
+		if (bucket < LINEAR_BUCKETS) {
+			return bucket;
+		}
+		int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS
+				+ FIRST_EXPONENT;
+		int subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+		int shift = exponent - SUB_BUCKET_BITS;
+		long lowest = (long) (SUB_BUCKETS + subBucket) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}
@@ -0,0 +1,159 @@
+package com.alignment.metrics;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Process wide registry of counters, histograms and gauges. Metrics are
+ * created on first use and looked up by name, so hot paths should hold on to
+ * the returned instances rather than looking them up on every event.
+ *
+ * Metric names are dot separated, for example {@code redirect.memcache}.
+ */
+public final class Metrics {
+
+	/**
+	 * Unit of histograms recording latencies.
+	 */
+	public static final String MICROSECONDS = "us";
+
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+	private static final ConcurrentMap<String, Counter> counters = new ConcurrentSkipListMap<>();
+
+	private static final ConcurrentMap<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+
+	private static final ConcurrentMap<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+
+	private Metrics() {
+	}
+
+	/**
+	 * Get the counter with the provided name, creating it if needed.
+	 */
+	public static Counter counter(String name) {
+		Counter counter = counters.get(name);
+		if (counter == null) {
+			Counter created = new Counter();
+			counter = counters.putIfAbsent(checkNotNull(name), created);
+			if (counter == null) {
+				counter = created;
+			}
+		}
+		return counter;
+	}
+
+	/**
+	 * Get the latency histogram with the provided name, recording
+	 * microseconds, creating it if needed.
+	 */
+	public static Histogram latency(String name) {
+		return histogram(name, MICROSECONDS);
+	}
+
+	/**
+	 * Get the histogram with the provided name, creating it with the provided
+	 * unit if needed.
+	 */
+	public static Histogram histogram(String name, String unit) {
+		Histogram histogram = histograms.get(name);
+		if (histogram == null) {
+			Histogram created = new Histogram(unit);
+			histogram = histograms.putIfAbsent(checkNotNull(name), created);
+			if (histogram == null) {
+				histogram = created;
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Register a gauge, replacing any gauge with the same name.
+	 */
+	public static void gauge(String name, Gauge gauge) {
+		gauges.put(checkNotNull(name), checkNotNull(gauge));
+	}
+
+	/**
+	 * Write all metrics as plain text, one metric per line.
+	 */
+	public static void writeText(Appendable out) throws IOException {
+		for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+			out.append(entry.getKey()).append(' ')
+					.append(String.valueOf(entry.getValue().get()))
+					.append('\n');
+		}
+		for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+			out.append(entry.getKey()).append(' ')
+					.append(String.valueOf(entry.getValue().get()))
+					.append('\n');
+		}
+		for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+			Histogram histogram = entry.getValue();
+			out.append(entry.getKey()).append(" count=")
+					.append(String.valueOf(histogram.getCount()))
+					.append(" mean=")
+					.append(String.format(Locale.ROOT, "%.1f", histogram.getMean()));
+			for (double percentile : PERCENTILES) {
+				out.append(" p").append(percentileName(percentile))
+						.append('=')
+						.append(String.valueOf(histogram.getPercentile(percentile)));
+			}
+			out.append(" max=").append(String.valueOf(histogram.getMax()))
+					.append(' ').append(histogram.getUnit()).append('\n');
+		}
+	}
+
+	/**
+	 * Write all metrics as a JSON object with {@code counters},
+	 * {@code gauges} and {@code histograms} members.
+	 */
+	public static void writeJson(Appendable out) throws IOException {
+		out.append("{\"counters\":{");
+		String separator = "";
+		for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+			out.append(separator).append('"').append(entry.getKey())
+					.append("\":").append(String.valueOf(entry.getValue().get()));
+			separator = ",";
+		}
+		out.append("},\"gauges\":{");
+		separator = "";
+		for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+			out.append(separator).append('"').append(entry.getKey())
+					.append("\":").append(String.valueOf(entry.getValue().get()));
+			separator = ",";
+		}
+		out.append("},\"histograms\":{");
+		separator = "";
+		for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+			Histogram histogram = entry.getValue();
+			out.append(separator).append('"').append(entry.getKey())
+					.append("\":{\"unit\":\"").append(histogram.getUnit())
+					.append("\",\"count\":")
+					.append(String.valueOf(histogram.getCount()))
+					.append(",\"mean\":")
+					.append(String.format(Locale.ROOT, "%.1f", histogram.getMean()));
+			for (double percentile : PERCENTILES) {
+				out.append(",\"p").append(percentileName(percentile))
+						.append("\":")
+						.append(String.valueOf(histogram.getPercentile(percentile)));
+			}
+			out.append(",\"max\":").append(String.valueOf(histogram.getMax()))
+					.append('}');
+			separator = ",";
+		}
+		out.append("}}");
+	}
+
+	// 99.9 is written as 999.
+	private static String percentileName(double percentile) {
+		return percentile == Math.rint(percentile) ? String
+				.valueOf((long) percentile) : String.valueOf(percentile)
+				.replace(".", "");
+	}
+}
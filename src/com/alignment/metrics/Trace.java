@@ -0,0 +1,52 @@
+package com.alignment.metrics;
+
+/**
+ * Process wide switch for traced events. No recorder is installed by
+ * default, and call sites check {@link #isEnabled()} before creating an
+ * event, so tracing costs a volatile read while it is off:
+ *
+ * <pre>
+ * if (Trace.isEnabled()) {
+ * 	Trace.record(TraceEvent.redirectResolved(elapsed, id, tier));
+ * }
+ * </pre>
+ */
+public final class Trace {
+
+	private static volatile TraceRecorder recorder;
+
+	private Trace() {
+	}
+
+	/**
+	 * @return Whether a recorder is installed.
+	 */
+	public static boolean isEnabled() {
+		return recorder != null;
+	}
+
+	/**
+	 * Install a recorder, replacing the current one, or turn tracing off with
+	 * {@code null}.
+	 */
+	public static void setRecorder(TraceRecorder newRecorder) {
+		recorder = newRecorder;
+	}
+
+	/**
+	 * @return The installed recorder or {@code null}.
+	 */
+	public static TraceRecorder getRecorder() {
+		return recorder;
+	}
+
+	/**
+	 * Record an event if a recorder is installed.
+	 */
+	public static void record(TraceEvent event) {
+		TraceRecorder current = recorder;
+		if (current != null) {
+			current.record(event);
+		}
+	}
+}
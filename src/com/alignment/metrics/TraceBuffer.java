@@ -0,0 +1,55 @@
+package com.alignment.metrics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps the most recent events in a fixed size ring, overwriting the oldest.
+ * Recording is a single atomic increment and an array store, so the buffer
+ * can be left installed under load.
+ */
+public final class TraceBuffer implements TraceRecorder {
+
+	private final AtomicReferenceArray<TraceEvent> events;
+
+	private final AtomicLong next = new AtomicLong();
+
+	public TraceBuffer(int capacity) {
+		checkArgument(capacity > 0, "Capacity must be positive.");
+		events = new AtomicReferenceArray<>(capacity);
+	}
+
+	@Override
+	public void record(TraceEvent event) {
+		events.set((int) (next.getAndIncrement() % events.length()), event);
+	}
+
+	/**
+	 * @return The number of events recorded, including overwritten ones.
+	 */
+	public long getRecordedCount() {
+		return next.get();
+	}
+
+	/**
+	 * @return The buffered events, oldest first. Events recorded while the
+	 *         buffer is read may be missing or out of order.
+	 */
+	public List<TraceEvent> snapshot() {
+		long end = next.get();
+		int capacity = events.length();
+		long start = Math.max(0, end - capacity);
+		List<TraceEvent> snapshot = new ArrayList<>((int) (end - start));
+		for (long i = start; i < end; i++) {
+			TraceEvent event = events.get((int) (i % capacity));
+			if (event != null) {
+				snapshot.add(event);
+			}
+		}
+		return snapshot;
+	}
+}
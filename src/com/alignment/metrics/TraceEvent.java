@@ -0,0 +1,119 @@
+package com.alignment.metrics;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * A timed event on a hot path, such as a parsed document or a resolved
+ * redirect. Events are only created while a {@link TraceRecorder} is
+ * installed, see {@link Trace}.
+ */
+public final class TraceEvent {
+
+	/**
+	 * The kinds of traced events.
+	 */
+	public enum Type {
+		// An html document was parsed.
+		DOCUMENT_PARSED,
+		// A redirect was resolved by one of the redirect tiers.
+		REDIRECT_RESOLVED,
+		// A redirect request was served.
+		REDIRECT_REQUESTED,
+		// A redirect was evicted from the instance local cache.
+		CACHE_EVICTION;
+	}
+
+	private final Type type;
+
+	private final long timeMillis;
+
+	private final long durationNanos;
+
+	private final Map<String, Object> fields;
+
+	private TraceEvent(Type type, long durationNanos, Map<String, Object> fields) {
+		this.type = checkNotNull(type);
+		this.timeMillis = System.currentTimeMillis();
+		this.durationNanos = durationNanos;
+		this.fields = fields;
+	}
+
+	public static TraceEvent documentParsed(long durationNanos, int bytes,
+			int elements) {
+		return new TraceEvent(Type.DOCUMENT_PARSED, durationNanos,
+				ImmutableMap.<String, Object> of("bytes", bytes, "elements",
+						elements));
+	}
+
+	public static TraceEvent redirectResolved(long durationNanos, String id,
+			String tier) {
+		return new TraceEvent(Type.REDIRECT_RESOLVED, durationNanos,
+				ImmutableMap.<String, Object> of("id", String.valueOf(id),
+						"tier", tier));
+	}
+
+	public static TraceEvent redirectRequested(long durationNanos, String id,
+			int status) {
+		return new TraceEvent(Type.REDIRECT_REQUESTED, durationNanos,
+				ImmutableMap.<String, Object> of("id", String.valueOf(id),
+						"status", status));
+	}
+
+	public static TraceEvent cacheEviction(String id, String cause) {
+		return new TraceEvent(Type.CACHE_EVICTION, 0,
+				ImmutableMap.<String, Object> of("id", String.valueOf(id),
+						"cause", cause));
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * @return When the event was recorded, in milliseconds since the epoch.
+	 */
+	public long getTimeMillis() {
+		return timeMillis;
+	}
+
+	public long getDurationNanos() {
+		return durationNanos;
+	}
+
+	/**
+	 * @return The fields of the event, such as the id of a redirect.
+	 */
+	public Map<String, Object> getFields() {
+		return fields;
+	}
+
+	/**
+	 * Formats the event as a single line, for example
+	 * {@code 2015-03-01T12:00:00.000Z REDIRECT_RESOLVED 120us id=abc tier=LOCAL}.
+	 */
+	@Override
+	public String toString() {
+		SimpleDateFormat format = new SimpleDateFormat(
+				"yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		StringBuilder line = new StringBuilder();
+		line.append(format.format(new Date(timeMillis))).append(' ')
+				.append(type).append(' ')
+				.append(TimeUnit.NANOSECONDS.toMicros(durationNanos))
+				.append("us");
+		for (Map.Entry<String, Object> field : fields.entrySet()) {
+			line.append(' ').append(field.getKey()).append('=')
+					.append(field.getValue());
+		}
+		return line.toString();
+	}
+}
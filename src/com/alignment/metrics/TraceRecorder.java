@@ -0,0 +1,10 @@
+package com.alignment.metrics;
+
+/**
+ * Receives traced events. Recorders are called on the hot path of the
+ * request that produced the event, so they must not block.
+ */
+public interface TraceRecorder {
+
+	void record(TraceEvent event);
+}
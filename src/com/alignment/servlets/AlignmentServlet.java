@@ -1,53 +1,291 @@
 package com.alignment.servlets;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.alignment.metrics.Counter;
+import com.alignment.metrics.Histogram;
+import com.alignment.metrics.Metrics;
+import com.alignment.metrics.Trace;
+import com.alignment.metrics.TraceEvent;
+import com.alignment.store.CacheWarmer;
+import com.alignment.store.ClickClassifier;
+import com.alignment.store.ClickClassifier.ClickClass;
 import com.alignment.store.EmailLinkStore;
+import com.alignment.store.LiveIdFilter;
+import com.alignment.store.Redirect;
+import com.alignment.store.RedirectPolicy;
+import com.alignment.store.RedirectSnapshot;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 
+/**
+ * Redirects link ids to their urls. Each redirect is answered with the status
+ * and {@code Cache-Control} header of its {@link RedirectPolicy}, so links
+ * that do not need every click tracked can be cached by clients and proxies.
+ * HEAD requests are answered with the same headers. Links past the expiry
+ * of their policy are answered with a 410 and are not counted as clicks.
+ *
+ * Every redirected click is classified with a {@link ClickClassifier}. Real
+ * clicks are written as hits, the prefetches of bots and mail gateway
+ * scanners are only counted in the {@code hits.bot.*} counters.
+ */
 @SuppressWarnings("serial")
 public class AlignmentServlet extends HttpServlet {
 
-	private final EmailLinkStore store = new EmailLinkStore();
+	private static final Logger logger = Logger.getLogger(AlignmentServlet.class
+			.getName());
+
+	// Init parameter naming the redirect snapshot file, relative to the war.
+	private static final String SNAPSHOT_PARAM = "redirectSnapshot";
+
+	// Init parameter that turns on cache warming when the servlet starts.
+	private static final String WARMUP_PARAM = "warmupOnInit";
+
+	// Init parameter that turns on rejecting unknown ids with a filter.
+	private static final String FILTER_PARAM = "liveIdFilter";
+
+	// Init parameter that makes the filter judge ids that are not compact.
+	private static final String REJECT_LEGACY_PARAM = "rejectLegacyIds";
+
+	// Init parameter selecting how redirects are looked up.
+	private static final String MODE_PARAM = "redirectMode";
+
+	// Longest time a request waits on memcache and the datastore.
+	private static final long LOOKUP_TIMEOUT_MILLIS = 5000;
+
+	/**
+	 * How the servlet waits for redirect lookups.
+	 */
+	enum RedirectMode {
+		// Issue asynchronous memcache and datastore gets together and
+		// classify the click while they are in flight, then wait for the
+		// result with a timeout. A memcache miss costs one round trip
+		// rather than two, for a datastore read on every lookup that misses
+		// the instance.
+		ASYNC,
+		// Synchronous memcache and datastore gets, kept as a fallback.
+		BLOCKING;
+	}
+
+	private static final Histogram requestLatency = Metrics
+			.latency("redirect.request");
+
+	private static final Counter unknownRedirects = Metrics
+			.counter("redirect.unknown");
+
+	private static final Counter filteredRedirects = Metrics
+			.counter("redirect.filtered");
+
+	private static final Counter redirectErrors = Metrics
+			.counter("redirect.errors");
+
+	private static final Counter expiredRedirects = Metrics
+			.counter("redirect.expired");
+
+	// Clicks that were not written as hits, by class.
+	private static final Counter[] botHits = new Counter[ClickClass.values().length];
+	static {
+		for (ClickClass clickClass : ClickClass.values()) {
+			if (clickClass != ClickClass.HUMAN) {
+				botHits[clickClass.ordinal()] = Metrics.counter("hits.bot."
+						+ clickClass.name().toLowerCase());
+			}
+		}
+	}
+
+	private final ClickClassifier classifier = new ClickClassifier();
+
+	private EmailLinkStore store;
+
+	private RedirectMode mode = RedirectMode.ASYNC;
+
+	@Override
+	public void init() throws ServletException {
+		store = StoreRegistry.linkStore(getServletContext());
+		String modeName = getInitParameter(MODE_PARAM);
+		if (modeName != null) {
+			mode = RedirectMode.valueOf(modeName.toUpperCase());
+		}
+		String snapshotFile = getInitParameter(SNAPSHOT_PARAM);
+		if (snapshotFile != null) {
+			openSnapshot(snapshotFile);
+		}
+		if (Boolean.parseBoolean(getInitParameter(FILTER_PARAM))) {
+			LiveIdFilter filter = store.buildLiveIdFilter(Boolean
+					.parseBoolean(getInitParameter(REJECT_LEGACY_PARAM)));
+			logger.info("Built live id filter " + filter);
+		}
+		if (Boolean.parseBoolean(getInitParameter(WARMUP_PARAM))) {
+			new CacheWarmer(store, WarmupServlet.warmupBudget(getServletConfig()))
+					.warm();
+		}
+	}
+
+	// Map the redirect snapshot so the instance starts warm. A missing or
+	// unreadable snapshot only costs latency, so it does not fail the servlet.
+	private void openSnapshot(String snapshotFile) {
+		String realPath = getServletContext().getRealPath(snapshotFile);
+		Path file = Paths.get(realPath != null ? realPath : snapshotFile);
+		try {
+			RedirectSnapshot snapshot = RedirectSnapshot.open(file);
+			store.setSnapshot(snapshot);
+			logger.info("Opened redirect snapshot " + file + " with "
+					+ snapshot.tableSize() + " redirects.");
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Unable to open redirect snapshot "
+					+ file, e);
+		}
+	}
+
+	@Override
+	public void destroy() {
+		store.flushClickRollups();
+	}
 
 	public void doGet(HttpServletRequest req, HttpServletResponse resp)
 			throws IOException {
+		serve(req, resp);
+	}
 
-		logHitAndRedirect(req, resp);
+	// Redirects have no body, so HEAD is answered exactly like GET.
+	@Override
+	public void doHead(HttpServletRequest req, HttpServletResponse resp)
+			throws IOException {
+		serve(req, resp);
+	}
+
+	private void serve(HttpServletRequest req, HttpServletResponse resp)
+			throws IOException {
+
+		long start = System.nanoTime();
+		int status = 500;
+		try {
+			status = logHitAndRedirect(req, resp);
+		} catch (IOException | RuntimeException e) {
+			redirectErrors.increment();
+			throw e;
+		} finally {
+			requestLatency.recordSince(start);
+			if (Trace.isEnabled()) {
+				Trace.record(TraceEvent.redirectRequested(System.nanoTime()
+						- start, req.getParameter("id"), status));
+			}
+		}
 	}
 
-	private void logHitAndRedirect(HttpServletRequest req,
+	// The handlers return the status they responded with, for tracing.
+	private int logHitAndRedirect(HttpServletRequest req,
 			HttpServletResponse resp) throws IOException {
 		// Get a parameter.
 		String param = req.getParameter("id");
-		if (param != null) {
-			handleRedirect(resp, param);
+		if (param == null) {
+			return handleUnknown(resp);
+		}
+		// Reject ids that are certainly unknown without touching a backend.
+		LiveIdFilter filter = store.getLiveIdFilter();
+		if (filter != null && !filter.mightBeLive(param)) {
+			filteredRedirects.increment();
+			resp.sendError(404, "Unknown redirect.");
+			return 404;
+		}
+		Future<Redirect> pending = mode == RedirectMode.ASYNC ? store
+				.lookupRedirectAsync(param) : null;
+		// Classifying only needs the request, so it runs while the lookup
+		// is in flight.
+		ClickClass clickClass = classifier.classify(param, req.getMethod(),
+				req.getHeader("User-Agent"), System.currentTimeMillis());
+		int status = pending != null ? awaitRedirect(resp, pending)
+				: handleRedirect(resp, param);
+		if (status == 301 || status == 302) {
+			logHit(param, clickClass);
+		}
+		return status;
+	}
+
+	// Only real clicks take the write path, bots are just counted.
+	private void logHit(String id, ClickClass clickClass) {
+		if (clickClass == ClickClass.HUMAN) {
+			store.addUrlHit(id, store.campaignOf(id));
 		} else {
-			handleUnknown(resp);
+			botHits[clickClass.ordinal()].increment();
 		}
 	}
 
-	private void handleUnknown(HttpServletResponse resp) throws IOException {
+	private int handleUnknown(HttpServletResponse resp) throws IOException {
 		// If there isn't an id, then we have to notify.
 		resp.sendError(404, "No redirect identifier specified");
+		return 404;
 	}
 
-	private void handleRedirect(HttpServletResponse resp, String param)
+	private int handleRedirect(HttpServletResponse resp, String param)
 			throws IOException {
-		System.out.println(param);
 		// Look up the id as known in the database.
 		try {
-			resp.sendRedirect(getRedirect(param));
+			return sendRedirect(resp, store.lookupRedirect(param));
 		} catch (EntityNotFoundException e) {
+			unknownRedirects.increment();
 			resp.sendError(404, "Unknown redirect.");
+			return 404;
 		}
 	}
 
-	private String getRedirect(String param) throws EntityNotFoundException {
-		return store.getRedirect(param);
+	private int awaitRedirect(HttpServletResponse resp,
+			Future<Redirect> redirect) throws IOException {
+		try {
+			return sendRedirect(resp, redirect.get(LOOKUP_TIMEOUT_MILLIS,
+					TimeUnit.MILLISECONDS));
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof EntityNotFoundException) {
+				unknownRedirects.increment();
+				resp.sendError(404, "Unknown redirect.");
+				return 404;
+			} else {
+				throw new IOException("Unable to look up redirect.",
+						e.getCause());
+			}
+		} catch (TimeoutException e) {
+			redirectErrors.increment();
+			redirect.cancel(false);
+			resp.sendError(503, "Redirect lookup timed out.");
+			return 503;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			resp.sendError(503, "Redirect lookup interrupted.");
+			return 503;
+		}
+	}
+
+	// Write the redirect with the status and headers of its policy, which are
+	// computed once per policy unless the link expires.
+	private static int sendRedirect(HttpServletResponse resp, Redirect redirect)
+			throws IOException {
+		long now = System.currentTimeMillis();
+		if (redirect.isExpired(now)) {
+			expiredRedirects.increment();
+			resp.sendError(410, "Link expired.");
+			return 410;
+		}
+		RedirectPolicy policy = redirect.getPolicy();
+		resp.setStatus(policy.getStatus());
+		resp.setHeader("Location", redirect.getUrl());
+		String cacheControl = policy.getCacheControl(
+				redirect.getExpiresMillis(), now);
+		if (cacheControl != null) {
+			resp.setHeader("Cache-Control", cacheControl);
+		}
+		resp.setContentLength(0);
+		return policy.getStatus();
 	}
 }
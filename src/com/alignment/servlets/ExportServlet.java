@@ -0,0 +1,30 @@
+package com.alignment.servlets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.alignment.store.HitArchive;
+
+/**
+ * Streams every recorded hit as a {@link HitArchive}. Exports of a large
+ * click history outlast the deadline of a front end request, so the servlet
+ * is meant to be served by a backend.
+ */
+@SuppressWarnings("serial")
+public class ExportServlet extends HttpServlet {
+
+	@Override
+	public void doGet(HttpServletRequest req, HttpServletResponse resp)
+			throws IOException {
+		resp.setContentType("application/octet-stream");
+		resp.setHeader("Content-Disposition",
+				"attachment; filename=\"hits.archive\"");
+		OutputStream out = resp.getOutputStream();
+		StoreRegistry.linkStore(getServletContext()).exportHits(out);
+		out.flush();
+	}
+}
@@ -0,0 +1,66 @@
+package com.alignment.servlets;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.alignment.metrics.Metrics;
+import com.alignment.metrics.Trace;
+import com.alignment.metrics.TraceBuffer;
+import com.alignment.metrics.TraceEvent;
+import com.alignment.metrics.TraceRecorder;
+
+/**
+ * Reports the counters, gauges and histograms of the instance. Metrics are
+ * written as plain text unless JSON is asked for with {@code ?format=json}.
+ *
+ * When the {@code traceEvents} init parameter is set, the servlet installs a
+ * trace buffer of that many events and writes the buffered events, one per
+ * line, for {@code ?format=trace}.
+ */
+@SuppressWarnings("serial")
+public class MetricsServlet extends HttpServlet {
+
+	// Init parameter sizing the trace buffer, tracing is off without it.
+	private static final String TRACE_EVENTS_PARAM = "traceEvents";
+
+	@Override
+	public void init() throws ServletException {
+		String traceEvents = getInitParameter(TRACE_EVENTS_PARAM);
+		if (traceEvents != null && Integer.parseInt(traceEvents) > 0) {
+			Trace.setRecorder(new TraceBuffer(Integer.parseInt(traceEvents)));
+		}
+	}
+
+	@Override
+	public void doGet(HttpServletRequest req, HttpServletResponse resp)
+			throws IOException {
+		resp.setHeader("Cache-Control", "no-cache");
+		PrintWriter out;
+		if ("trace".equals(req.getParameter("format"))) {
+			TraceRecorder recorder = Trace.getRecorder();
+			if (!(recorder instanceof TraceBuffer)) {
+				resp.sendError(404, "Tracing is off.");
+				return;
+			}
+			resp.setContentType("text/plain");
+			out = resp.getWriter();
+			for (TraceEvent event : ((TraceBuffer) recorder).snapshot()) {
+				out.println(event);
+			}
+		} else if ("json".equals(req.getParameter("format"))) {
+			resp.setContentType("application/json");
+			out = resp.getWriter();
+			Metrics.writeJson(out);
+		} else {
+			resp.setContentType("text/plain");
+			out = resp.getWriter();
+			Metrics.writeText(out);
+		}
+		out.flush();
+	}
+}
@@ -0,0 +1,104 @@
+package com.alignment.servlets;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.xml.sax.SAXException;
+
+import com.alignment.html.parser.LinkRewriter;
+import com.alignment.store.EmailLinkStore;
+import com.alignment.store.Redirect;
+import com.alignment.store.RedirectPolicy;
+
+/**
+ * Rewrites the links of an email to tracked redirects. The email is posted as
+ * the request body and rewritten as it is parsed, with each web link replaced
+ * by a redirect through the alignment servlet.
+ * The campaign of the redirects is taken from the {@code campaign} parameter
+ * and their {@link RedirectPolicy} from the {@code policy} parameter, for
+ * example {@code policy=permanent,max-age=86400,untracked}.
+ *
+ * Link ids are derived from the campaign, url and position of each link, so
+ * rewriting the same email again, or another personalized variant of it,
+ * gives the same ids. The redirects of an email are registered once the whole
+ * email has been read, and only the ones that do not exist yet are written.
+ * The rewritten html is held until then, so a client never receives links to
+ * ids that were not registered: if registering fails nothing is sent, and if
+ * a link id collided with another link the request is answered with a 409,
+ * in which case rewriting the email again uses the next free id. Holding the
+ * output makes the memory of a request grow with the size of its email.
+ */
+@SuppressWarnings("serial")
+public class RewriteServlet extends HttpServlet {
+
+	// Init parameter with the absolute url of the alignment servlet. Without
+	// it the url is built from the request.
+	private static final String REDIRECT_URL_PARAM = "redirectUrl";
+
+	@Override
+	public void doPost(HttpServletRequest req, HttpServletResponse resp)
+			throws IOException {
+		final String redirectUrl = redirectUrl(req) + "?id=";
+		final String campaign = req.getParameter("campaign");
+		RedirectPolicy policy;
+		try {
+			policy = RedirectPolicy.parse(req.getParameter("policy"));
+		} catch (IllegalArgumentException e) {
+			resp.sendError(400, e.getMessage());
+			return;
+		}
+		final EmailLinkStore store = StoreRegistry
+				.linkStore(getServletContext());
+		final List<String> urls = new ArrayList<>();
+		final List<String> ids = new ArrayList<>();
+
+		StringWriter out = new StringWriter();
+		try {
+			LinkRewriter.rewrite(req.getReader(), out,
+					new LinkRewriter.LinkMapper() {
+						@Override
+						public String map(String href, int position) {
+							// Wrapped links keep their line breaks, encoded.
+							href = Redirect.encodeLineBreaks(href);
+							String id = store.deriveLinkId(campaign, href,
+									position);
+							urls.add(href);
+							ids.add(id);
+							return redirectUrl + id;
+						}
+					});
+		} catch (SAXException e) {
+			throw new IOException("Unable to rewrite email.", e);
+		}
+		if (!store.createDerivedRedirects(urls, campaign, policy).equals(ids)) {
+			// The rewritten links point at ids now registered to other links.
+			resp.sendError(409, "Link id collision, rewrite the email again.");
+			return;
+		}
+		resp.setContentType("text/html");
+		resp.setCharacterEncoding("UTF-8");
+		resp.getWriter().write(out.toString());
+	}
+
+	private String redirectUrl(HttpServletRequest req) {
+		String configured = getInitParameter(REDIRECT_URL_PARAM);
+		if (configured != null) {
+			return configured;
+		}
+		StringBuilder url = new StringBuilder();
+		url.append(req.getScheme()).append("://").append(req.getServerName());
+		int port = req.getServerPort();
+		if (!(port == 80 && "http".equals(req.getScheme()))
+				&& !(port == 443 && "https".equals(req.getScheme()))) {
+			url.append(':').append(port);
+		}
+		return url.append(req.getContextPath()).append("/alignment")
+				.toString();
+	}
+}
@@ -0,0 +1,29 @@
+package com.alignment.servlets;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.alignment.store.ClickRollups;
+
+/**
+ * Writes the click rollups handed to the rollups queue by the instances that
+ * counted the clicks. A flush that could not be written in full answers an
+ * error, so the task queue retries it. Entities the flush was already
+ * written to are skipped by the retry.
+ */
+@SuppressWarnings("serial")
+public class RollupServlet extends HttpServlet {
+
+	@Override
+	public void doPost(HttpServletRequest req, HttpServletResponse resp)
+			throws IOException {
+		if (!ClickRollups.writeFlush(req.getInputStream())) {
+			resp.sendError(503, "Click rollups not fully written.");
+			return;
+		}
+		resp.setStatus(204);
+	}
+}
@@ -0,0 +1,35 @@
+package com.alignment.servlets;
+
+import javax.servlet.ServletContext;
+
+import com.alignment.store.EmailLinkStore;
+
+/**
+ * Shares a single {@link EmailLinkStore} between the servlets of the web
+ * application so that they all use the same instance local tiers.
+ */
+final class StoreRegistry {
+
+	private static final String STORE_ATTRIBUTE = EmailLinkStore.class
+			.getName();
+
+	private StoreRegistry() {
+	}
+
+	/**
+	 * Get the store of the web application, creating it and registering its
+	 * metrics on first use.
+	 */
+	static EmailLinkStore linkStore(ServletContext context) {
+		synchronized (context) {
+			Object store = context.getAttribute(STORE_ATTRIBUTE);
+			if (store instanceof EmailLinkStore) {
+				return (EmailLinkStore) store;
+			}
+			EmailLinkStore created = new EmailLinkStore();
+			created.registerMetrics();
+			context.setAttribute(STORE_ATTRIBUTE, created);
+			return created;
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package com.alignment.servlets;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.alignment.store.ClickRollups;
+import com.alignment.store.EmailLinkStore;
+
+/**
+ * Deletes expired redirects and old click rollup flush markers from the
+ * datastore, run by the cron job in {@code cron.xml}. Each run stops when its
+ * time is up and the next run carries on, so a large backlog is worked off
+ * over several runs. The number of entities deleted is written back as plain
+ * text.
+ */
+@SuppressWarnings("serial")
+public class SweepServlet extends HttpServlet {
+
+	// Time a sweep may take when the init parameter is missing, well within
+	// the deadline of a cron request.
+	private static final long DEFAULT_SWEEP_MILLIS = 60000;
+
+	@Override
+	public void doGet(HttpServletRequest req, HttpServletResponse resp)
+			throws IOException {
+		long budget = DEFAULT_SWEEP_MILLIS;
+		String value = getServletConfig().getInitParameter("sweepMillis");
+		if (value != null) {
+			budget = Long.parseLong(value);
+		}
+		long start = System.currentTimeMillis();
+		EmailLinkStore store = StoreRegistry.linkStore(getServletContext());
+		int swept = store.sweepExpiredRedirects(budget);
+		int markers = ClickRollups.sweepFlushMarkers(Math.max(0, budget
+				- (System.currentTimeMillis() - start)));
+
+		resp.setContentType("text/plain");
+		resp.getWriter().println("Swept " + swept + " expired redirects.");
+		resp.getWriter().println("Swept " + markers + " click rollup markers.");
+	}
+}
@@ -0,0 +1,60 @@
+package com.alignment.servlets;
+
+import java.io.IOException;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.alignment.store.CacheWarmer;
+import com.alignment.store.WarmupReport;
+
+/**
+ * Handles App Engine's {@code /_ah/warmup} request by loading hot links and
+ * the links of recent campaigns before the instance receives traffic. The
+ * report of what was loaded is written back as plain text.
+ */
+@SuppressWarnings("serial")
+public class WarmupServlet extends HttpServlet {
+
+	@Override
+	public void doGet(HttpServletRequest req, HttpServletResponse resp)
+			throws IOException {
+		WarmupReport report = new CacheWarmer(
+				StoreRegistry.linkStore(getServletContext()),
+				warmupBudget(getServletConfig())).warm();
+
+		resp.setContentType("text/plain");
+		resp.getWriter().println(report);
+	}
+
+	/**
+	 * Read the warm up budget from the init parameters of a servlet. Missing
+	 * parameters keep their defaults.
+	 */
+	static CacheWarmer.Budget warmupBudget(ServletConfig config) {
+		CacheWarmer.Budget budget = CacheWarmer.Budget.create();
+		String value = config.getInitParameter("warmupMillis");
+		if (value != null) {
+			budget.withMaxMillis(Long.parseLong(value));
+		}
+		value = config.getInitParameter("warmupBytes");
+		if (value != null) {
+			budget.withMaxBytes(Long.parseLong(value));
+		}
+		value = config.getInitParameter("warmupCampaigns");
+		if (value != null) {
+			budget.withCampaigns(Integer.parseInt(value));
+		}
+		value = config.getInitParameter("warmupHotLinks");
+		if (value != null) {
+			budget.withHotLinks(Integer.parseInt(value));
+		}
+		value = config.getInitParameter("warmupBatchSize");
+		if (value != null) {
+			budget.withBatchSize(Integer.parseInt(value));
+		}
+		return budget;
+	}
+}
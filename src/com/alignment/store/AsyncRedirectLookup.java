@@ -0,0 +1,156 @@
+package com.alignment.store;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.memcache.Expiration;
+
+/**
+ * Redirect lookup that issues an asynchronous memcache get and an
+ * asynchronous datastore get together when it is created, and answers from
+ * memcache if it has the redirect. A memcache miss then costs the slower of
+ * the two round trips rather than both one after the other, and the caller
+ * can do other work while they are in flight, only waiting when it asks for
+ * the result. The price is a datastore read for every lookup, including
+ * those that memcache answers.
+ *
+ * A datastore miss completes the lookup with an {@link ExecutionException}
+ * caused by an {@code EntityNotFoundException}.
+ */
+final class AsyncRedirectLookup implements Future<String> {
+
+	private final String id;
+
+	private final Key key;
+
+	private final LocalRedirectCache localCache;
+
+	private final Future<Object> cached;
+
+	private final Future<Entity> stored;
+
+	private volatile boolean cancelled = false;
+
+	// When the lookup started, for the tier latency.
+	private final long start = System.nanoTime();
+
+	// Coalesced callers share the lookup, only the first to complete it
+	// records its latency and fills the caches.
+	private final AtomicBoolean completed = new AtomicBoolean();
+
+	AsyncRedirectLookup(String id, Key key, LocalRedirectCache localCache) {
+		this.id = id;
+		this.key = key;
+		this.localCache = localCache;
+		this.cached = EmailLinkStore.asyncRedirectMemcache().get(key);
+		this.stored = DatastoreServiceFactory.getAsyncDatastoreService().get(
+				key);
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		cancelled = true;
+		boolean result = cached.cancel(mayInterruptIfRunning);
+		result |= stored.cancel(mayInterruptIfRunning);
+		return result;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public boolean isDone() {
+		if (cancelled) {
+			return true;
+		}
+		if (!cached.isDone()) {
+			return false;
+		}
+		try {
+			if (cached.get() instanceof Entity) {
+				return true;
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			// Treated as a miss, the datastore get decides the outcome.
+		}
+		return stored.isDone();
+	}
+
+	@Override
+	public String get() throws InterruptedException, ExecutionException {
+		Entity entity = cachedEntity(cached);
+		RedirectTier tier = RedirectTier.MEMCACHE;
+		if (entity == null) {
+			entity = stored.get();
+			tier = RedirectTier.DATASTORE;
+		}
+		return complete(entity, tier);
+	}
+
+	@Override
+	public String get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		Entity entity;
+		Object value;
+		try {
+			value = cached.get(timeout, unit);
+		} catch (ExecutionException e) {
+			value = null;
+		}
+		RedirectTier tier = RedirectTier.MEMCACHE;
+		if (value instanceof Entity) {
+			entity = (Entity) value;
+		} else {
+			entity = stored.get(deadline - System.nanoTime(),
+					TimeUnit.NANOSECONDS);
+			tier = RedirectTier.DATASTORE;
+		}
+		return complete(entity, tier);
+	}
+
+	// A failed memcache get is treated as a miss.
+	private static Entity cachedEntity(Future<Object> cached)
+			throws InterruptedException {
+		try {
+			Object value = cached.get();
+			if (value instanceof Entity) {
+				return (Entity) value;
+			}
+		} catch (ExecutionException e) {
+			// Fall through to the datastore.
+		}
+		return null;
+	}
+
+	private void fillCache(Entity entity) {
+		Expiration expiration = EmailLinkStore.expirationOf(entity);
+		if (expiration != null) {
+			EmailLinkStore.asyncRedirectMemcache().put(key, entity, expiration);
+		} else {
+			EmailLinkStore.asyncRedirectMemcache().put(key, entity);
+		}
+	}
+
+	private String complete(Entity entity, RedirectTier tier) {
+		String redirect = EmailLinkStore.parseRedirect(entity);
+		if (completed.compareAndSet(false, true)) {
+			tier.resolved(id, start);
+			if (tier == RedirectTier.DATASTORE) {
+				fillCache(entity);
+			}
+			if (redirect != null) {
+				localCache.put(id, redirect, EmailLinkStore.campaignOf(entity));
+			}
+		}
+		return redirect;
+	}
+}
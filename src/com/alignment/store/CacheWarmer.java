@@ -0,0 +1,249 @@
+package com.alignment.store;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.alignment.store.EmailLinkStore.EntityProps;
+import com.alignment.store.EmailLinkStore.KeyNames;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.memcache.MemcacheService;
+
+/**
+ * Loads the redirects a new instance is most likely to be asked for into the
+ * local and memcache tiers of an {@link EmailLinkStore}. The hot links
+ * published by running instances are loaded first, followed by the links of
+ * the most recent campaigns. All reads are batched and warming stops as soon
+ * as the time or memory budget is used up.
+ */
+public class CacheWarmer {
+
+	private static final Logger logger = Logger.getLogger(CacheWarmer.class
+			.getName());
+
+	// Rough heap cost of a cached entry on top of its characters.
+	private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+	/**
+	 * Limits for a single warm up.
+	 */
+	public static final class Budget {
+
+		private long maxMillis = 5000;
+
+		private long maxBytes = 16 * 1024 * 1024;
+
+		private int campaigns = 3;
+
+		private int hotLinks = 1000;
+
+		private int batchSize = 500;
+
+		private Budget() {
+		}
+
+		/**
+		 * Create a budget with the default limits.
+		 */
+		public static Budget create() {
+			return new Budget();
+		}
+
+		/**
+		 * Set the wall clock time that warming may take.
+		 */
+		public Budget withMaxMillis(long millis) {
+			checkArgument(millis > 0, "Must have a positive time budget.");
+			maxMillis = millis;
+			return this;
+		}
+
+		/**
+		 * Set the estimated heap that the loaded redirects may use.
+		 */
+		public Budget withMaxBytes(long bytes) {
+			checkArgument(bytes > 0, "Must have a positive memory budget.");
+			maxBytes = bytes;
+			return this;
+		}
+
+		/**
+		 * Set the number of most recent campaigns to load.
+		 */
+		public Budget withCampaigns(int count) {
+			checkArgument(count >= 0, "Campaign count cannot be negative.");
+			campaigns = count;
+			return this;
+		}
+
+		/**
+		 * Set the number of hot links to load.
+		 */
+		public Budget withHotLinks(int count) {
+			checkArgument(count >= 0, "Hot link count cannot be negative.");
+			hotLinks = count;
+			return this;
+		}
+
+		/**
+		 * Set the number of redirects read per batched call.
+		 */
+		public Budget withBatchSize(int size) {
+			checkArgument(size > 0, "Must have a positive batch size.");
+			batchSize = size;
+			return this;
+		}
+	}
+
+	private final EmailLinkStore store;
+
+	private final Budget budget;
+
+	public CacheWarmer(EmailLinkStore store, Budget budget) {
+		this.store = checkNotNull(store, "Must have a store to warm.");
+		this.budget = checkNotNull(budget, "Must have a budget.");
+	}
+
+	/**
+	 * Load the hot links and the links of the most recent campaigns.
+	 *
+	 * @return What was loaded.
+	 */
+	public WarmupReport warm() {
+		long start = System.currentTimeMillis();
+		WarmupReport report = new WarmupReport();
+		warmHotLinks(report, start);
+		if (report.stopReason == null) {
+			warmRecentCampaigns(report, start);
+		}
+		report.elapsedMillis = System.currentTimeMillis() - start;
+		logger.info("Warmed redirect caches: " + report);
+		return report;
+	}
+
+	private void warmHotLinks(WarmupReport report, long start) {
+		if (budget.hotLinks == 0) {
+			return;
+		}
+		List<String> ids = store.getPublishedHotLinks();
+		if (ids.size() > budget.hotLinks) {
+			ids = ids.subList(0, budget.hotLinks);
+		}
+		MemcacheService memcache = EmailLinkStore.redirectMemcache();
+		DatastoreService datastore = DatastoreServiceFactory
+				.getDatastoreService();
+		LocalRedirectCache local = store.getLocalCache();
+
+		for (int from = 0; from < ids.size(); from += budget.batchSize) {
+			if (exhausted(report, start)) {
+				return;
+			}
+			List<Key> keys = new ArrayList<>();
+			for (String id : ids.subList(from,
+					Math.min(ids.size(), from + budget.batchSize))) {
+				if (!local.contains(id)) {
+					keys.add(EmailLinkStore.redirectKey(id));
+				}
+			}
+
+			Map<Key, Object> cached = memcache.getAll(keys);
+			List<Key> missing = new ArrayList<>();
+			for (Key key : keys) {
+				Object value = cached.get(key);
+				if (value instanceof Entity) {
+					report.memcacheHits++;
+					report.hotLinksLoaded += load(local, key, (Entity) value,
+							report);
+				} else {
+					missing.add(key);
+				}
+			}
+
+			if (!missing.isEmpty()) {
+				Map<Key, Entity> stored = datastore.get(missing);
+				report.datastoreReads += stored.size();
+				for (Map.Entry<Key, Entity> entry : stored.entrySet()) {
+					report.hotLinksLoaded += load(local, entry.getKey(),
+							entry.getValue(), report);
+				}
+				EmailLinkStore.putAllInCache(memcache, stored);
+			}
+		}
+	}
+
+	private void warmRecentCampaigns(WarmupReport report, long start) {
+		if (budget.campaigns == 0) {
+			return;
+		}
+		MemcacheService memcache = EmailLinkStore.redirectMemcache();
+		DatastoreService datastore = DatastoreServiceFactory
+				.getDatastoreService();
+		LocalRedirectCache local = store.getLocalCache();
+
+		Query query = new Query(KeyNames.REDIRECT.name()).addSort(
+				EntityProps.CREATED.name(), SortDirection.DESCENDING);
+		Map<Key, Entity> pending = new HashMap<>();
+		for (Entity entity : datastore.prepare(query).asIterable(
+				FetchOptions.Builder.withChunkSize(budget.batchSize))) {
+			if (exhausted(report, start)) {
+				break;
+			}
+			String campaign = (String) entity.getProperty(EntityProps.CAMPAIGN
+					.name());
+			if (!report.campaigns.contains(campaign)) {
+				if (report.campaigns.size() == budget.campaigns) {
+					break;
+				}
+				report.campaigns.add(campaign);
+			}
+			report.datastoreReads++;
+			report.campaignLinksLoaded += load(local, entity.getKey(), entity,
+					report);
+			pending.put(entity.getKey(), entity);
+			if (pending.size() == budget.batchSize) {
+				EmailLinkStore.putAllInCache(memcache, pending);
+				pending.clear();
+			}
+		}
+		if (!pending.isEmpty()) {
+			EmailLinkStore.putAllInCache(memcache, pending);
+		}
+	}
+
+	// Put the redirect of the entity in the local tier, returning the number
+	// of redirects loaded.
+	private int load(LocalRedirectCache local, Key key, Entity entity,
+			WarmupReport report) {
+		String redirect = EmailLinkStore.parseRedirect(entity);
+		if (redirect == null) {
+			return 0;
+		}
+		String id = key.getName();
+		local.put(id, redirect, EmailLinkStore.campaignOf(entity));
+		report.bytesLoaded += ENTRY_OVERHEAD_BYTES + 2
+				* (id.length() + redirect.length());
+		return 1;
+	}
+
+	private boolean exhausted(WarmupReport report, long start) {
+		if (System.currentTimeMillis() - start >= budget.maxMillis) {
+			report.stopReason = "time budget of " + budget.maxMillis
+					+ "ms used";
+		} else if (report.bytesLoaded >= budget.maxBytes) {
+			report.stopReason = "memory budget of " + budget.maxBytes
+					+ " bytes used";
+		}
+		return report.stopReason != null;
+	}
+}
@@ -0,0 +1,149 @@
+package com.alignment.store;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tells real clicks from the prefetches of mail gateway scanners, link
+ * previewers and other bots, so only real clicks are written as hits. A click
+ * is judged by, in order:
+ * <ul>
+ * <li>the request method, HEAD requests are prefetches,</li>
+ * <li>the user agent, which bots leave out or name themselves in,</li>
+ * <li>the time since a compact link id was created, scanners follow links
+ * within seconds of the email being sent and people do not, and</li>
+ * <li>bursts of clicks on one id within a second, which is how a gateway
+ * scanning every copy of an email looks.</li>
+ * </ul>
+ * Classifying does not allocate and does not lock. Bursts are counted in a
+ * fixed table of slots indexed by the hash of the id, so ids that share a
+ * slot reset each other's count and a burst can be missed, never invented.
+ */
+public final class ClickClassifier {
+
+	/**
+	 * What a click was classified as.
+	 */
+	public enum ClickClass {
+		// A real click, which is written as a hit.
+		HUMAN,
+		// A HEAD request.
+		PREFETCH,
+		// A missing user agent or one that names a bot.
+		USER_AGENT,
+		// A click that came too soon after the link was created.
+		TOO_SOON,
+		// One of too many clicks on the id within a second.
+		BURST;
+	}
+
+	/**
+	 * Default shortest time between creating a compact link and a real click
+	 * on it.
+	 */
+	public static final long DEFAULT_MIN_CLICK_DELAY_MILLIS = TimeUnit.SECONDS
+			.toMillis(10);
+
+	/**
+	 * Default most clicks on one id within a second that can be real.
+	 */
+	public static final int DEFAULT_BURST_LIMIT = 20;
+
+	// Lower case fragments of the user agents of bots and link scanners.
+	private static final String[] BOT_AGENTS = { "bot", "spider", "crawl",
+			"preview", "scan", "fetch", "check", "proofpoint", "mimecast",
+			"barracuda", "urldefense", "safelinks", "existence discovery",
+			"python", "curl", "wget", "java/", "go-http-client", "okhttp",
+			"headless", "phantomjs" };
+
+	private static final int SLOTS = 4096;
+
+	// A slot holds the second, a 16 bit tag of the id hash and the count.
+	private static final long COUNT_MASK = 0xFFFFL;
+
+	private final AtomicLongArray slots = new AtomicLongArray(SLOTS);
+
+	private final long minClickDelayMillis;
+
+	private final int burstLimit;
+
+	public ClickClassifier() {
+		this(DEFAULT_MIN_CLICK_DELAY_MILLIS, DEFAULT_BURST_LIMIT);
+	}
+
+	public ClickClassifier(long minClickDelayMillis, int burstLimit) {
+		checkArgument(burstLimit > 0 && burstLimit < COUNT_MASK,
+				"Burst limit must be between 1 and %s.", COUNT_MASK - 1);
+		this.minClickDelayMillis = minClickDelayMillis;
+		this.burstLimit = burstLimit;
+	}
+
+	/**
+	 * Classify a click.
+	 * 
+	 * @param id
+	 *            The id of the clicked link.
+	 * 
+	 * @param method
+	 *            The request method.
+	 * 
+	 * @param userAgent
+	 *            The {@code User-Agent} header, may be {@code null}.
+	 * 
+	 * @param nowMillis
+	 *            The time of the click.
+	 */
+	public ClickClass classify(String id, String method, String userAgent,
+			long nowMillis) {
+		if ("HEAD".equals(method)) {
+			return ClickClass.PREFETCH;
+		}
+		if (isBotAgent(userAgent)) {
+			return ClickClass.USER_AGENT;
+		}
+		if (LinkIds.isCompact(id)
+				&& nowMillis - LinkIds.createdMillis(LinkIds.decode(id)) < minClickDelayMillis) {
+			return ClickClass.TOO_SOON;
+		}
+		if (countClick(id, nowMillis) > burstLimit) {
+			return ClickClass.BURST;
+		}
+		return ClickClass.HUMAN;
+	}
+
+	static boolean isBotAgent(String userAgent) {
+		if (userAgent == null || userAgent.isEmpty()) {
+			return true;
+		}
+		for (String agent : BOT_AGENTS) {
+			int last = userAgent.length() - agent.length();
+			for (int i = 0; i <= last; i++) {
+				if (userAgent.regionMatches(true, i, agent, 0, agent.length())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	// Count the click in the slot of the id, returning the clicks on the id
+	// within the current second.
+	private long countClick(String id, long nowMillis) {
+		int hash = id.hashCode();
+		int slot = (hash ^ (hash >>> 16)) & (SLOTS - 1);
+		long key = ((nowMillis / 1000) << 32) | ((long) (hash >>> 16) << 16);
+		while (true) {
+			long current = slots.get(slot);
+			long count = (current & ~COUNT_MASK) == key ? (current & COUNT_MASK) + 1
+					: 1;
+			if (count > COUNT_MASK) {
+				return count;
+			}
+			if (slots.compareAndSet(slot, current, key | count)) {
+				return count;
+			}
+		}
+	}
+}
@@ -0,0 +1,729 @@
+package com.alignment.store;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Click counts per link and per campaign in minute, hour and day buckets,
+ * updated as hits arrive so reports never scan the raw hits.
+ *
+ * Hits are counted in memory in a small ring of minute buckets per link and
+ * campaign. A flush drains the rings and adds the counts to rollup entities,
+ * each holding a fixed block of buckets of one resolution: an hour of
+ * minutes, a day of hours or 32 days. Every entity is updated in its own
+ * transaction, and the transactions of a flush are issued together so a flush
+ * takes a few datastore round trips however many entities it touches.
+ *
+ * The click that finds a flush due does not write the counts. It hands them
+ * to tasks on the {@value #QUEUE} queue, which {@link #writeFlush(InputStream)}
+ * runs from a task handler. Each flush has an id that is written with every
+ * entity it updates, as a marker entity in the same transaction, so a flush
+ * that is retried after a commit that did succeed is not counted twice.
+ * Counts that could not be handed over or written are kept and retried under
+ * the id of their flush. Markers are swept by
+ * {@link #sweepFlushMarkers(long)} once they are older than any retry.
+ *
+ * Reading a range only gets the entities covering it, so the cost of a query
+ * depends on the range and not on the traffic. Counts of other instances
+ * show up once they have been flushed.
+ */
+public final class ClickRollups {
+
+	private static final Logger logger = Logger.getLogger(ClickRollups.class
+			.getName());
+
+	/**
+	 * What the clicks are counted for.
+	 */
+	public enum Scope {
+		LINK, CAMPAIGN;
+	}
+
+	/**
+	 * The width of the buckets clicks are counted in.
+	 */
+	public enum Resolution {
+		MINUTE(TimeUnit.MINUTES.toMillis(1), 60),
+		HOUR(TimeUnit.HOURS.toMillis(1), 24),
+		DAY(TimeUnit.DAYS.toMillis(1), 32);
+
+		private final long widthMillis;
+
+		// Number of buckets held by one rollup entity.
+		private final int bucketsPerEntity;
+
+		private Resolution(long widthMillis, int bucketsPerEntity) {
+			this.widthMillis = widthMillis;
+			this.bucketsPerEntity = bucketsPerEntity;
+		}
+
+		/**
+		 * @return The width of a bucket in milliseconds.
+		 */
+		public long getWidthMillis() {
+			return widthMillis;
+		}
+
+		/**
+		 * @return The bucket holding the provided time.
+		 */
+		public long bucket(long timeMillis) {
+			return timeMillis / widthMillis;
+		}
+	}
+
+	/**
+	 * Kind of the rollup entities.
+	 */
+	static final String KIND = "CLICK_ROLLUP";
+
+	// Property holding the counts of a rollup entity as big endian longs.
+	static final String COUNTS = "COUNTS";
+
+	// Kind of the markers of the flushes written to a rollup entity, children
+	// of the entity.
+	static final String MARKER_KIND = "CLICK_ROLLUP_FLUSH";
+
+	// Property holding when a marker was written.
+	static final String FLUSHED_AT = "FLUSHED_AT";
+
+	/**
+	 * The task queue flushes are handed to.
+	 */
+	public static final String QUEUE = "rollups";
+
+	/**
+	 * The url of the handler of the flush tasks.
+	 */
+	public static final String TASK_URL = "/tasks/rollups";
+
+	/**
+	 * How long flush markers are kept, longer than the task age limit of the
+	 * queue and the life of an instance retrying a flush.
+	 */
+	static final long MARKER_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+	// Most rollup entities updated by one flush, which keeps a task payload
+	// well within the task size limit.
+	static final int MAX_FLUSH_ENTITIES = 200;
+
+	// Most tasks added in one task queue call.
+	private static final int MAX_BATCH_TASKS = 100;
+
+	// Most markers deleted in one datastore call.
+	private static final int MAX_BATCH_DELETE = 500;
+
+	/**
+	 * Default longest time counts stay in memory before they are flushed.
+	 */
+	static final long DEFAULT_FLUSH_INTERVAL_MILLIS = TimeUnit.MINUTES
+			.toMillis(1);
+
+	/**
+	 * Most buckets a single query may read.
+	 */
+	public static final int MAX_QUERY_BUCKETS = 10000;
+
+	// Minutes kept per ring, a minute that falls out before it is flushed is
+	// moved to the pending counts.
+	private static final int RING_MINUTES = 16;
+
+	private final long flushIntervalMillis;
+
+	private final ConcurrentMap<String, MinuteRing> rings = new ConcurrentHashMap<>();
+
+	// Counts waiting to be written, by rollup entity name. Guarded by itself.
+	private final Map<String, long[]> pending = new HashMap<>();
+
+	// Counts of flushes that could not be handed over or written, by flush
+	// id, so a retry cannot add them twice. Guarded by pending.
+	private final Map<String, Map<String, long[]>> unwritten = new LinkedHashMap<>();
+
+	private final AtomicLong lastFlush = new AtomicLong(
+			System.currentTimeMillis());
+
+	public ClickRollups() {
+		this(DEFAULT_FLUSH_INTERVAL_MILLIS);
+	}
+
+	ClickRollups(long flushIntervalMillis) {
+		this.flushIntervalMillis = flushIntervalMillis;
+	}
+
+	/**
+	 * Count a click on a link.
+	 *
+	 * @param campaign
+	 *            The campaign of the link, may be {@code null}.
+	 */
+	public void record(String linkId, String campaign, long timeMillis) {
+		long minute = Resolution.MINUTE.bucket(timeMillis);
+		count(ringName(Scope.LINK, checkNotNull(linkId)), minute);
+		if (campaign != null) {
+			count(ringName(Scope.CAMPAIGN, campaign), minute);
+		}
+	}
+
+	/**
+	 * Hand the counts to the flush queue if the flush interval has passed
+	 * since the last flush. Only one of the callers that see the flush is due
+	 * hands them over, with one task queue call.
+	 */
+	public void flushIfDue() {
+		long last = lastFlush.get();
+		long now = System.currentTimeMillis();
+		if (now - last >= flushIntervalMillis
+				&& lastFlush.compareAndSet(last, now)) {
+			enqueue();
+		}
+	}
+
+	/**
+	 * Add the counts held in memory to the rollup entities on the calling
+	 * thread.
+	 *
+	 * @return The number of rollup entities updated.
+	 */
+	public int flush() {
+		Map<String, Map<String, long[]>> flushes = takeFlushes();
+		int written = 0;
+		try {
+			for (String flushId : new ArrayList<>(flushes.keySet())) {
+				Map<String, long[]> deltas = flushes.get(flushId);
+				Map<String, long[]> failed = write(flushId, deltas);
+				flushes.remove(flushId);
+				written += deltas.size() - failed.size();
+				if (!failed.isEmpty()) {
+					logger.warning("Unable to write " + failed.size() + " of "
+							+ deltas.size()
+							+ " click rollups, retrying on next flush.");
+					keep(flushId, failed);
+				}
+			}
+		} finally {
+			// Flushes cut short, by a deadline for instance, are kept whole.
+			for (Map.Entry<String, Map<String, long[]>> flush : flushes
+					.entrySet()) {
+				keep(flush.getKey(), flush.getValue());
+			}
+		}
+		return written;
+	}
+
+	// Hand the counts to the flush queue, one task per flush.
+	private void enqueue() {
+		Map<String, Map<String, long[]>> flushes = takeFlushes();
+		try {
+			for (List<String> batch : Lists.partition(
+					new ArrayList<>(flushes.keySet()), MAX_BATCH_TASKS)) {
+				List<TaskOptions> tasks = new ArrayList<>(batch.size());
+				for (String flushId : batch) {
+					tasks.add(TaskOptions.Builder.withUrl(TASK_URL).payload(
+							encodeFlush(flushId, flushes.get(flushId)),
+							"application/octet-stream"));
+				}
+				QueueFactory.getQueue(QUEUE).add(tasks);
+				flushes.keySet().removeAll(batch);
+			}
+		} catch (RuntimeException e) {
+			logger.log(Level.WARNING, "Unable to queue click rollups, "
+					+ "retrying on next flush.", e);
+		} finally {
+			for (Map.Entry<String, Map<String, long[]>> flush : flushes
+					.entrySet()) {
+				keep(flush.getKey(), flush.getValue());
+			}
+		}
+	}
+
+	// Take the counts held in memory as flushes by id: the flushes that
+	// could not be written before, then the drained counts under new ids.
+	private Map<String, Map<String, long[]>> takeFlushes() {
+		Map<String, Map<String, long[]>> flushes = new LinkedHashMap<>();
+		Map<String, long[]> deltas = new HashMap<>();
+		synchronized (pending) {
+			flushes.putAll(unwritten);
+			unwritten.clear();
+			deltas.putAll(pending);
+			pending.clear();
+		}
+		for (Map.Entry<String, MinuteRing> entry : rings.entrySet()) {
+			MinuteRing ring = entry.getValue();
+			long[] drained = ring.drain();
+			if (drained == null) {
+				// Idle since the last flush, new clicks start a new ring.
+				rings.remove(entry.getKey(), ring);
+				continue;
+			}
+			for (int i = 0; i < drained.length; i += 2) {
+				addDeltas(deltas, entry.getKey(), drained[i], drained[i + 1]);
+			}
+		}
+		Map<String, long[]> flush = new HashMap<>();
+		for (Map.Entry<String, long[]> delta : deltas.entrySet()) {
+			flush.put(delta.getKey(), delta.getValue());
+			if (flush.size() == MAX_FLUSH_ENTITIES) {
+				flushes.put(newFlushId(), flush);
+				flush = new HashMap<>();
+			}
+		}
+		if (!flush.isEmpty()) {
+			flushes.put(newFlushId(), flush);
+		}
+		return flushes;
+	}
+
+	private void keep(String flushId, Map<String, long[]> deltas) {
+		synchronized (pending) {
+			unwritten.put(flushId, deltas);
+		}
+	}
+
+	private static String newFlushId() {
+		return UUID.randomUUID().toString();
+	}
+
+	/**
+	 * Write a flush handed to the flush queue, skipping the rollup entities
+	 * the flush has already been written to.
+	 *
+	 * @param payload
+	 *            The payload of the flush task.
+	 *
+	 * @return {@code true} if the whole flush has been written, otherwise the
+	 *         task should be retried.
+	 */
+	public static boolean writeFlush(InputStream payload) throws IOException {
+		DataInputStream in = new DataInputStream(payload);
+		String flushId = in.readUTF();
+		int size = in.readInt();
+		Map<String, long[]> deltas = new HashMap<>();
+		for (int i = 0; i < size; i++) {
+			String name = in.readUTF();
+			long[] counts = new long[in.readInt()];
+			for (int j = 0; j < counts.length; j++) {
+				counts[j] = in.readLong();
+			}
+			deltas.put(name, counts);
+		}
+		Map<String, long[]> failed = write(flushId, deltas);
+		if (!failed.isEmpty()) {
+			logger.warning("Unable to write " + failed.size() + " of "
+					+ deltas.size() + " click rollups of flush " + flushId
+					+ ".");
+		}
+		return failed.isEmpty();
+	}
+
+	// The payload of the task of a flush.
+	static byte[] encodeFlush(String flushId, Map<String, long[]> deltas) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeUTF(flushId);
+			out.writeInt(deltas.size());
+			for (Map.Entry<String, long[]> delta : deltas.entrySet()) {
+				out.writeUTF(delta.getKey());
+				out.writeInt(delta.getValue().length);
+				for (long count : delta.getValue()) {
+					out.writeLong(count);
+				}
+			}
+			out.flush();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Delete the markers of flushes written longer ago than any retry,
+	 * stopping once the time is up.
+	 *
+	 * @return The number of markers deleted.
+	 */
+	public static int sweepFlushMarkers(long budgetMillis) {
+		long deadline = System.currentTimeMillis() + budgetMillis;
+		Date cutoff = new Date(System.currentTimeMillis()
+				- MARKER_RETENTION_MILLIS);
+		DatastoreService datastore = DatastoreServiceFactory
+				.getDatastoreService();
+		Query query = new Query(MARKER_KIND).setKeysOnly().setFilter(
+				new FilterPredicate(FLUSHED_AT, FilterOperator.LESS_THAN,
+						cutoff));
+		int swept = 0;
+		while (System.currentTimeMillis() < deadline) {
+			List<Key> keys = new ArrayList<>();
+			for (Entity marker : datastore.prepare(query).asList(
+					FetchOptions.Builder.withLimit(MAX_BATCH_DELETE))) {
+				keys.add(marker.getKey());
+			}
+			if (keys.isEmpty()) {
+				break;
+			}
+			datastore.delete(keys);
+			swept += keys.size();
+		}
+		return swept;
+	}
+
+	/**
+	 * Get the clicks in each bucket covering a time range. Clicks that this
+	 * instance has not flushed yet are included.
+	 *
+	 * @param fromMillis
+	 *            The start of the range, inclusive.
+	 *
+	 * @param toMillis
+	 *            The end of the range, exclusive.
+	 *
+	 * @return The clicks per bucket, the first holding {@code fromMillis}.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the range is empty or covers more than
+	 *             {@link #MAX_QUERY_BUCKETS} buckets.
+	 */
+	public long[] getClicks(Scope scope, String name, Resolution resolution,
+			long fromMillis, long toMillis) {
+		checkArgument(toMillis > fromMillis, "Range must not be empty.");
+		long first = resolution.bucket(fromMillis);
+		long last = resolution.bucket(toMillis - 1);
+		checkArgument(last - first < MAX_QUERY_BUCKETS,
+				"Range must cover at most " + MAX_QUERY_BUCKETS + " buckets.");
+		long[] clicks = new long[(int) (last - first + 1)];
+		String ringName = ringName(scope, checkNotNull(name));
+
+		// The rollup entities covering the range.
+		long firstBlock = first / resolution.bucketsPerEntity;
+		long lastBlock = last / resolution.bucketsPerEntity;
+		List<Key> keys = new ArrayList<>();
+		for (long block = firstBlock; block <= lastBlock; block++) {
+			keys.add(rollupKey(entityName(ringName, resolution, block)));
+		}
+		DatastoreService datastore = DatastoreServiceFactory
+				.getDatastoreService();
+		for (Entity entity : datastore.get(keys).values()) {
+			String entityName = entity.getKey().getName();
+			addBlock(clicks, first, resolution,
+					blockOf(entityName), decode(entity));
+		}
+
+		// Counts of this instance that have not been written.
+		synchronized (pending) {
+			List<Map<String, long[]>> held = new ArrayList<>(
+					unwritten.values());
+			held.add(pending);
+			for (Map<String, long[]> deltas : held) {
+				for (long block = firstBlock; block <= lastBlock; block++) {
+					long[] counts = deltas.get(entityName(ringName,
+							resolution, block));
+					if (counts != null) {
+						addBlock(clicks, first, resolution, block, counts);
+					}
+				}
+			}
+		}
+		MinuteRing ring = rings.get(ringName);
+		long[] minutes = ring != null ? ring.snapshot() : new long[0];
+		for (int i = 0; i < minutes.length; i += 2) {
+			long bucket = resolution.bucket(minutes[i]
+					* Resolution.MINUTE.widthMillis);
+			if (bucket >= first && bucket <= last) {
+				clicks[(int) (bucket - first)] += minutes[i + 1];
+			}
+		}
+		return clicks;
+	}
+
+	// Count a click in the ring, replacing the ring if a flush retired it.
+	private void count(String ringName, long minute) {
+		while (true) {
+			MinuteRing ring = rings.get(ringName);
+			if (ring == null) {
+				MinuteRing created = new MinuteRing(ringName);
+				ring = rings.putIfAbsent(ringName, created);
+				if (ring == null) {
+					ring = created;
+				}
+			}
+			if (ring.add(minute)) {
+				return;
+			}
+			rings.remove(ringName, ring);
+		}
+	}
+
+	// Keep the count of a minute that fell out of its ring before a flush.
+	private void spill(String ringName, long minute, long count) {
+		synchronized (pending) {
+			addDeltas(pending, ringName, minute, count);
+		}
+	}
+
+	// Write each rollup entity in its own transaction, stepping all of the
+	// transactions together. The marker of the flush is written in the same
+	// transaction, and entities that already have it are left alone. Returns
+	// the deltas that were not written.
+	private static Map<String, long[]> write(String flushId,
+			Map<String, long[]> deltas) {
+		AsyncDatastoreService datastore = DatastoreServiceFactory
+				.getAsyncDatastoreService();
+		int size = deltas.size();
+		List<String> names = new ArrayList<>(deltas.keySet());
+		List<Future<Transaction>> begun = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			begun.add(datastore.beginTransaction());
+		}
+		Transaction[] transactions = new Transaction[size];
+		Key[] markers = new Key[size];
+		List<Future<Map<Key, Entity>>> reads = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			transactions[i] = getOrNull(begun.get(i));
+			Key key = rollupKey(names.get(i));
+			markers[i] = KeyFactory.createKey(key, MARKER_KIND, flushId);
+			reads.add(transactions[i] == null ? null : datastore.get(
+					transactions[i], Arrays.asList(key, markers[i])));
+		}
+		boolean[] done = new boolean[size];
+		List<Future<List<Key>>> writes = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			Future<List<Key>> written = null;
+			Map<Key, Entity> read = reads.get(i) != null ? getOrNull(reads
+					.get(i)) : null;
+			if (read != null && read.containsKey(markers[i])) {
+				// Written by an earlier attempt of the flush.
+				done[i] = true;
+			} else if (read != null) {
+				// The delta is left as it is in case the commit fails.
+				long[] counts = deltas.get(names.get(i)).clone();
+				Key key = rollupKey(names.get(i));
+				Entity entity = read.get(key);
+				if (entity == null) {
+					entity = new Entity(key);
+				} else {
+					long[] stored = decode(entity);
+					for (int j = 0; j < counts.length && j < stored.length; j++) {
+						counts[j] += stored[j];
+					}
+				}
+				entity.setUnindexedProperty(COUNTS, encode(counts));
+				Entity marker = new Entity(markers[i]);
+				marker.setProperty(FLUSHED_AT, new Date());
+				written = datastore.put(transactions[i],
+						Arrays.asList(entity, marker));
+			}
+			writes.add(written);
+		}
+		List<Future<Void>> commits = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			Future<Void> committed = null;
+			if (writes.get(i) != null && getOrNull(writes.get(i)) != null) {
+				committed = transactions[i].commitAsync();
+			} else if (transactions[i] != null) {
+				transactions[i].rollbackAsync();
+			}
+			commits.add(committed);
+		}
+		Map<String, long[]> failed = new HashMap<>();
+		for (int i = 0; i < size; i++) {
+			Future<Void> committed = commits.get(i);
+			if (committed != null) {
+				try {
+					Uninterruptibles.getUninterruptibly(committed);
+					done[i] = true;
+				} catch (ExecutionException e) {
+					logger.log(Level.FINE, "Click rollup commit failed.",
+							e.getCause());
+				}
+			}
+			if (!done[i]) {
+				failed.put(names.get(i), deltas.get(names.get(i)));
+			}
+		}
+		return failed;
+	}
+
+	private static <T> T getOrNull(Future<T> future) {
+		try {
+			return Uninterruptibles.getUninterruptibly(future);
+		} catch (ExecutionException e) {
+			logger.log(Level.FINE, "Click rollup write failed.", e.getCause());
+			return null;
+		}
+	}
+
+	// Add the count of a minute to the entities of every resolution.
+	private static void addDeltas(Map<String, long[]> deltas, String ringName,
+			long minute, long count) {
+		long timeMillis = minute * Resolution.MINUTE.widthMillis;
+		for (Resolution resolution : Resolution.values()) {
+			long bucket = resolution.bucket(timeMillis);
+			long block = bucket / resolution.bucketsPerEntity;
+			String name = entityName(ringName, resolution, block);
+			long[] counts = deltas.get(name);
+			if (counts == null) {
+				counts = new long[resolution.bucketsPerEntity];
+				deltas.put(name, counts);
+			}
+			counts[(int) (bucket % resolution.bucketsPerEntity)] += count;
+		}
+	}
+
+	// Add the counts of a block to the buckets of a query that it overlaps.
+	private static void addBlock(long[] clicks, long first,
+			Resolution resolution, long block, long[] counts) {
+		long start = block * resolution.bucketsPerEntity;
+		for (int i = 0; i < counts.length; i++) {
+			long index = start + i - first;
+			if (index >= 0 && index < clicks.length) {
+				clicks[(int) index] += counts[i];
+			}
+		}
+	}
+
+	private static String ringName(Scope scope, String name) {
+		return scope.name() + '/' + name;
+	}
+
+	// Rollup entities are named scope/name/resolution/block.
+	private static String entityName(String ringName, Resolution resolution,
+			long block) {
+		return ringName + '/' + resolution.name() + '/' + block;
+	}
+
+	private static long blockOf(String entityName) {
+		return Long.parseLong(entityName.substring(entityName
+				.lastIndexOf('/') + 1));
+	}
+
+	private static Key rollupKey(String entityName) {
+		return KeyFactory.createKey(KIND, entityName);
+	}
+
+	static Blob encode(long[] counts) {
+		ByteBuffer buffer = ByteBuffer.allocate(counts.length * 8);
+		buffer.asLongBuffer().put(counts);
+		return new Blob(buffer.array());
+	}
+
+	static long[] decode(Entity entity) {
+		Object counts = entity.getProperty(COUNTS);
+		if (!(counts instanceof Blob)) {
+			return new long[0];
+		}
+		long[] decoded = new long[((Blob) counts).getBytes().length / 8];
+		ByteBuffer.wrap(((Blob) counts).getBytes()).asLongBuffer().get(decoded);
+		return decoded;
+	}
+
+	/**
+	 * Clicks per minute of one link or campaign for the last
+	 * {@link #RING_MINUTES} minutes. Minutes overwritten before they were
+	 * flushed are spilled to the pending counts.
+	 */
+	private final class MinuteRing {
+
+		private final String name;
+
+		private final long[] minutes = new long[RING_MINUTES];
+
+		private final long[] counts = new long[RING_MINUTES];
+
+		// Set by a flush that found the ring idle.
+		private boolean retired = false;
+
+		MinuteRing(String name) {
+			this.name = name;
+		}
+
+		// Returns false if the ring was retired and must be replaced.
+		synchronized boolean add(long minute) {
+			if (retired) {
+				return false;
+			}
+			int slot = (int) (minute % RING_MINUTES);
+			if (minutes[slot] != minute) {
+				if (counts[slot] != 0) {
+					spill(name, minutes[slot], counts[slot]);
+				}
+				minutes[slot] = minute;
+				counts[slot] = 0;
+			}
+			counts[slot]++;
+			return true;
+		}
+
+		// Take the counts as minute, count pairs, or retire the ring and
+		// return null if there are none.
+		synchronized long[] drain() {
+			long[] drained = snapshot();
+			if (drained.length == 0) {
+				retired = true;
+				return null;
+			}
+			for (int slot = 0; slot < RING_MINUTES; slot++) {
+				counts[slot] = 0;
+			}
+			return drained;
+		}
+
+		// The counts as minute, count pairs.
+		synchronized long[] snapshot() {
+			int used = 0;
+			for (int slot = 0; slot < RING_MINUTES; slot++) {
+				if (counts[slot] != 0) {
+					used++;
+				}
+			}
+			long[] pairs = new long[used * 2];
+			int next = 0;
+			for (int slot = 0; slot < RING_MINUTES; slot++) {
+				if (counts[slot] != 0) {
+					pairs[next++] = minutes[slot];
+					pairs[next++] = counts[slot];
+				}
+			}
+			return pairs;
+		}
+	}
+}
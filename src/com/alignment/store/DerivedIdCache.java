@@ -0,0 +1,55 @@
+package com.alignment.store;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Bounded instance local cache of the ids derived for links, by campaign, url
+ * and position. Ids are only cached once their redirect has been written, so
+ * a link found in the cache needs no lookup or write when it is registered
+ * again, as happens when every personalized variant of an email is rewritten.
+ * Entries are evicted by size, least recently used first.
+ */
+final class DerivedIdCache {
+
+	/**
+	 * Default maximum number of ids held by the cache.
+	 */
+	static final int DEFAULT_MAXIMUM_SIZE = 100000;
+
+	private final Cache<String, String> cache;
+
+	DerivedIdCache() {
+		this(DEFAULT_MAXIMUM_SIZE);
+	}
+
+	DerivedIdCache(int maximumSize) {
+		checkArgument(maximumSize > 0, "Maximum size must be positive.");
+		cache = CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+	}
+
+	/**
+	 * @return The id registered for the link or {@code null}.
+	 */
+	String get(String campaign, String url, int position) {
+		return cache.getIfPresent(key(campaign, url, position));
+	}
+
+	void put(String campaign, String url, int position, String id) {
+		cache.put(key(campaign, url, position), id);
+	}
+
+	long size() {
+		return cache.size();
+	}
+
+	// The campaign length keeps the campaign from running into the url.
+	private static String key(String campaign, String url, int position) {
+		String campaignName = campaign == null ? "" : campaign;
+		return new StringBuilder(campaignName.length() + url.length() + 16)
+				.append(position).append(':').append(campaignName.length())
+				.append(':').append(campaignName).append(url).toString();
+	}
+}
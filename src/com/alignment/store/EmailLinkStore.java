@@ -1,82 +1,1082 @@
 package com.alignment.store;
 
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.alignment.metrics.Gauge;
+import com.alignment.metrics.Metrics;
 import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entities;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.memcache.AsyncMemcacheService;
+import com.google.appengine.api.memcache.Expiration;
 import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.base.Function;
+import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 public class EmailLinkStore {
 
 	private static final Logger logger = Logger.getLogger(EmailLinkStore.class
 			.getName());
 
-	private enum EntityProps {
+	enum EntityProps {
 		// The time that a link was hit.
 		HIT_TIME,
 		// The redirect path for a specific link id.
-		REDIRECT;
+		REDIRECT,
+		// The campaign that a redirect was created for.
+		CAMPAIGN,
+		// The time that a redirect was created.
+		CREATED,
+		// The ids of the hottest links.
+		LINK_IDS,
+		// The id of the link of a hit stored as a URL_HIT entity, which hits
+		// only were for a while. Other hits are of a kind named after their
+		// link.
+		LINK_ID,
+		// The policy of a redirect, left out for the default policy.
+		POLICY,
+		// When a redirect expires, left out for redirects that never do.
+		EXPIRES;
+
+	}
+
+	enum KeyNames {
+		URL_HIT, REDIRECT, HOT_LINKS;
+	}
+
+	// Number of entities fetched per batch when writing a snapshot.
+	private static final int SNAPSHOT_CHUNK_SIZE = 1000;
+
+	// Most entities the datastore accepts in one put.
+	private static final int MAX_BATCH_PUT = 500;
+
+	// Most keys the datastore accepts in one delete.
+	private static final int MAX_BATCH_DELETE = 500;
+
+	// Most keys the datastore accepts in one get.
+	private static final int MAX_BATCH_GET = 1000;
+
+	// Attempts at deriving an id for a link before giving up, each collision
+	// with another link moves on to the next attempt.
+	private static final int MAX_DERIVE_ATTEMPTS = 8;
+
+	// Attempts at creating a compact redirect before giving up, each taken
+	// id moves on to a fresh one.
+	private static final int MAX_COMPACT_ATTEMPTS = 8;
+
+	// Number of hits read per page when exporting hits.
+	private static final int EXPORT_PAGE_SIZE = 1000;
+
+	// Number of hot redirects kept ready to be written as responses.
+	private static final int PREPARED_REDIRECTS = 1000;
+
+	// Unpacks the url of a redirect held by the local tiers.
+	private static final Function<String, String> URL = new Function<String, String>() {
+		@Override
+		public String apply(String packed) {
+			return Redirect.urlOf(packed);
+		}
+	};
+
+	// Memcache namespace of redirect entities, so they can be told apart
+	// from and flushed separately to anything else the app caches.
+	static final String REDIRECT_NAMESPACE = "redirects";
+
+	// How long expired redirects are kept before they are swept, so their
+	// ids are still answered as expired rather than unknown.
+	static final long SWEEP_GRACE_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+	// Number of link campaigns kept for links outside the local cache.
+	private static final int LINK_CAMPAIGNS = 10000;
+
+	// Number of hot link ids published for warming up new instances.
+	private static final int HOT_LINKS_PUBLISHED = 1000;
+
+	// How often an instance publishes the links it has seen the most.
+	private static final long HOT_LINKS_INTERVAL_MILLIS = TimeUnit.MINUTES
+			.toMillis(5);
+
+	// Expected rate of unknown ids let through by the live id filter.
+	private static final double LIVE_ID_FALSE_POSITIVE_RATE = 0.01;
+
+	// Margin for redirects written by other instances while the live id
+	// filter is being built, and for clock differences between instances.
+	private static final long LIVE_ID_MARGIN_MILLIS = TimeUnit.MINUTES
+			.toMillis(1);
+
+	// Instance local redirect tier checked before the cache and the datastore.
+	private volatile RedirectSnapshot snapshot;
+
+	// Filter used to reject unknown ids without a lookup.
+	private volatile LiveIdFilter liveIds;
+
+	// Bounded instance local tier checked before memcache.
+	private final LocalRedirectCache localCache = new LocalRedirectCache();
+
+	// Unpacked redirects of the most recently looked up links, checked before
+	// the other local tiers.
+	private final Cache<String, Redirect> prepared = CacheBuilder
+			.newBuilder().maximumSize(PREPARED_REDIRECTS).build();
+
+	// Campaigns of links that are not in the local cache, empty for links
+	// without one.
+	private final Cache<String, String> campaigns = CacheBuilder.newBuilder()
+			.maximumSize(LINK_CAMPAIGNS).build();
+
+	// Ids of the links registered by this instance, by campaign, url and
+	// position.
+	private final DerivedIdCache derivedIds = new DerivedIdCache();
+
+	// Shares one backend fetch between concurrent misses for an id.
+	private final RequestCoalescer<String> coalescer = new RequestCoalescer<>();
+
+	// Clicks per link and campaign in minute, hour and day buckets.
+	private final ClickRollups rollups = new ClickRollups();
+
+	// Lookup counts used to publish the hottest links.
+	private final HotLinkTracker hotLinks = new HotLinkTracker();
+
+	private final AtomicLong lastHotLinkPublish = new AtomicLong(
+			System.currentTimeMillis());
+
+	/**
+	 * Register the gauges of this store with {@link Metrics}. Gauges are
+	 * process wide and replace any registered under the same name, so only
+	 * the store shared by the servlets registers them.
+	 */
+	public void registerMetrics() {
+		Metrics.gauge("redirect.coalesced", new Gauge() {
+			@Override
+			public long get() {
+				return coalescer.getCoalescedCount();
+			}
+		});
+		Metrics.gauge("redirect.leaders", new Gauge() {
+			@Override
+			public long get() {
+				return coalescer.getLeaderCount();
+			}
+		});
+		Metrics.gauge("redirect.local.expired", new Gauge() {
+			@Override
+			public long get() {
+				return localCache.expirationCount();
+			}
+		});
+	}
+
+	/**
+	 * Set the memory mapped redirect snapshot that is consulted before the
+	 * cache and the datastore. New redirects are added to its overlay.
+	 * 
+	 * @param snapshot
+	 *            The snapshot to use, or {@code null} to disable the tier.
+	 */
+	public void setSnapshot(RedirectSnapshot snapshot) {
+		this.snapshot = snapshot;
+	}
+
+	/**
+	 * Write every redirect in the datastore to a redirect table file that can
+	 * be opened with {@link RedirectSnapshot#open(Path)}. The entities are read
+	 * in large batches and streamed to the file.
+	 * 
+	 * @param file
+	 *            The file to write the table to.
+	 * 
+	 * @return The number of redirects written.
+	 */
+	public int writeSnapshot(Path file) throws IOException {
+		DatastoreService datastore = DatastoreServiceFactory
+				.getDatastoreService();
+		Query query = new Query(KeyNames.REDIRECT.name());
+
+		try (RedirectTable.Writer writer = new RedirectTable.Writer(file)) {
+			for (Entity entity : datastore.prepare(query).asIterable(
+					FetchOptions.Builder.withChunkSize(SNAPSHOT_CHUNK_SIZE))) {
+				String redirect = parseRedirect(entity);
+				if (redirect != null) {
+					writer.add(entity.getKey().getName(), redirect);
+				}
+			}
+			return writer.commit();
+		}
+	}
+
+	/**
+	 * Build the filter of live ids from a keys only scan of the redirects.
+	 * Until this has been called {@link #getLiveIdFilter()} returns
+	 * {@code null}.
+	 * 
+	 * @param rejectLegacyIds
+	 *            Whether ids that are not compact are judged by the filter.
+	 * 
+	 * @return The new filter.
+	 */
+	public LiveIdFilter buildLiveIdFilter(boolean rejectLegacyIds) {
+		long coveredUntil = System.currentTimeMillis() - LIVE_ID_MARGIN_MILLIS;
+		DatastoreService datastore = DatastoreServiceFactory
+				.getDatastoreService();
+		Query query = new Query(KeyNames.REDIRECT.name()).setKeysOnly();
+
+		List<String> ids = new ArrayList<>();
+		for (Entity entity : datastore.prepare(query).asIterable(
+				FetchOptions.Builder.withChunkSize(SNAPSHOT_CHUNK_SIZE))) {
+			ids.add(entity.getKey().getName());
+		}
+		LiveIdFilter filter = LiveIdFilter.create(ids.size() * 2,
+				LIVE_ID_FALSE_POSITIVE_RATE, coveredUntil, rejectLegacyIds);
+		for (String id : ids) {
+			filter.put(id);
+		}
+		liveIds = filter;
+		return filter;
+	}
+
+	/**
+	 * Delete the redirects that expired more than a week ago, a batch at a
+	 * time, until there are none left or the time is up. Until they are
+	 * swept, expired links are answered as expired rather than unknown.
+	 * 
+	 * @param budgetMillis
+	 *            How long the sweep may take.
+	 * 
+	 * @return The number of redirects deleted.
+	 */
+	public int sweepExpiredRedirects(long budgetMillis) {
+		long start = System.currentTimeMillis();
+		DatastoreService datastore = DatastoreServiceFactory
+				.getDatastoreService();
+		Query query = new Query(KeyNames.REDIRECT.name()).setFilter(
+				new FilterPredicate(EntityProps.EXPIRES.name(),
+						FilterOperator.LESS_THAN, new Date(start
+								- SWEEP_GRACE_MILLIS))).setKeysOnly();
 
+		// Memcache entries have expired already, only the local tiers of
+		// this instance need to forget the ids.
+		int swept = 0;
+		List<Key> batch = new ArrayList<>(MAX_BATCH_DELETE);
+		for (Entity entity : datastore.prepare(query).asIterable(
+				FetchOptions.Builder.withChunkSize(MAX_BATCH_DELETE))) {
+			batch.add(entity.getKey());
+			if (batch.size() == MAX_BATCH_DELETE) {
+				swept += deleteRedirects(datastore, batch);
+				if (System.currentTimeMillis() - start >= budgetMillis) {
+					return swept;
+				}
+			}
+		}
+		return swept + deleteRedirects(datastore, batch);
 	}
 
-	private enum KeyNames {
-		URL_HIT, REDIRECT;
+	private int deleteRedirects(DatastoreService datastore, List<Key> batch) {
+		int deleted = batch.size();
+		if (deleted > 0) {
+			datastore.delete(batch);
+			for (Key key : batch) {
+				localCache.remove(key.getName());
+				prepared.invalidate(key.getName());
+			}
+			batch.clear();
+		}
+		return deleted;
+	}
+
+	/**
+	 * @return The filter of live ids, or {@code null} if it has not been
+	 *         built.
+	 */
+	public LiveIdFilter getLiveIdFilter() {
+		return liveIds;
 	}
 
 	public void addUrlHit(String id) {
+		addUrlHit(id, null);
+	}
+
+	/**
+	 * Get the campaign of a link, to count its clicks towards. The local
+	 * cache knows the campaigns of the redirects it holds. The campaigns of
+	 * other links, such as those answered by the snapshot, are read from
+	 * memcache or the datastore once and then remembered.
+	 * 
+	 * @return The campaign, {@code null} if the link has none or is unknown.
+	 */
+	public String campaignOf(String id) {
+		if (localCache.contains(id)) {
+			return localCache.campaignOf(id);
+		}
+		String campaign = campaigns.getIfPresent(id);
+		if (campaign == null) {
+			Key key = redirectKey(id);
+			Entity entity = getFromCache(key);
+			if (entity == null) {
+				try {
+					entity = getFromDatastore(key);
+				} catch (EntityNotFoundException e) {
+					return null;
+				}
+			}
+			campaign = Strings.nullToEmpty(campaignOf(entity));
+			campaigns.put(id, campaign);
+		}
+		return Strings.emptyToNull(campaign);
+	}
+
+	/**
+	 * Record a hit on a link, counting it towards the click rollups of the
+	 * link and of its campaign.
+	 * 
+	 * @param campaign
+	 *            The campaign of the link, may be {@code null}.
+	 */
+	public void addUrlHit(String id, String campaign) {
 		if (logger.isLoggable(Level.FINE)) {
 			logger.fine("Url with id " + id + " hit.");
 		}
 
 		Key key = KeyFactory.createKey(KeyNames.URL_HIT.name(), id);
+		Date now = new Date();
 
 		Entity entity = new Entity(id);
-		entity.setProperty(EntityProps.HIT_TIME.name(), new Date());
+		entity.setProperty(EntityProps.HIT_TIME.name(), now);
 
-		putInCache(key, entity);
+		// The redirects namespace only holds redirect entities.
+		MemcacheServiceFactory.getMemcacheService().put(key, entity);
 		putInDatastore(entity);
+		rollups.record(id, campaign, now.getTime());
+		rollups.flushIfDue();
+	}
+
+	/**
+	 * Export every recorded hit to a {@link HitArchive}. Hits are stored under
+	 * a kind named after their link, except for those recorded as
+	 * {@code URL_HIT} entities that carry their link id, and both are
+	 * exported. The hit kinds are listed from the kind metadata, and the hits
+	 * are written one kind at a time, oldest first within each kind. Each
+	 * kind is read in large pages, each one started from the cursor of the
+	 * previous page, and written a block at a time, so the export runs in
+	 * constant memory however many hits there are.
+	 * 
+	 * @param out
+	 *            The stream the archive is written to. It is not closed.
+	 * 
+	 * @return The number of hits exported.
+	 */
+	public long exportHits(OutputStream out) throws IOException {
+		DatastoreService datastore = DatastoreServiceFactory
+				.getDatastoreService();
+		HitArchive.Writer writer = new HitArchive.Writer(out);
+		exportHits(datastore, KeyNames.URL_HIT.name(), null, writer);
+		for (Entity kind : datastore.prepare(
+				new Query(Entities.KIND_METADATA_KIND).setKeysOnly())
+				.asIterable()) {
+			String name = kind.getKey().getName();
+			if (isHitKind(name)) {
+				exportHits(datastore, name, name, writer);
+			}
+		}
+		writer.close();
+		return writer.getHitCount();
+	}
+
+	// Write the hits of a kind to an archive, oldest first. The link id is
+	// read from each hit if it is null.
+	private static void exportHits(DatastoreService datastore, String kind,
+			String linkId, HitArchive.Writer writer) throws IOException {
+		PreparedQuery hitQuery = datastore.prepare(new Query(kind).addSort(
+				EntityProps.HIT_TIME.name(), SortDirection.ASCENDING));
+		Cursor cursor = null;
+		while (true) {
+			FetchOptions page = FetchOptions.Builder.withLimit(
+					EXPORT_PAGE_SIZE).chunkSize(EXPORT_PAGE_SIZE);
+			if (cursor != null) {
+				page.startCursor(cursor);
+			}
+			QueryResultList<Entity> hitPage = hitQuery.asQueryResultList(page);
+			for (Entity entity : hitPage) {
+				Object time = entity.getProperty(EntityProps.HIT_TIME.name());
+				Object id = linkId != null ? linkId : entity
+						.getProperty(EntityProps.LINK_ID.name());
+				if (time instanceof Date && id instanceof String) {
+					writer.add((String) id, ((Date) time).getTime());
+				}
+			}
+			if (hitPage.size() < EXPORT_PAGE_SIZE) {
+				break;
+			}
+			cursor = hitPage.getCursor();
+		}
+	}
+
+	// Whether a kind holds the hits of the link it is named after, rather
+	// than being one of the kinds of the store or of the datastore itself.
+	private static boolean isHitKind(String kind) {
+		if (kind.startsWith("__") || kind.equals(ClickRollups.KIND)
+				|| kind.equals(ClickRollups.MARKER_KIND)) {
+			return false;
+		}
+		for (KeyNames name : KeyNames.values()) {
+			if (name.name().equals(kind)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Write the click rollups that have not been written yet.
+	 */
+	public void flushClickRollups() {
+		rollups.flush();
+	}
+
+	/**
+	 * Get the click rollups of the links and campaigns, which answer click
+	 * counts over time without reading the hits.
+	 */
+	public ClickRollups getClickRollups() {
+		return rollups;
 	}
 
 	public void createUrlRedirect(String id, String redirect) {
+		createUrlRedirect(id, redirect, null);
+	}
 
-		Key key = KeyFactory.createKey(KeyNames.REDIRECT.name(), id);
+	/**
+	 * Create a redirect with a new compact id. Ids created in the same second
+	 * only differ in their random bits, so the redirect is written in a
+	 * transaction that fails if the id is taken, and a taken id is replaced
+	 * by a fresh one.
+	 * 
+	 * @param campaign
+	 *            The campaign of the redirect, may be {@code null}.
+	 * 
+	 * @return The id of the redirect.
+	 * 
+	 * @see LinkIds
+	 */
+	public String createCompactRedirect(String redirect, String campaign) {
+		DatastoreService datastore = DatastoreServiceFactory
+				.getDatastoreService();
+		for (int attempt = 1;; attempt++) {
+			String id = LinkIds.encode(LinkIds.newId());
+			Entity entity = redirectEntity(id, redirect, campaign,
+					RedirectPolicy.DEFAULT);
+			if (putIfAbsent(datastore, entity)) {
+				cacheRedirect(id, entity);
+				return id;
+			}
+			checkState(attempt < MAX_COMPACT_ATTEMPTS,
+					"No free compact id after %s attempts.", attempt);
+		}
+	}
+
+	// Put an entity unless its key is taken, false if it is.
+	private static boolean putIfAbsent(DatastoreService datastore, Entity entity) {
+		Transaction txn = datastore.beginTransaction();
+		try {
+			datastore.get(txn, entity.getKey());
+			return false;
+		} catch (EntityNotFoundException e) {
+			datastore.put(txn, entity);
+			txn.commit();
+			return true;
+		} catch (ConcurrentModificationException e) {
+			// Another request wrote the same key first.
+			return false;
+		} finally {
+			if (txn.isActive()) {
+				txn.rollback();
+			}
+		}
+	}
 
-		Entity entity = new Entity(id, key);
-		entity.setProperty(EntityProps.REDIRECT.name(), redirect);
+	/**
+	 * Create a redirect that belongs to a campaign. Redirects of the most
+	 * recent campaigns are loaded when an instance warms up.
+	 * 
+	 * @param campaign
+	 *            The campaign of the redirect, may be {@code null}.
+	 */
+	public void createUrlRedirect(String id, String redirect, String campaign) {
+		createUrlRedirect(id, redirect, campaign, RedirectPolicy.DEFAULT);
+	}
 
-		putInCache(key, entity);
+	/**
+	 * Create a redirect that belongs to a campaign and is answered with the
+	 * provided policy.
+	 * 
+	 * @param campaign
+	 *            The campaign of the redirect, may be {@code null}.
+	 */
+	public void createUrlRedirect(String id, String redirect, String campaign,
+			RedirectPolicy policy) {
+		Entity entity = redirectEntity(id, redirect, campaign, policy);
+		cacheRedirect(id, entity);
 		putInDatastore(entity);
 	}
 
+	// Build the entity of a new redirect.
+	private static Entity redirectEntity(String id, String redirect,
+			String campaign, RedirectPolicy policy) {
+		Date created = new Date();
+		Entity entity = new Entity(redirectKey(id));
+		entity.setProperty(EntityProps.REDIRECT.name(),
+				Redirect.encodeLineBreaks(redirect));
+		entity.setProperty(EntityProps.CAMPAIGN.name(), campaign);
+		entity.setProperty(EntityProps.CREATED.name(), created);
+		setPolicy(entity, policy, policy.expiresMillis(created.getTime()));
+		return entity;
+	}
+
+	// Add a new redirect to the local tiers and memcache.
+	private void cacheRedirect(String id, Entity entity) {
+		String packed = parseRedirect(entity);
+		String campaign = campaignOf(entity);
+		RedirectSnapshot local = snapshot;
+		if (local != null) {
+			local.put(id, packed);
+		}
+		LiveIdFilter filter = liveIds;
+		if (filter != null) {
+			filter.put(id);
+		}
+		localCache.put(id, packed, campaign);
+		prepared.invalidate(id);
+		putInCache(entity.getKey(), entity);
+	}
+
+	/**
+	 * Create the redirects of a campaign with one batched datastore write and
+	 * one memcache write, splitting the datastore write if it holds more
+	 * entities than the datastore accepts at once. Returns once the datastore
+	 * write has completed.
+	 * 
+	 * @param redirects
+	 *            The redirects by link id.
+	 * 
+	 * @param campaign
+	 *            The campaign of the redirects, may be {@code null}.
+	 */
+	public void createUrlRedirects(Map<String, String> redirects,
+			String campaign) {
+		createUrlRedirects(redirects, campaign, RedirectPolicy.DEFAULT);
+	}
+
+	/**
+	 * Create the redirects of a campaign that are all answered with the
+	 * provided policy.
+	 * 
+	 * @see #createUrlRedirects(Map, String)
+	 */
+	public void createUrlRedirects(Map<String, String> redirects,
+			String campaign, RedirectPolicy policy) {
+		if (redirects.isEmpty()) {
+			return;
+		}
+		Date created = new Date();
+		long expires = policy.expiresMillis(created.getTime());
+		List<Entity> entities = new ArrayList<>(redirects.size());
+		Map<Key, Entity> cached = new HashMap<>();
+		Map<String, String> packed = new HashMap<>();
+		RedirectSnapshot local = snapshot;
+		LiveIdFilter filter = liveIds;
+		for (Map.Entry<String, String> redirect : redirects.entrySet()) {
+			String url = Redirect.encodeLineBreaks(redirect.getValue());
+			Entity entity = new Entity(redirectKey(redirect.getKey()));
+			entity.setProperty(EntityProps.REDIRECT.name(), url);
+			entity.setProperty(EntityProps.CAMPAIGN.name(), campaign);
+			entity.setProperty(EntityProps.CREATED.name(), created);
+			setPolicy(entity, policy, expires);
+			entities.add(entity);
+			cached.put(entity.getKey(), entity);
+			packed.put(redirect.getKey(), Redirect.pack(url, policy, expires));
+
+			if (local != null) {
+				local.put(redirect.getKey(), packed.get(redirect.getKey()));
+			}
+			if (filter != null) {
+				filter.put(redirect.getKey());
+			}
+		}
+		localCache.putAll(packed, campaign);
+		prepared.invalidateAll(redirects.keySet());
+		putAllInCache(redirectMemcache(), cached);
+		DatastoreService datastore = DatastoreServiceFactory
+				.getDatastoreService();
+		for (List<Entity> batch : Lists.partition(entities, MAX_BATCH_PUT)) {
+			datastore.put(batch);
+		}
+	}
+
+	/**
+	 * Get the id a link will most likely be registered under, without any
+	 * lookup. This is the id registered by this instance if there is one,
+	 * otherwise the first id derived for the link, which is only replaced if
+	 * {@link #createDerivedRedirects} finds it taken by another link.
+	 * 
+	 * @param campaign
+	 *            The campaign of the link, may be {@code null}.
+	 * 
+	 * @see LinkIds#deriveId(String, String, int, int)
+	 */
+	public String deriveLinkId(String campaign, String url, int position) {
+		url = Redirect.encodeLineBreaks(url);
+		String id = derivedIds.get(campaign, url, position);
+		if (id == null) {
+			id = LinkIds.encodeDerived(LinkIds.deriveId(campaign, url,
+					position, 0));
+		}
+		return id;
+	}
+
+	/**
+	 * Register the links of an email under ids derived from the campaign, the
+	 * url and the position of each link. Registering the same links again
+	 * gives the same ids and writes nothing: links this instance has
+	 * registered are not looked up at all, others are looked up with one
+	 * batched get and only the redirects that do not exist yet are written.
+	 * An id already taken by a different url is a hash collision, the link
+	 * then moves on to the next id derived for it.
+	 * 
+	 * @param urls
+	 *            The links by position.
+	 * 
+	 * @param campaign
+	 *            The campaign of the links, may be {@code null}.
+	 * 
+	 * @return The ids of the links by position.
+	 */
+	public List<String> createDerivedRedirects(List<String> urls,
+			String campaign) {
+		return createDerivedRedirects(urls, campaign, RedirectPolicy.DEFAULT);
+	}
+
+	/**
+	 * Register the links of an email under derived ids with the provided
+	 * policy. Links that were already registered keep the policy they were
+	 * first registered with.
+	 * 
+	 * @see #createDerivedRedirects(List, String)
+	 */
+	public List<String> createDerivedRedirects(List<String> urls,
+			String campaign, RedirectPolicy policy) {
+		List<String> encoded = new ArrayList<>(urls.size());
+		for (String url : urls) {
+			encoded.add(Redirect.encodeLineBreaks(url));
+		}
+		urls = encoded;
+		String[] ids = new String[urls.size()];
+		int[] attempts = new int[urls.size()];
+		List<Integer> unresolved = new ArrayList<>();
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = derivedIds.get(campaign, urls.get(i), i);
+			if (ids[i] == null) {
+				unresolved.add(i);
+			}
+		}
+
+		// Urls of the ids resolved by this call, so links of the email cannot
+		// take each other's ids.
+		Map<String, String> claimed = new HashMap<>();
+		Map<String, String> created = new LinkedHashMap<>();
+		DatastoreService datastore = DatastoreServiceFactory
+				.getDatastoreService();
+		while (!unresolved.isEmpty()) {
+			List<Integer> next = new ArrayList<>();
+			Map<Key, Integer> pending = new LinkedHashMap<>();
+			for (int i : unresolved) {
+				String url = urls.get(i);
+				ids[i] = LinkIds.encodeDerived(LinkIds.deriveId(campaign, url,
+						i, attempts[i]));
+				String owner = claimed.get(ids[i]);
+				Key key = redirectKey(ids[i]);
+				if (owner != null) {
+					if (!owner.equals(url)) {
+						nextAttempt(attempts, i, next);
+					}
+				} else if (pending.containsKey(key)) {
+					// Decided once the link that asked first is resolved.
+					next.add(i);
+				} else {
+					pending.put(key, i);
+				}
+			}
+			for (List<Key> batch : Lists.partition(
+					new ArrayList<>(pending.keySet()), MAX_BATCH_GET)) {
+				Map<Key, Entity> stored = datastore.get(batch);
+				for (Key key : batch) {
+					int i = pending.get(key);
+					String url = urls.get(i);
+					Entity entity = stored.get(key);
+					if (entity == null) {
+						created.put(ids[i], url);
+						claimed.put(ids[i], url);
+					} else if (url.equals(Redirect.urlOf(parseRedirect(entity)))) {
+						claimed.put(ids[i], url);
+					} else {
+						nextAttempt(attempts, i, next);
+					}
+				}
+			}
+			unresolved = next;
+		}
+
+		createUrlRedirects(created, campaign, policy);
+		for (int i = 0; i < ids.length; i++) {
+			derivedIds.put(campaign, urls.get(i), i, ids[i]);
+		}
+		return Arrays.asList(ids);
+	}
+
+	private static void nextAttempt(int[] attempts, int link, List<Integer> next) {
+		attempts[link]++;
+		checkState(attempts[link] < MAX_DERIVE_ATTEMPTS,
+				"No free id for link %s.", link);
+		next.add(link);
+	}
+
 	public String getRedirect(String id) throws EntityNotFoundException {
-		Key key = KeyFactory.createKey(KeyNames.REDIRECT.name(), id);
+		return Redirect.urlOf(getPacked(id));
+	}
+
+	/**
+	 * Look up the redirect of a link with its policy. The redirects of the
+	 * most recently looked up links are kept unpacked, so answering a hot
+	 * link does not parse anything.
+	 * 
+	 * @throws EntityNotFoundException
+	 *             If the id has no redirect.
+	 */
+	public Redirect lookupRedirect(String id) throws EntityNotFoundException {
+		Redirect redirect = getPrepared(id, System.nanoTime());
+		if (redirect == null) {
+			redirect = prepare(id, getPacked(id));
+		}
+		return redirect;
+	}
+
+	// Get a redirect in the packed form held by the local tiers.
+	private String getPacked(final String id) throws EntityNotFoundException {
+		String redirect = getLocal(id, System.nanoTime());
+		if (redirect != null) {
+			return redirect;
+		}
+
+		// Concurrent misses for the same id share one backend fetch.
+		Future<String> shared = coalescer.fetch(id,
+				new Callable<Future<String>>() {
+					@Override
+					public Future<String> call() throws EntityNotFoundException {
+						return Futures.immediateFuture(fetchRedirect(id));
+					}
+				});
+		try {
+			return Uninterruptibles.getUninterruptibly(shared);
+		} catch (ExecutionException e) {
+			Throwables.propagateIfInstanceOf(e.getCause(),
+					EntityNotFoundException.class);
+			throw Throwables.propagate(e.getCause());
+		}
+	}
+
+	// Read a redirect from memcache or the datastore, filling the caches.
+	private String fetchRedirect(String id) throws EntityNotFoundException {
+		long start = System.nanoTime();
+		Key key = redirectKey(id);
 
 		Entity entity = getFromCache(key);
 
-		if (entity != null) {
-			return parseRedirect(entity);
-		} else {
+		if (entity == null) {
 			entity = getFromDatastore(key);
-			return parseRedirect(entity);
+			putInCache(key, entity);
+			RedirectTier.DATASTORE.resolved(id, start);
+		} else {
+			RedirectTier.MEMCACHE.resolved(id, start);
+		}
+		String redirect = parseRedirect(entity);
+		if (redirect != null) {
+			localCache.put(id, redirect, campaignOf(entity));
 		}
+		return redirect;
 	}
 
-	private String parseRedirect(Entity entity) {
+	/**
+	 * Look up a redirect without waiting on memcache or the datastore. Local
+	 * hits complete immediately, otherwise an asynchronous memcache get and an
+	 * asynchronous datastore get are issued together, and memcache answers if
+	 * it has the redirect. An
+	 * unknown id completes the future with an {@code ExecutionException}
+	 * caused by an {@link EntityNotFoundException}.
+	 * 
+	 * @param id
+	 *            The link id.
+	 * 
+	 * @return The pending redirect.
+	 */
+	public Future<String> getRedirectAsync(String id) {
+		return Futures.lazyTransform(getPackedAsync(id), URL);
+	}
+
+	/**
+	 * Look up the redirect of a link with its policy without waiting on
+	 * memcache or the datastore.
+	 * 
+	 * @see #getRedirectAsync(String)
+	 * @see #lookupRedirect(String)
+	 */
+	public Future<Redirect> lookupRedirectAsync(final String id) {
+		Redirect redirect = getPrepared(id, System.nanoTime());
+		if (redirect != null) {
+			return Futures.immediateFuture(redirect);
+		}
+		return Futures.lazyTransform(getPackedAsync(id),
+				new Function<String, Redirect>() {
+					@Override
+					public Redirect apply(String packed) {
+						return prepare(id, packed);
+					}
+				});
+	}
+
+	private Future<String> getPackedAsync(final String id) {
+		String redirect = getLocal(id, System.nanoTime());
+		if (redirect != null) {
+			return Futures.immediateFuture(redirect);
+		}
+		return coalescer.fetch(id, new Callable<Future<String>>() {
+			@Override
+			public Future<String> call() {
+				return new AsyncRedirectLookup(id, redirectKey(id), localCache);
+			}
+		});
+	}
+
+	/**
+	 * Get the coalescer shared by concurrent cache misses, which counts leader
+	 * and coalesced lookups.
+	 */
+	public RequestCoalescer<String> getCoalescer() {
+		return coalescer;
+	}
+
+	// Look up a redirect in the instance local tiers, counting the lookup
+	// towards the hot links.
+	private Redirect getPrepared(String id, long start) {
+		Redirect redirect = prepared.getIfPresent(id);
+		if (redirect != null) {
+			hotLinks.record(id);
+			publishHotLinksIfDue();
+			RedirectTier.LOCAL.resolved(id, start);
+		}
+		return redirect;
+	}
+
+	private Redirect prepare(String id, String packed) {
+		Redirect redirect = Redirect.unpack(packed);
+		prepared.put(id, redirect);
+		return redirect;
+	}
+
+	private String getLocal(String id, long start) {
+		hotLinks.record(id);
+		publishHotLinksIfDue();
+
+		RedirectSnapshot local = snapshot;
+		if (local != null) {
+			String redirect = local.get(id);
+			if (redirect != null) {
+				RedirectTier.SNAPSHOT.resolved(id, start);
+				return redirect;
+			}
+		}
+		String redirect = localCache.get(id);
+		if (redirect != null) {
+			RedirectTier.LOCAL.resolved(id, start);
+		}
+		return redirect;
+	}
+
+	/**
+	 * Publish the ids this instance has looked up most often so that new
+	 * instances can warm up with them.
+	 * 
+	 * @param limit
+	 *            The maximum number of ids to publish.
+	 */
+	public void publishHotLinks(int limit) {
+		List<String> top = hotLinks.top(limit);
+		if (top.isEmpty()) {
+			return;
+		}
+		Entity entity = new Entity(hotLinksKey());
+		entity.setUnindexedProperty(EntityProps.LINK_IDS.name(), top);
+		putInDatastore(entity);
+		hotLinks.reset();
+	}
+
+	// Publish the hot links from the request path at most once per interval.
+	private void publishHotLinksIfDue() {
+		long last = lastHotLinkPublish.get();
+		long now = System.currentTimeMillis();
+		if (now - last >= HOT_LINKS_INTERVAL_MILLIS
+				&& lastHotLinkPublish.compareAndSet(last, now)) {
+			publishHotLinks(HOT_LINKS_PUBLISHED);
+		}
+	}
+
+	// The most recently published hot link ids, hottest first.
+	@SuppressWarnings("unchecked")
+	List<String> getPublishedHotLinks() {
+		DatastoreService datastore = DatastoreServiceFactory
+				.getDatastoreService();
+		try {
+			Object ids = datastore.get(hotLinksKey()).getProperty(
+					EntityProps.LINK_IDS.name());
+			if (ids instanceof List) {
+				return new ArrayList<>((List<String>) ids);
+			}
+		} catch (EntityNotFoundException e) {
+			// Nothing has been published yet.
+		}
+		return Collections.emptyList();
+	}
+
+	LocalRedirectCache getLocalCache() {
+		return localCache;
+	}
+
+	static Key redirectKey(String id) {
+		return KeyFactory.createKey(KeyNames.REDIRECT.name(), id);
+	}
+
+	private static Key hotLinksKey() {
+		return KeyFactory.createKey(KeyNames.HOT_LINKS.name(),
+				KeyNames.HOT_LINKS.name());
+	}
+
+	// Get the redirect of an entity in the packed form held by the local
+	// tiers, see Redirect.
+	static String parseRedirect(Entity entity) {
 		Object redirect = entity.getProperty(EntityProps.REDIRECT.name());
 		if (redirect != null) {
-			return (String) redirect;
+			return Redirect.pack((String) redirect, RedirectPolicy
+					.parse((String) entity.getProperty(EntityProps.POLICY
+							.name())), expiresOf(entity));
 		}
 		return null;
 	}
 
+	// Get when a redirect entity expires, zero if it never does.
+	static long expiresOf(Entity entity) {
+		Object expires = entity.getProperty(EntityProps.EXPIRES.name());
+		return expires instanceof Date ? ((Date) expires).getTime() : 0;
+	}
+
+	// Get how long memcache may keep a redirect entity, null if it is kept
+	// until evicted. Expired redirects are kept until they are swept, so
+	// clicks on them are answered as expired without reading the datastore.
+	static Expiration expirationOf(Entity entity) {
+		long expires = expiresOf(entity);
+		return expires > 0 ? cacheExpiration(expires) : null;
+	}
+
+	private static Expiration cacheExpiration(long expires) {
+		return Expiration.onDate(new Date(expires + SWEEP_GRACE_MILLIS));
+	}
+
+	// Put redirect entities in memcache, with one write for those that never
+	// expire and one for each expiry time of the others.
+	static void putAllInCache(MemcacheService memcache, Map<Key, Entity> entities) {
+		Map<Long, Map<Key, Entity>> byExpiry = new HashMap<>();
+		for (Map.Entry<Key, Entity> entry : entities.entrySet()) {
+			Long expires = expiresOf(entry.getValue());
+			Map<Key, Entity> batch = byExpiry.get(expires);
+			if (batch == null) {
+				batch = new HashMap<>();
+				byExpiry.put(expires, batch);
+			}
+			batch.put(entry.getKey(), entry.getValue());
+		}
+		for (Map.Entry<Long, Map<Key, Entity>> batch : byExpiry.entrySet()) {
+			if (batch.getKey() == 0) {
+				memcache.putAll(batch.getValue());
+			} else {
+				memcache.putAll(batch.getValue(),
+						cacheExpiration(batch.getKey()));
+			}
+		}
+	}
+
+	// Get the campaign a redirect entity was created for, or null.
+	static String campaignOf(Entity entity) {
+		return (String) entity.getProperty(EntityProps.CAMPAIGN.name());
+	}
+
+	// Memcache holding the redirect entities.
+	static MemcacheService redirectMemcache() {
+		return MemcacheServiceFactory.getMemcacheService(REDIRECT_NAMESPACE);
+	}
+
+	static AsyncMemcacheService asyncRedirectMemcache() {
+		return MemcacheServiceFactory
+				.getAsyncMemcacheService(REDIRECT_NAMESPACE);
+	}
+
+	private static void setPolicy(Entity entity, RedirectPolicy policy,
+			long expires) {
+		if (!policy.equals(RedirectPolicy.DEFAULT)) {
+			entity.setUnindexedProperty(EntityProps.POLICY.name(),
+					policy.toString());
+		}
+		// Indexed, expired redirects are swept by a query on it.
+		if (expires > 0) {
+			entity.setProperty(EntityProps.EXPIRES.name(), new Date(expires));
+		}
+	}
+
 	// Helper method to put the provided entity in the datastore.
 	private void putInDatastore(Entity entity) {
 		AsyncDatastoreService datastore = DatastoreServiceFactory
@@ -87,8 +1087,13 @@ public class EmailLinkStore {
 
 	// Helper method to put the provided entity into the cache.
 	private void putInCache(Key key, Entity entity) {
-		MemcacheService syncCache = MemcacheServiceFactory.getMemcacheService();
-		syncCache.put(key, entity);
+		MemcacheService syncCache = redirectMemcache();
+		Expiration expiration = expirationOf(entity);
+		if (expiration != null) {
+			syncCache.put(key, entity, expiration);
+		} else {
+			syncCache.put(key, entity);
+		}
 	}
 
 	// Helper method for getting an entity with the provided key from the
@@ -102,7 +1107,7 @@ public class EmailLinkStore {
 
 	// Helper method for getting an entity from the cache with the provided key.
 	private Entity getFromCache(Key key) {
-		MemcacheService syncCache = MemcacheServiceFactory.getMemcacheService();
+		MemcacheService syncCache = redirectMemcache();
 		Object value = syncCache.get(key);
 		if (value != null && value instanceof Entity) {
 			return (Entity) value;
@@ -0,0 +1,335 @@
+package com.alignment.store;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.CountingOutputStream;
+
+/**
+ * Columnar binary file of hits, written by {@link EmailLinkStore#exportHits}.
+ * Hits are stored in blocks of up to {@link #BLOCK_HITS} hits. Each block
+ * holds a dictionary of the link ids it uses, the link column as indexes
+ * into the dictionary and the time column as differences from the previous
+ * hit. A footer indexes the blocks by position and time range, so readers
+ * can skip blocks outside the times they want:
+ *
+ * <pre>
+ * header: int magic, int version
+ * block:  int hits, long firstTime, varint dictionarySize,
+ *         dictionarySize * (varint length, UTF-8 link id),
+ *         hits * varint linkIndex, (hits - 1) * zigzag varint timeDelta
+ * footer: blocks * (long offset, int hits, long minTime, long maxTime),
+ *         int blocks, long footerOffset, int magic
+ * </pre>
+ *
+ * Writing only holds the current block and the footer index in memory.
+ */
+public final class HitArchive {
+
+	/**
+	 * Most hits held by one block.
+	 */
+	public static final int BLOCK_HITS = 8192;
+
+	private static final int MAGIC = 0x414C4858;
+
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 8;
+
+	private static final int TRAILER_SIZE = 16;
+
+	private static final int INDEX_ENTRY_SIZE = 28;
+
+	/**
+	 * Receives the hits of an archive.
+	 */
+	public interface HitVisitor {
+
+		void visit(String linkId, long timeMillis);
+	}
+
+	private final ByteBuffer buffer;
+
+	private final int blocks;
+
+	private final long footerOffset;
+
+	private HitArchive(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		int capacity = buffer.capacity();
+		if (capacity < HEADER_SIZE + TRAILER_SIZE
+				|| buffer.getInt(0) != MAGIC
+				|| buffer.getInt(capacity - 4) != MAGIC) {
+			throw new IOException("Not a hit archive.");
+		}
+		if (buffer.getInt(4) != VERSION) {
+			throw new IOException("Unsupported hit archive version "
+					+ buffer.getInt(4));
+		}
+		this.blocks = buffer.getInt(capacity - TRAILER_SIZE);
+		this.footerOffset = buffer.getLong(capacity - TRAILER_SIZE + 4);
+		if (footerOffset + (long) blocks * INDEX_ENTRY_SIZE != capacity
+				- TRAILER_SIZE) {
+			throw new IOException("Corrupt hit archive footer.");
+		}
+	}
+
+	/**
+	 * Map the archive stored in the provided file.
+	 */
+	public static HitArchive open(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.READ)) {
+			MappedByteBuffer mapped = channel.map(MapMode.READ_ONLY, 0,
+					channel.size());
+			return new HitArchive(mapped);
+		}
+	}
+
+	/**
+	 * Read the archive held in the provided bytes.
+	 */
+	public static HitArchive wrap(byte[] bytes) throws IOException {
+		return new HitArchive(ByteBuffer.wrap(bytes));
+	}
+
+	/**
+	 * @return The number of blocks in the archive.
+	 */
+	public int blockCount() {
+		return blocks;
+	}
+
+	/**
+	 * @return The number of hits in the archive.
+	 */
+	public long size() {
+		long size = 0;
+		for (int block = 0; block < blocks; block++) {
+			size += buffer.getInt(indexEntry(block) + 8);
+		}
+		return size;
+	}
+
+	/**
+	 * Visit every hit in the order it was written.
+	 */
+	public void forEach(HitVisitor visitor) {
+		forEach(Long.MIN_VALUE, Long.MAX_VALUE, visitor);
+	}
+
+	/**
+	 * Visit the hits between two times, reading only the blocks whose time
+	 * range overlaps them.
+	 *
+	 * @param fromMillis
+	 *            The earliest time, inclusive.
+	 *
+	 * @param toMillis
+	 *            The latest time, exclusive.
+	 */
+	public void forEach(long fromMillis, long toMillis, HitVisitor visitor) {
+		for (int block = 0; block < blocks; block++) {
+			int entry = indexEntry(block);
+			long minTime = buffer.getLong(entry + 12);
+			long maxTime = buffer.getLong(entry + 20);
+			if (maxTime >= fromMillis && minTime < toMillis) {
+				readBlock(buffer.getLong(entry), fromMillis, toMillis, visitor);
+			}
+		}
+	}
+
+	private int indexEntry(int block) {
+		return (int) (footerOffset + (long) block * INDEX_ENTRY_SIZE);
+	}
+
+	private void readBlock(long offset, long fromMillis, long toMillis,
+			HitVisitor visitor) {
+		ByteBuffer in = buffer.duplicate();
+		in.position((int) offset);
+		int hits = in.getInt();
+		long time = in.getLong();
+		String[] dictionary = new String[(int) readVarint(in)];
+		for (int i = 0; i < dictionary.length; i++) {
+			byte[] id = new byte[(int) readVarint(in)];
+			in.get(id);
+			dictionary[i] = new String(id, Charsets.UTF_8);
+		}
+		int[] links = new int[hits];
+		for (int i = 0; i < hits; i++) {
+			links[i] = (int) readVarint(in);
+		}
+		for (int i = 0; i < hits; i++) {
+			if (i > 0) {
+				long zigzag = readVarint(in);
+				time += (zigzag >>> 1) ^ -(zigzag & 1);
+			}
+			if (time >= fromMillis && time < toMillis) {
+				visitor.visit(dictionary[links[i]], time);
+			}
+		}
+	}
+
+	private static long readVarint(ByteBuffer in) {
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = in.get();
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	/**
+	 * Streams hits to an archive a block at a time. The archive is complete
+	 * once the writer has been closed, which does not close the underlying
+	 * stream.
+	 */
+	public static final class Writer implements Closeable {
+
+		private final CountingOutputStream counted;
+
+		private final DataOutputStream out;
+
+		// Link ids of the current block, by their index in the dictionary.
+		private final Map<String, Integer> dictionary = new HashMap<>();
+
+		private final ByteArrayOutputStream dictionaryColumn = new ByteArrayOutputStream();
+
+		private final ByteArrayOutputStream linkColumn = new ByteArrayOutputStream();
+
+		private final ByteArrayOutputStream timeColumn = new ByteArrayOutputStream();
+
+		// Footer entries as offset, hits, min time and max time.
+		private final List<long[]> index = new ArrayList<>();
+
+		private int blockHits = 0;
+
+		private long firstTime;
+
+		private long lastTime;
+
+		private long minTime;
+
+		private long maxTime;
+
+		private long hits = 0;
+
+		private boolean closed = false;
+
+		public Writer(OutputStream out) throws IOException {
+			this.counted = new CountingOutputStream(out);
+			this.out = new DataOutputStream(counted);
+			this.out.writeInt(MAGIC);
+			this.out.writeInt(VERSION);
+		}
+
+		/**
+		 * Add a hit. Hits compress best when added in time order.
+		 */
+		public void add(String linkId, long timeMillis) throws IOException {
+			checkState(!closed, "Writer has been closed.");
+			Integer link = dictionary.get(linkId);
+			if (link == null) {
+				link = dictionary.size();
+				dictionary.put(linkId, link);
+				byte[] id = linkId.getBytes(Charsets.UTF_8);
+				writeVarint(dictionaryColumn, id.length);
+				dictionaryColumn.write(id);
+			}
+			writeVarint(linkColumn, link);
+			if (blockHits == 0) {
+				firstTime = timeMillis;
+				minTime = timeMillis;
+				maxTime = timeMillis;
+			} else {
+				long delta = timeMillis - lastTime;
+				writeVarint(timeColumn, (delta << 1) ^ (delta >> 63));
+				minTime = Math.min(minTime, timeMillis);
+				maxTime = Math.max(maxTime, timeMillis);
+			}
+			lastTime = timeMillis;
+			blockHits++;
+			hits++;
+			if (blockHits == BLOCK_HITS) {
+				writeBlock();
+			}
+		}
+
+		/**
+		 * @return The number of hits added.
+		 */
+		public long getHitCount() {
+			return hits;
+		}
+
+		/**
+		 * Write the last block and the footer.
+		 */
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			if (blockHits > 0) {
+				writeBlock();
+			}
+			long footerOffset = counted.getCount();
+			for (long[] entry : index) {
+				out.writeLong(entry[0]);
+				out.writeInt((int) entry[1]);
+				out.writeLong(entry[2]);
+				out.writeLong(entry[3]);
+			}
+			out.writeInt(index.size());
+			out.writeLong(footerOffset);
+			out.writeInt(MAGIC);
+			out.flush();
+		}
+
+		private void writeBlock() throws IOException {
+			index.add(new long[] { counted.getCount(), blockHits, minTime,
+					maxTime });
+			out.writeInt(blockHits);
+			out.writeLong(firstTime);
+			writeVarint(out, dictionary.size());
+			dictionaryColumn.writeTo(out);
+			linkColumn.writeTo(out);
+			timeColumn.writeTo(out);
+			dictionary.clear();
+			dictionaryColumn.reset();
+			linkColumn.reset();
+			timeColumn.reset();
+			blockHits = 0;
+		}
+
+		private static void writeVarint(OutputStream out, long value)
+				throws IOException {
+			while ((value & ~0x7FL) != 0) {
+				out.write((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			out.write((int) value);
+		}
+	}
+}
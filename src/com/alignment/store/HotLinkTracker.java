@@ -0,0 +1,112 @@
+package com.alignment.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts redirect lookups per id so that the hottest links seen by an
+ * instance can be published for other instances to warm up with. The number
+ * of tracked ids is bounded; once the bound is reached ids that are not
+ * already tracked are ignored until the counts are reset.
+ */
+public class HotLinkTracker {
+
+	/**
+	 * Default maximum number of tracked ids.
+	 */
+	public static final int DEFAULT_MAXIMUM_TRACKED = 10000;
+
+	private final int maximumTracked;
+
+	private final ConcurrentMap<String, AtomicInteger> counts = new ConcurrentHashMap<>();
+
+	public HotLinkTracker() {
+		this(DEFAULT_MAXIMUM_TRACKED);
+	}
+
+	public HotLinkTracker(int maximumTracked) {
+		this.maximumTracked = maximumTracked;
+	}
+
+	/**
+	 * Count a lookup of the provided id.
+	 */
+	public void record(String id) {
+		AtomicInteger count = counts.get(id);
+		if (count == null) {
+			if (counts.size() >= maximumTracked) {
+				return;
+			}
+			AtomicInteger created = new AtomicInteger();
+			count = counts.putIfAbsent(id, created);
+			if (count == null) {
+				count = created;
+			}
+		}
+		count.incrementAndGet();
+	}
+
+	/**
+	 * Get the most looked up ids, hottest first. Each count is read once, so
+	 * lookups counted meanwhile cannot upset the ordering, and only the
+	 * hottest ids are kept while the counts are read.
+	 *
+	 * @param limit
+	 *            The maximum number of ids to return.
+	 */
+	public List<String> top(int limit) {
+		if (limit <= 0) {
+			return new ArrayList<>();
+		}
+		// Coldest of the hottest ids at the head.
+		PriorityQueue<HotLink> hottest = new PriorityQueue<>(limit);
+		for (Map.Entry<String, AtomicInteger> entry : counts.entrySet()) {
+			HotLink link = new HotLink(entry.getKey(), entry.getValue().get());
+			if (hottest.size() < limit) {
+				hottest.add(link);
+			} else if (link.compareTo(hottest.peek()) > 0) {
+				hottest.poll();
+				hottest.add(link);
+			}
+		}
+		String[] top = new String[hottest.size()];
+		for (int i = top.length - 1; i >= 0; i--) {
+			top[i] = hottest.poll().id;
+		}
+		return new ArrayList<>(Arrays.asList(top));
+	}
+
+	/**
+	 * Forget all counts.
+	 */
+	public void reset() {
+		counts.clear();
+	}
+
+	/**
+	 * The count of an id when it was read, ordered from cold to hot.
+	 */
+	private static final class HotLink implements Comparable<HotLink> {
+
+		private final String id;
+
+		private final int count;
+
+		HotLink(String id, int count) {
+			this.id = id;
+			this.count = count;
+		}
+
+		@Override
+		public int compareTo(HotLink other) {
+			int byCount = Integer.compare(count, other.count);
+			return byCount != 0 ? byCount : other.id.compareTo(id);
+		}
+	}
+}
@@ -0,0 +1,212 @@
+package com.alignment.store;
+
+import java.security.SecureRandom;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Compact link ids. An id is a 64 bit number made of the second it was
+ * created in the high 32 bits and 32 random bits. It is written as 11 base62
+ * digits followed by a Luhn mod 62 check character, so ids are always 12
+ * characters of {@code [0-9A-Za-z]} and most truncated or mistyped ids can be
+ * rejected without looking them up.
+ *
+ * Derived ids are a 64 bit hash of the campaign, url and position of a link,
+ * so registering the same link again gives the same id. They are written the
+ * same way with the check character shifted by half the base, which tells
+ * them apart from time based ids. They carry no creation time.
+ */
+public final class LinkIds {
+
+	/**
+	 * The length of an encoded id including the check character.
+	 */
+	public static final int LENGTH = 12;
+
+	private static final int DIGITS = LENGTH - 1;
+
+	private static final int BASE = 62;
+
+	private static final char[] ALPHABET = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz"
+			.toCharArray();
+
+	// 62^10, the place value of the leading digit.
+	private static final long LEADING_PLACE = 839299365868340224L;
+
+	// Added to the check digit of derived ids.
+	private static final int DERIVED_CHECK_OFFSET = BASE / 2;
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private static final HashFunction HASH = Hashing.murmur3_128();
+
+	private LinkIds() {
+	}
+
+	/**
+	 * Create a new id for the current time.
+	 */
+	public static long newId() {
+		return newId(System.currentTimeMillis());
+	}
+
+	/**
+	 * Create a new id for the provided creation time.
+	 */
+	static long newId(long createdMillis) {
+		return ((createdMillis / 1000) << 32)
+				| (RANDOM.nextInt() & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Derive the id of a link from where it appears. The attempt is increased
+	 * to derive another id when the first one collides with the id of a
+	 * different link.
+	 *
+	 * @param campaign
+	 *            The campaign of the link, may be {@code null}.
+	 */
+	public static long deriveId(String campaign, String url, int position,
+			int attempt) {
+		String campaignName = campaign == null ? "" : campaign;
+		// Lengths keep the fields from running into each other.
+		return HASH.newHasher().putInt(campaignName.length())
+				.putString(campaignName, Charsets.UTF_8)
+				.putInt(url.length()).putString(url, Charsets.UTF_8)
+				.putInt(position).putInt(attempt).hash().asLong();
+	}
+
+	/**
+	 * Get the creation time of an id, truncated to the second.
+	 */
+	public static long createdMillis(long id) {
+		return (id >>> 32) * 1000;
+	}
+
+	/**
+	 * Encode an id as 11 base62 digits and a check character.
+	 */
+	public static String encode(long id) {
+		return encode(id, 0);
+	}
+
+	/**
+	 * Encode a derived id, with the check character of derived ids.
+	 */
+	public static String encodeDerived(long id) {
+		return encode(id, DERIVED_CHECK_OFFSET);
+	}
+
+	private static String encode(long id, int checkOffset) {
+		char[] chars = new char[LENGTH];
+		long value = id;
+		for (int i = DIGITS - 1; i >= 0; i--) {
+			long quotient = divide(value);
+			chars[i] = ALPHABET[(int) (value - quotient * BASE)];
+			value = quotient;
+		}
+		chars[DIGITS] = ALPHABET[(checkDigit(chars) + checkOffset) % BASE];
+		return new String(chars);
+	}
+
+	/**
+	 * Check that the id has the length, characters and check character of a
+	 * compact id. This does not allocate.
+	 */
+	public static boolean isCompact(String id) {
+		return hasCheck(id, 0);
+	}
+
+	/**
+	 * Check that the id has the length, characters and check character of a
+	 * derived id. This does not allocate.
+	 */
+	public static boolean isDerived(String id) {
+		return hasCheck(id, DERIVED_CHECK_OFFSET);
+	}
+
+	private static boolean hasCheck(String id, int checkOffset) {
+		if (id == null || id.length() != LENGTH) {
+			return false;
+		}
+		int sum = 0;
+		boolean doubled = true;
+		for (int i = DIGITS - 1; i >= 0; i--) {
+			int digit = digit(id.charAt(i));
+			if (digit < 0) {
+				return false;
+			}
+			sum += luhn(digit, doubled);
+			doubled = !doubled;
+		}
+		return digit(id.charAt(DIGITS)) == ((BASE - sum % BASE) % BASE + checkOffset)
+				% BASE
+				&& fitsInLong(id);
+	}
+
+	/**
+	 * Decode a compact or derived id.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the id is not a valid compact or derived id.
+	 */
+	public static long decode(String id) {
+		if (!isCompact(id) && !isDerived(id)) {
+			throw new IllegalArgumentException("Not a compact link id: " + id);
+		}
+		long value = 0;
+		for (int i = 0; i < DIGITS; i++) {
+			value = value * BASE + digit(id.charAt(i));
+		}
+		return value;
+	}
+
+	// Ids larger than 2^64 - 1 are rejected by comparing the leading digit and
+	// the remaining digits against the maximum unsigned value.
+	private static boolean fitsInLong(String id) {
+		long maxLeading = divide(-1L) / (LEADING_PLACE / BASE);
+		int leading = digit(id.charAt(0));
+		if (leading != maxLeading) {
+			return leading < maxLeading;
+		}
+		long rest = 0;
+		for (int i = 1; i < DIGITS; i++) {
+			rest = rest * BASE + digit(id.charAt(i));
+		}
+		long maxRest = -1L - maxLeading * LEADING_PLACE;
+		return rest <= maxRest;
+	}
+
+	// Unsigned division by the base.
+	private static long divide(long value) {
+		return (value >>> 1) / (BASE / 2);
+	}
+
+	private static int checkDigit(char[] chars) {
+		int sum = 0;
+		boolean doubled = true;
+		for (int i = DIGITS - 1; i >= 0; i--) {
+			sum += luhn(digit(chars[i]), doubled);
+			doubled = !doubled;
+		}
+		return (BASE - sum % BASE) % BASE;
+	}
+
+	private static int luhn(int digit, boolean doubled) {
+		int addend = doubled ? digit * 2 : digit;
+		return addend / BASE + addend % BASE;
+	}
+
+	private static int digit(char c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		} else if (c >= 'A' && c <= 'Z') {
+			return c - 'A' + 10;
+		} else if (c >= 'a' && c <= 'z') {
+			return c - 'a' + 36;
+		}
+		return -1;
+	}
+}
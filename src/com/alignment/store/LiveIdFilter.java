@@ -0,0 +1,204 @@
+package com.alignment.store;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Longs;
+
+/**
+ * Bloom filter of the link ids that have a redirect, used to reject unknown
+ * ids before any cache or datastore lookup. The filter is built from a scan
+ * of the redirects and only knows about ids created before the scan started,
+ * so it only judges:
+ * <ul>
+ * <li>compact ids ({@link LinkIds}) created before the covered time, which
+ * are rejected if they are not in the filter.</li>
+ * </ul>
+ * Newer compact ids always pass, as do derived ids, which carry no creation
+ * time to tell whether the scan saw them. Other ids, including legacy ids
+ * that look compact but fail the check character, pass unless the filter
+ * was created to reject legacy ids. A filter that rejects legacy ids
+ * rejects those that look compact outright and judges the rest by the
+ * filter alone.
+ *
+ * Bits are set with compare and swap so ids can be added while the filter is
+ * being read without locking.
+ */
+public final class LiveIdFilter {
+
+	private static final HashFunction HASH = Hashing.murmur3_128();
+
+	private final AtomicLongArray bits;
+
+	private final long bitCount;
+
+	private final int hashCount;
+
+	private final long coveredUntilMillis;
+
+	private final boolean rejectLegacyIds;
+
+	private final AtomicLong checked = new AtomicLong();
+
+	private final AtomicLong rejected = new AtomicLong();
+
+	private LiveIdFilter(long bitCount, int hashCount, long coveredUntilMillis,
+			boolean rejectLegacyIds) {
+		this.bits = new AtomicLongArray((int) ((bitCount + 63) / 64));
+		this.bitCount = bitCount;
+		this.hashCount = hashCount;
+		this.coveredUntilMillis = coveredUntilMillis;
+		this.rejectLegacyIds = rejectLegacyIds;
+	}
+
+	/**
+	 * Create an empty filter.
+	 *
+	 * @param expectedIds
+	 *            The number of ids the filter is sized for.
+	 *
+	 * @param falsePositiveRate
+	 *            The rate at which unknown ids are let through once the
+	 *            expected number of ids has been added.
+	 *
+	 * @param coveredUntilMillis
+	 *            Compact ids created before this time are judged by the
+	 *            filter.
+	 *
+	 * @param rejectLegacyIds
+	 *            Whether ids that are not compact are judged by the filter.
+	 */
+	public static LiveIdFilter create(long expectedIds,
+			double falsePositiveRate, long coveredUntilMillis,
+			boolean rejectLegacyIds) {
+		checkArgument(falsePositiveRate > 0 && falsePositiveRate < 1,
+				"False positive rate must be between 0 and 1.");
+		long expected = Math.max(1, expectedIds);
+		long bitCount = (long) Math.ceil(-expected
+				* Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		bitCount = Math.max(64, Math.min(bitCount, 64L * Integer.MAX_VALUE));
+		int hashCount = Math.max(1,
+				(int) Math.round((double) bitCount / expected * Math.log(2)));
+		return new LiveIdFilter(bitCount, hashCount, coveredUntilMillis,
+				rejectLegacyIds);
+	}
+
+	/**
+	 * Add a live id to the filter.
+	 */
+	public void put(String id) {
+		probe(id, true);
+	}
+
+	/**
+	 * @return {@code true} if the id may have been added, {@code false} if it
+	 *         certainly has not.
+	 */
+	public boolean mightContain(String id) {
+		return probe(id, false);
+	}
+
+	/**
+	 * Decide whether an id may have a redirect. Ids for which this returns
+	 * {@code false} certainly do not.
+	 */
+	public boolean mightBeLive(String id) {
+		checked.incrementAndGet();
+		boolean live;
+		if (LinkIds.isCompact(id)) {
+			live = LinkIds.createdMillis(LinkIds.decode(id)) >= coveredUntilMillis
+					|| mightContain(id);
+		} else if (LinkIds.isDerived(id)) {
+			live = true;
+		} else if (rejectLegacyIds && looksCompact(id)) {
+			live = false;
+		} else {
+			live = !rejectLegacyIds || mightContain(id);
+		}
+		if (!live) {
+			rejected.incrementAndGet();
+		}
+		return live;
+	}
+
+	/**
+	 * @return The number of ids checked with {@link #mightBeLive(String)}.
+	 */
+	public long getCheckedCount() {
+		return checked.get();
+	}
+
+	/**
+	 * @return The number of ids rejected by {@link #mightBeLive(String)}.
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	@Override
+	public String toString() {
+		return MoreObjects.toStringHelper(LiveIdFilter.class)
+				.add("bits", bitCount)
+				.add("hashes", hashCount)
+				.add("coveredUntil", new Date(coveredUntilMillis))
+				.add("rejectLegacyIds", rejectLegacyIds)
+				.toString();
+	}
+
+	// Visit the bits of the id, using the two halves of a 128 bit hash for
+	// double hashing. Returns whether all of the bits were already set.
+	private boolean probe(String id, boolean set) {
+		byte[] hash = HASH.hashUnencodedChars(id).asBytes();
+		long first = Longs.fromBytes(hash[7], hash[6], hash[5], hash[4],
+				hash[3], hash[2], hash[1], hash[0]);
+		long second = Longs.fromBytes(hash[15], hash[14], hash[13], hash[12],
+				hash[11], hash[10], hash[9], hash[8]);
+		boolean present = true;
+		long combined = first;
+		for (int i = 0; i < hashCount; i++) {
+			long bit = (combined & Long.MAX_VALUE) % bitCount;
+			if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+				present = false;
+				if (!set) {
+					return false;
+				}
+				setBit(bit);
+			}
+			combined += second;
+		}
+		return present;
+	}
+
+	private void setBit(long bit) {
+		int index = (int) (bit >>> 6);
+		long mask = 1L << bit;
+		while (true) {
+			long current = bits.get(index);
+			if ((current & mask) != 0
+					|| bits.compareAndSet(index, current, current | mask)) {
+				return;
+			}
+		}
+	}
+
+	// Ids of the compact length and alphabet that failed the check character
+	// are mistyped or forged compact ids, or legacy ids of the same shape.
+	private static boolean looksCompact(String id) {
+		if (id.length() != LinkIds.LENGTH) {
+			return false;
+		}
+		for (int i = 0; i < id.length(); i++) {
+			char c = id.charAt(i);
+			if (!((c >= '0' && c <= '9') || (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z'))) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,497 @@
+package com.alignment.store;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.alignment.metrics.Trace;
+import com.alignment.metrics.TraceEvent;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Bounded instance local cache of redirects that sits between the redirect
+ * snapshot and memcache. Redirects are partitioned by campaign, so one large
+ * campaign cannot evict the hot redirects of every other campaign:
+ * <ul>
+ * <li>each partition has a share of the maximum size in proportion to its
+ * weight,</li>
+ * <li>a partition may grow past its share while the cache has room, and</li>
+ * <li>once the cache is full, redirects are evicted from the partition that
+ * is furthest over its share, least recently used first.</li>
+ * </ul>
+ * Lookups are by id alone, so a miss is only counted for the whole cache.
+ * Partitions count the redirects they load instead.
+ *
+ * Redirects of links that expire are dropped from the cache once they have
+ * expired, through a {@link TimingWheel} that is advanced by the lookups.
+ * Redirects that have already expired are cached for
+ * {@link #EXPIRED_MARKER_MILLIS}, so the clicks that keep arriving on them are
+ * answered as expired without another lookup.
+ */
+public class LocalRedirectCache {
+
+	/**
+	 * Default maximum number of redirects held by the cache.
+	 */
+	public static final int DEFAULT_MAXIMUM_SIZE = 50000;
+
+	/**
+	 * Most partitions kept, redirects of further campaigns share the
+	 * partition of redirects without a campaign.
+	 */
+	public static final int MAX_PARTITIONS = 1024;
+
+	/**
+	 * How long a redirect that has already expired is cached.
+	 */
+	public static final long EXPIRED_MARKER_MILLIS = TimeUnit.MINUTES
+			.toMillis(1);
+
+	// Length of a tick of the expiry wheel.
+	private static final long EXPIRY_TICK_MILLIS = 1000;
+
+	// Partition of redirects that do not belong to a campaign.
+	private static final String NO_CAMPAIGN = "";
+
+	private final int maximumSize;
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+	private final ConcurrentMap<String, Partition> partitions = new ConcurrentHashMap<>();
+
+	private final AtomicInteger size = new AtomicInteger();
+
+	// Sum of the weights of the partitions.
+	private final AtomicLong totalWeight = new AtomicLong();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	private final AtomicLong expirations = new AtomicLong();
+
+	private final TimingWheel expiry = new TimingWheel(EXPIRY_TICK_MILLIS,
+			System.currentTimeMillis());
+
+	/**
+	 * Create a cache holding up to {@link #DEFAULT_MAXIMUM_SIZE} redirects.
+	 */
+	public LocalRedirectCache() {
+		this(DEFAULT_MAXIMUM_SIZE);
+	}
+
+	/**
+	 * Create a cache holding up to the provided number of redirects.
+	 */
+	public LocalRedirectCache(int maximumSize) {
+		checkArgument(maximumSize > 0, "Maximum size must be positive.");
+		this.maximumSize = maximumSize;
+	}
+
+	/**
+	 * @return The cached redirect for the id or {@code null}.
+	 */
+	public String get(String id) {
+		long now = System.currentTimeMillis();
+		if (expiry.isAdvanceDue(now)) {
+			expire(now);
+		}
+		Entry entry = entries.get(id);
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		entry.partition.hit(id);
+		hits.incrementAndGet();
+		return entry.redirect;
+	}
+
+	/**
+	 * @return The campaign of a cached redirect, {@code null} if it has none
+	 *         or the id is not cached. No hit or miss is counted.
+	 */
+	public String campaignOf(String id) {
+		Entry entry = entries.get(id);
+		return entry != null ? entry.campaign : null;
+	}
+
+	/**
+	 * @return {@code true} if the id is cached, without counting a hit or miss.
+	 */
+	public boolean contains(String id) {
+		return entries.containsKey(id);
+	}
+
+	/**
+	 * Cache a redirect that does not belong to a campaign.
+	 */
+	public void put(String id, String redirect) {
+		put(id, redirect, null);
+	}
+
+	/**
+	 * Cache a redirect in the partition of its campaign.
+	 *
+	 * @param campaign
+	 *            The campaign of the redirect, may be {@code null}.
+	 */
+	public void put(String id, String redirect, String campaign) {
+		long expiresMillis = Redirect.expiresOf(redirect);
+		if (expiresMillis > 0) {
+			long now = System.currentTimeMillis();
+			// Expired redirects are only kept briefly, as markers.
+			expiry.schedule(id, expiresMillis > now ? expiresMillis
+					: now + EXPIRED_MARKER_MILLIS);
+		}
+		Partition partition = partition(campaign);
+		Entry previous = partition.put(id, new Entry(redirect, partition,
+				campaign));
+		if (previous != null && previous.partition != partition) {
+			previous.partition.forget(id);
+		}
+		if (expiresMillis == 0 && previous != null) {
+			expiry.cancel(id);
+		}
+		if (previous == null && size.incrementAndGet() > maximumSize) {
+			evict(partition);
+		}
+	}
+
+	/**
+	 * Cache redirects that do not belong to a campaign.
+	 */
+	public void putAll(Map<String, String> redirects) {
+		putAll(redirects, null);
+	}
+
+	/**
+	 * Cache the redirects of a campaign.
+	 *
+	 * @param campaign
+	 *            The campaign of the redirects, may be {@code null}.
+	 */
+	public void putAll(Map<String, String> redirects, String campaign) {
+		for (Map.Entry<String, String> redirect : redirects.entrySet()) {
+			put(redirect.getKey(), redirect.getValue(), campaign);
+		}
+	}
+
+	/**
+	 * Remove the redirect of an id.
+	 *
+	 * @return {@code true} if the id was cached.
+	 */
+	public boolean remove(String id) {
+		if (!removeEntry(id)) {
+			return false;
+		}
+		expiry.cancel(id);
+		return true;
+	}
+
+	/**
+	 * Drop the redirects that have expired by the provided time.
+	 *
+	 * @return The number of redirects dropped.
+	 */
+	int expire(long nowMillis) {
+		int expired = 0;
+		for (String id : expiry.advance(nowMillis)) {
+			if (removeEntry(id)) {
+				expired++;
+			}
+		}
+		expirations.addAndGet(expired);
+		return expired;
+	}
+
+	/**
+	 * @return The number of redirects dropped because they expired.
+	 */
+	public long expirationCount() {
+		return expirations.get();
+	}
+
+	/**
+	 * Set the weight of the partition of a campaign, which is one unless
+	 * set. A partition with twice the weight of another has twice the share
+	 * of the cache.
+	 *
+	 * @param campaign
+	 *            The campaign, {@code null} for redirects without one.
+	 */
+	public void setWeight(String campaign, int weight) {
+		checkArgument(weight > 0, "Weight must be positive.");
+		Partition partition = partition(campaign);
+		synchronized (partition) {
+			totalWeight.addAndGet(weight - partition.weight);
+			partition.weight = weight;
+		}
+	}
+
+	public long size() {
+		return size.get();
+	}
+
+	/**
+	 * @return The hits, misses and evictions of the whole cache.
+	 */
+	public CacheStats stats() {
+		return new CacheStats(hits.get(), misses.get(), 0, 0, 0,
+				evictions.get());
+	}
+
+	/**
+	 * @param campaign
+	 *            The campaign, {@code null} for redirects without one.
+	 *
+	 * @return The statistics of the partition of the campaign, empty for
+	 *         campaigns that share the partition without a campaign.
+	 */
+	public PartitionStats partitionStats(String campaign) {
+		Partition partition = partitions.get(key(campaign));
+		if (partition == null) {
+			return new PartitionStats(0, share(1), 0, 0, 0);
+		}
+		synchronized (partition) {
+			return new PartitionStats(partition.order.size(),
+					share(partition.weight), partition.hits, partition.loads,
+					partition.evictions);
+		}
+	}
+
+	private static String key(String campaign) {
+		return campaign == null ? NO_CAMPAIGN : campaign;
+	}
+
+	private Partition partition(String campaign) {
+		String key = key(campaign);
+		Partition partition = partitions.get(key);
+		if (partition == null) {
+			if (partitions.size() >= MAX_PARTITIONS) {
+				key = NO_CAMPAIGN;
+			}
+			Partition created = new Partition();
+			partition = partitions.putIfAbsent(key, created);
+			if (partition == null) {
+				totalWeight.addAndGet(created.weight);
+				partition = created;
+			}
+		}
+		return partition;
+	}
+
+	// Remove the entry of an id from its partition, retrying if it moves to
+	// another partition meanwhile.
+	private boolean removeEntry(String id) {
+		while (true) {
+			Entry entry = entries.get(id);
+			if (entry == null) {
+				return false;
+			}
+			if (entry.partition.remove(id, entry)) {
+				size.decrementAndGet();
+				return true;
+			}
+		}
+	}
+
+	// The number of redirects a partition of the weight is entitled to.
+	private long share(int weight) {
+		long total = Math.max(totalWeight.get(), weight);
+		return (long) maximumSize * weight / total;
+	}
+
+	// Evict until the cache is back within its size, starting with the
+	// partition that was added to when it is over its share.
+	private void evict(Partition added) {
+		while (size.get() > maximumSize) {
+			Partition victim = added.overShare() > 0 ? added : mostOverShare();
+			String id = victim != null ? victim.evictOldest() : null;
+			if (id == null) {
+				return;
+			}
+			size.decrementAndGet();
+			expiry.cancel(id);
+			evictions.incrementAndGet();
+			if (Trace.isEnabled()) {
+				Trace.record(TraceEvent.cacheEviction(id, "SIZE"));
+			}
+		}
+	}
+
+	private Partition mostOverShare() {
+		Partition victim = null;
+		long most = Long.MIN_VALUE;
+		for (Partition partition : partitions.values()) {
+			long over = partition.overShare();
+			if (over > most && partition.size() > 0) {
+				most = over;
+				victim = partition;
+			}
+		}
+		return victim;
+	}
+
+	/**
+	 * A cached redirect, its campaign and the partition it counts towards,
+	 * which is shared by several campaigns once there are too many.
+	 */
+	private static final class Entry {
+
+		private final String redirect;
+
+		private final Partition partition;
+
+		private final String campaign;
+
+		Entry(String redirect, Partition partition, String campaign) {
+			this.redirect = redirect;
+			this.partition = partition;
+			this.campaign = campaign;
+		}
+	}
+
+	/**
+	 * The ids of a partition in least recently used order. Entries of the
+	 * partition are only added to or removed from the cache under the lock of
+	 * the partition, together with its order. An id that moves to another
+	 * partition is dropped from the order of its old partition afterwards, so
+	 * ids in the order whose entry is elsewhere are skipped.
+	 */
+	private final class Partition {
+
+		// Ids of the partition, guarded by the partition.
+		private final LinkedHashMap<String, Boolean> order = new LinkedHashMap<>(
+				16, 0.75f, true);
+
+		private int weight = 1;
+
+		private long hits = 0;
+
+		private long loads = 0;
+
+		private long evictions = 0;
+
+		synchronized void hit(String id) {
+			order.get(id);
+			hits++;
+		}
+
+		// Cache the entry, returning the entry it replaced.
+		synchronized Entry put(String id, Entry entry) {
+			Entry previous = entries.put(id, entry);
+			order.put(id, Boolean.TRUE);
+			loads++;
+			return previous;
+		}
+
+		// Remove the entry if it is still cached.
+		synchronized boolean remove(String id, Entry entry) {
+			if (!entries.remove(id, entry)) {
+				return false;
+			}
+			order.remove(id);
+			return true;
+		}
+
+		// Drop an id that moved to another partition, unless it is back.
+		synchronized void forget(String id) {
+			Entry entry = entries.get(id);
+			if (entry == null || entry.partition != this) {
+				order.remove(id);
+			}
+		}
+
+		// Remove the least recently used entry of the partition from the
+		// cache, returning its id.
+		synchronized String evictOldest() {
+			Iterator<String> ids = order.keySet().iterator();
+			while (ids.hasNext()) {
+				String id = ids.next();
+				ids.remove();
+				Entry entry = entries.get(id);
+				if (entry != null && entry.partition == this
+						&& entries.remove(id, entry)) {
+					evictions++;
+					return id;
+				}
+			}
+			return null;
+		}
+
+		synchronized int size() {
+			return order.size();
+		}
+
+		// How many redirects the partition holds past its share.
+		synchronized long overShare() {
+			return order.size() - share(weight);
+		}
+	}
+
+	/**
+	 * The state of a partition when it was read.
+	 */
+	public static final class PartitionStats {
+
+		private final long size;
+
+		private final long share;
+
+		private final long hitCount;
+
+		private final long loadCount;
+
+		private final long evictionCount;
+
+		PartitionStats(long size, long share, long hitCount, long loadCount,
+				long evictionCount) {
+			this.size = size;
+			this.share = share;
+			this.hitCount = hitCount;
+			this.loadCount = loadCount;
+			this.evictionCount = evictionCount;
+		}
+
+		/**
+		 * @return The number of redirects in the partition.
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * @return The number of redirects the partition keeps when the cache
+		 *         is full.
+		 */
+		public long getShare() {
+			return share;
+		}
+
+		public long getHitCount() {
+			return hitCount;
+		}
+
+		/**
+		 * @return The number of redirects added to the partition, each after
+		 *         a miss or when warming up or creating links.
+		 */
+		public long getLoadCount() {
+			return loadCount;
+		}
+
+		public long getEvictionCount() {
+			return evictionCount;
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package com.alignment.store;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.CharMatcher;
+
+/**
+ * The redirect of a link with its policy and expiry, ready to be written as a
+ * response.
+ *
+ * The local tiers hold redirects as strings. A redirect with the default
+ * policy that never expires is held as its url alone, so snapshots and
+ * caches written before policies existed are still read the same way. Any
+ * other redirect is held as a header and the url separated by a newline.
+ * The header is the text of the policy, followed by a semicolon and the
+ * expiry time in milliseconds if the link expires.
+ *
+ * Line breaks in urls are percent encoded, as wrapped links in email html
+ * may hold them. A packed url then never holds a newline, so it cannot be
+ * taken for a header, and a url sent in a {@code Location} header cannot
+ * split the response.
+ */
+public final class Redirect {
+
+	private static final char SEPARATOR = '\n';
+
+	private static final char EXPIRY_SEPARATOR = ';';
+
+	private static final CharMatcher LINE_BREAKS = CharMatcher.anyOf("\r\n");
+
+	private final String url;
+
+	private final RedirectPolicy policy;
+
+	private final long expiresMillis;
+
+	public Redirect(String url, RedirectPolicy policy) {
+		this(url, policy, 0);
+	}
+
+	/**
+	 * @param expiresMillis
+	 *            When the link expires, zero if it never does.
+	 */
+	public Redirect(String url, RedirectPolicy policy, long expiresMillis) {
+		this.url = encodeLineBreaks(checkNotNull(url));
+		this.policy = checkNotNull(policy);
+		this.expiresMillis = expiresMillis;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public RedirectPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @return When the link expires, zero if it never does.
+	 */
+	public long getExpiresMillis() {
+		return expiresMillis;
+	}
+
+	/**
+	 * @return {@code true} if the link had expired by the provided time.
+	 */
+	public boolean isExpired(long nowMillis) {
+		return expiresMillis > 0 && nowMillis >= expiresMillis;
+	}
+
+	/**
+	 * Percent encode the carriage returns and line feeds of a url.
+	 *
+	 * @return The url, the same instance if it has no line breaks.
+	 */
+	public static String encodeLineBreaks(String url) {
+		if (!LINE_BREAKS.matchesAnyOf(url)) {
+			return url;
+		}
+		StringBuilder encoded = new StringBuilder(url.length() + 8);
+		for (int i = 0; i < url.length(); i++) {
+			char c = url.charAt(i);
+			if (c == '\r') {
+				encoded.append("%0D");
+			} else if (c == '\n') {
+				encoded.append("%0A");
+			} else {
+				encoded.append(c);
+			}
+		}
+		return encoded.toString();
+	}
+
+	/**
+	 * Pack a redirect into the form held by the local tiers.
+	 */
+	static String pack(String url, RedirectPolicy policy) {
+		return pack(url, policy, 0);
+	}
+
+	/**
+	 * Pack a redirect that expires into the form held by the local tiers.
+	 */
+	static String pack(String url, RedirectPolicy policy, long expiresMillis) {
+		url = encodeLineBreaks(url);
+		if (expiresMillis > 0) {
+			return policy.toString() + EXPIRY_SEPARATOR + expiresMillis
+					+ SEPARATOR + url;
+		}
+		if (policy.equals(RedirectPolicy.DEFAULT)) {
+			return url;
+		}
+		return policy.toString() + SEPARATOR + url;
+	}
+
+	/**
+	 * Unpack a redirect held by the local tiers.
+	 */
+	static Redirect unpack(String packed) {
+		int separator = packed.indexOf(SEPARATOR);
+		if (separator < 0) {
+			return new Redirect(packed, RedirectPolicy.DEFAULT);
+		}
+		int expiry = packed.lastIndexOf(EXPIRY_SEPARATOR, separator);
+		if (expiry < 0) {
+			return new Redirect(packed.substring(separator + 1),
+					RedirectPolicy.parse(packed.substring(0, separator)));
+		}
+		return new Redirect(packed.substring(separator + 1),
+				RedirectPolicy.parse(packed.substring(0, expiry)),
+				Long.parseLong(packed.substring(expiry + 1, separator)));
+	}
+
+	/**
+	 * Get the url of a redirect held by the local tiers.
+	 */
+	static String urlOf(String packed) {
+		int separator = packed.indexOf(SEPARATOR);
+		return separator < 0 ? packed : packed.substring(separator + 1);
+	}
+
+	/**
+	 * Get when a redirect held by the local tiers expires, without unpacking
+	 * its policy.
+	 *
+	 * @return The expiry time, zero if the link never expires.
+	 */
+	static long expiresOf(String packed) {
+		int separator = packed.indexOf(SEPARATOR);
+		if (separator < 0) {
+			return 0;
+		}
+		int expiry = packed.lastIndexOf(EXPIRY_SEPARATOR, separator);
+		return expiry < 0 ? 0 : Long.parseLong(packed.substring(expiry + 1,
+				separator));
+	}
+
+	@Override
+	public String toString() {
+		return pack(url, policy, expiresMillis);
+	}
+}
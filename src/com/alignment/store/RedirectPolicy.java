@@ -0,0 +1,255 @@
+package com.alignment.store;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+
+/**
+ * How the redirect of a link is answered. A redirect is temporary (302) or
+ * permanent (301), and either requires every click to be tracked or lets
+ * clients and proxies cache it for a while:
+ * <ul>
+ * <li>tracked redirects are sent with {@code Cache-Control: no-cache}, so
+ * every click comes back to the servlet, and</li>
+ * <li>untracked redirects with a max age are sent with
+ * {@code Cache-Control: public, max-age=...}, so repeat clicks may never
+ * reach it.</li>
+ * </ul>
+ * The status and headers are computed once per policy. The default policy is
+ * a tracked temporary redirect, which is how every link was answered before
+ * policies existed.
+ *
+ * A policy may also give links a time to live, after which they are
+ * answered with a 410. The time to live is turned into an expiry time when
+ * a link is created. Untracked redirects of links that expire are never
+ * cached past the expiry, so clients see the 410: their max age is cut to
+ * the life left, and permanent redirects without a max age, which clients
+ * would otherwise keep for good, get the life left as their max age.
+ *
+ * Policies are stored in their text form, for example
+ * {@code permanent,max-age=86400,untracked,ttl=2592000}.
+ */
+public final class RedirectPolicy {
+
+	/**
+	 * Tracked temporary redirect that is never cached.
+	 */
+	public static final RedirectPolicy DEFAULT = new RedirectPolicy(false, 0,
+			true, 0);
+
+	// Most parsed policies remembered, there are normally only a handful.
+	private static final int MAX_PARSED = 64;
+
+	private static final ConcurrentMap<String, RedirectPolicy> parsed = new ConcurrentHashMap<>();
+
+	private final boolean permanent;
+
+	private final int maxAgeSeconds;
+
+	private final boolean trackingRequired;
+
+	private final int ttlSeconds;
+
+	private final int status;
+
+	private final String cacheControl;
+
+	private final String text;
+
+	private RedirectPolicy(boolean permanent, int maxAgeSeconds,
+			boolean trackingRequired, int ttlSeconds) {
+		this.permanent = permanent;
+		this.maxAgeSeconds = maxAgeSeconds;
+		this.trackingRequired = trackingRequired;
+		this.ttlSeconds = ttlSeconds;
+		this.status = permanent ? 301 : 302;
+		if (trackingRequired) {
+			cacheControl = "no-cache";
+		} else if (maxAgeSeconds > 0) {
+			cacheControl = "public, max-age=" + maxAgeSeconds;
+		} else {
+			cacheControl = null;
+		}
+		this.text = Joiner.on(',').skipNulls().join(
+				permanent ? "permanent" : "temporary",
+				maxAgeSeconds > 0 ? "max-age=" + maxAgeSeconds : null,
+				trackingRequired ? "tracked" : "untracked",
+				ttlSeconds > 0 ? "ttl=" + ttlSeconds : null);
+	}
+
+	/**
+	 * @param permanent
+	 *            Whether the redirect is answered with a 301 rather than a
+	 *            302.
+	 * 
+	 * @param maxAgeSeconds
+	 *            How long clients and proxies may cache an untracked redirect,
+	 *            zero leaves it to them.
+	 * 
+	 * @param trackingRequired
+	 *            Whether every click must reach the servlet.
+	 */
+	public static RedirectPolicy of(boolean permanent, int maxAgeSeconds,
+			boolean trackingRequired) {
+		return of(permanent, maxAgeSeconds, trackingRequired, 0);
+	}
+
+	/**
+	 * @param ttlSeconds
+	 *            How long links live after they are created, zero for links
+	 *            that never expire.
+	 * 
+	 * @see #of(boolean, int, boolean)
+	 */
+	public static RedirectPolicy of(boolean permanent, int maxAgeSeconds,
+			boolean trackingRequired, int ttlSeconds) {
+		checkArgument(maxAgeSeconds >= 0, "Max age must not be negative.");
+		checkArgument(ttlSeconds >= 0, "Time to live must not be negative.");
+		if (!permanent && maxAgeSeconds == 0 && trackingRequired
+				&& ttlSeconds == 0) {
+			return DEFAULT;
+		}
+		return new RedirectPolicy(permanent, maxAgeSeconds, trackingRequired,
+				ttlSeconds);
+	}
+
+	/**
+	 * Parse the text form of a policy. Parts that are left out take their
+	 * default, so {@code null} and the empty string are the default policy.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             If the text is not a policy.
+	 */
+	public static RedirectPolicy parse(String text) {
+		if (text == null || text.isEmpty()) {
+			return DEFAULT;
+		}
+		RedirectPolicy policy = parsed.get(text);
+		if (policy != null) {
+			return policy;
+		}
+		boolean permanent = false;
+		int maxAgeSeconds = 0;
+		boolean trackingRequired = true;
+		int ttlSeconds = 0;
+		for (String part : Splitter.on(',').trimResults().omitEmptyStrings()
+				.split(text)) {
+			if (part.equals("permanent")) {
+				permanent = true;
+			} else if (part.equals("temporary")) {
+				permanent = false;
+			} else if (part.equals("tracked")) {
+				trackingRequired = true;
+			} else if (part.equals("untracked")) {
+				trackingRequired = false;
+			} else if (part.startsWith("max-age=")) {
+				try {
+					maxAgeSeconds = Integer.parseInt(part.substring(8));
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Bad max age: " + part, e);
+				}
+			} else if (part.startsWith("ttl=")) {
+				try {
+					ttlSeconds = Integer.parseInt(part.substring(4));
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Bad time to live: "
+							+ part, e);
+				}
+			} else {
+				throw new IllegalArgumentException("Unknown redirect policy: "
+						+ part);
+			}
+		}
+		policy = of(permanent, maxAgeSeconds, trackingRequired, ttlSeconds);
+		if (parsed.size() < MAX_PARSED) {
+			parsed.putIfAbsent(text, policy);
+		}
+		return policy;
+	}
+
+	public boolean isPermanent() {
+		return permanent;
+	}
+
+	public int getMaxAgeSeconds() {
+		return maxAgeSeconds;
+	}
+
+	public boolean isTrackingRequired() {
+		return trackingRequired;
+	}
+
+	/**
+	 * @return How long links live after they are created, zero if they never
+	 *         expire.
+	 */
+	public int getTtlSeconds() {
+		return ttlSeconds;
+	}
+
+	/**
+	 * @return When a link created at the provided time expires, zero if it
+	 *         never does.
+	 */
+	public long expiresMillis(long createdMillis) {
+		return ttlSeconds > 0 ? createdMillis + ttlSeconds * 1000L : 0;
+	}
+
+	/**
+	 * @return The status the redirect is answered with.
+	 */
+	public int getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return The {@code Cache-Control} header value of links that never
+	 *         expire, or {@code null} when the header is left out.
+	 */
+	public String getCacheControl() {
+		return cacheControl;
+	}
+
+	/**
+	 * Get the {@code Cache-Control} header value of a link, which for links
+	 * that expire depends on the life they have left.
+	 * 
+	 * @param expiresMillis
+	 *            When the link expires, zero if it never does.
+	 * 
+	 * @return The header value, or {@code null} when the header is left out.
+	 */
+	public String getCacheControl(long expiresMillis, long nowMillis) {
+		if (expiresMillis == 0 || trackingRequired
+				|| (maxAgeSeconds == 0 && !permanent)) {
+			return cacheControl;
+		}
+		long leftSeconds = Math.max(0, (expiresMillis - nowMillis) / 1000);
+		long maxAge = maxAgeSeconds > 0 ? Math.min(maxAgeSeconds, leftSeconds)
+				: leftSeconds;
+		return "public, max-age=" + maxAge;
+	}
+
+	@Override
+	public int hashCode() {
+		return text.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return other instanceof RedirectPolicy
+				&& text.equals(((RedirectPolicy) other).text);
+	}
+
+	/**
+	 * @return The text form of the policy.
+	 */
+	@Override
+	public String toString() {
+		return text;
+	}
+}
@@ -0,0 +1,338 @@
+package com.alignment.store;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.ThreadManager;
+
+/**
+ * Instance local redirect tier made of a memory mapped {@link RedirectTable}
+ * and a small mutable overlay. The table is built from a snapshot of the
+ * redirect entities so a new instance can answer most lookups without an RPC.
+ * Redirects created after the snapshot go to the overlay, which is merged into
+ * a new table once it grows past a threshold or has not been merged for a
+ * while. Merges rewrite the whole file, so they run on a merge executor, by
+ * default a background thread, rather than on the thread that adds the
+ * redirect.
+ *
+ * If the snapshot file cannot be rewritten, for example when it is deployed
+ * with the application on a read only file system, or the runtime does not
+ * allow background threads for the merges, merging is disabled and the
+ * overlay stops growing at the merge threshold. Lookups for redirects that are
+ * not held locally fall through to the shared cache and the datastore. Once a
+ * change to a redirect held in the table can no longer be recorded, the
+ * snapshot becomes stale and answers no more lookups, so they all fall
+ * through.
+ *
+ * Only the redirects added through this snapshot are seen: a redirect that is
+ * changed on another instance is answered from the table as it was when the
+ * snapshot file was written, until a newer file is opened. Applications that
+ * change redirects in place should refresh the file at least as often as
+ * they can tolerate serving the previous redirect, or not use the tier.
+ */
+public class RedirectSnapshot {
+
+	private static final Logger logger = Logger
+			.getLogger(RedirectSnapshot.class.getName());
+
+	/**
+	 * Default number of overlay entries that triggers a merge.
+	 */
+	public static final int DEFAULT_MERGE_THRESHOLD = 4096;
+
+	/**
+	 * Default maximum time between merges of a non empty overlay.
+	 */
+	public static final long DEFAULT_MERGE_INTERVAL_MILLIS = TimeUnit.MINUTES
+			.toMillis(10);
+
+	private final Path file;
+
+	private final int mergeThreshold;
+
+	private final long mergeIntervalMillis;
+
+	private final ConcurrentMap<String, String> overlay = new ConcurrentHashMap<>();
+
+	private final ReentrantLock mergeLock = new ReentrantLock();
+
+	private final Executor merger;
+
+	// Set while a merge is waiting for or running on the merger.
+	private final AtomicBoolean mergeQueued = new AtomicBoolean();
+
+	private final Runnable mergeTask = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				mergeIfDue();
+			} finally {
+				mergeQueued.set(false);
+			}
+		}
+	};
+
+	private volatile RedirectTable table;
+
+	private volatile long lastMerge = System.currentTimeMillis();
+
+	private volatile boolean writable = true;
+
+	// Set once a change could not be recorded, so the table may hold a
+	// redirect that is out of date.
+	private volatile boolean stale;
+
+	private RedirectSnapshot(Path file, RedirectTable table,
+			int mergeThreshold, long mergeIntervalMillis, Executor merger) {
+		this.file = file;
+		this.table = table;
+		this.mergeThreshold = mergeThreshold;
+		this.mergeIntervalMillis = mergeIntervalMillis;
+		this.merger = merger;
+	}
+
+	/**
+	 * Open the snapshot stored in the provided file using the default merge
+	 * settings.
+	 *
+	 * @see #open(Path, int, long)
+	 */
+	public static RedirectSnapshot open(Path file) throws IOException {
+		return open(file, DEFAULT_MERGE_THRESHOLD,
+				DEFAULT_MERGE_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * Open the snapshot stored in the provided file, merging on a background
+	 * thread.
+	 *
+	 * @see #open(Path, int, long, Executor)
+	 */
+	public static RedirectSnapshot open(Path file, int mergeThreshold,
+			long mergeIntervalMillis) throws IOException {
+		return open(file, mergeThreshold, mergeIntervalMillis,
+				new BackgroundMerger());
+	}
+
+	/**
+	 * Open the snapshot stored in the provided file. A missing file results in
+	 * an empty snapshot that will be created by the first merge.
+	 *
+	 * @param file
+	 *            The redirect table file.
+	 *
+	 * @param mergeThreshold
+	 *            The number of overlay entries that triggers a merge.
+	 *
+	 * @param mergeIntervalMillis
+	 *            The maximum time between merges of a non empty overlay.
+	 *
+	 * @param merger
+	 *            Runs the merges that become due as redirects are added.
+	 *
+	 * @return The opened snapshot.
+	 *
+	 * @throws IOException
+	 *             If the file exists but cannot be mapped.
+	 */
+	public static RedirectSnapshot open(Path file, int mergeThreshold,
+			long mergeIntervalMillis, Executor merger) throws IOException {
+		checkNotNull(file, "Must have a snapshot file.");
+		checkArgument(mergeThreshold > 0, "Merge threshold must be positive.");
+		checkNotNull(merger, "Must have a merge executor.");
+		RedirectTable table = Files.exists(file) ? RedirectTable.open(file)
+				: RedirectTable.empty();
+		return new RedirectSnapshot(file, table, mergeThreshold,
+				mergeIntervalMillis, merger);
+	}
+
+	/**
+	 * Look up the redirect for an id in the overlay and then the mapped table.
+	 *
+	 * @return The redirect or {@code null} if it is not held locally, or the
+	 *         snapshot is stale.
+	 */
+	public String get(String id) {
+		if (stale) {
+			return null;
+		}
+		String redirect = overlay.get(id);
+		if (redirect != null) {
+			return redirect;
+		}
+		return table.get(id);
+	}
+
+	/**
+	 * Record a new or changed redirect in the overlay, handing a merge of the
+	 * overlay into the table to the merger if it is due.
+	 */
+	public void put(String id, String redirect) {
+		if (stale) {
+			return;
+		}
+		if (writable || overlay.size() < mergeThreshold
+				|| overlay.containsKey(id)) {
+			overlay.put(id, redirect);
+		} else {
+			String previous = table.get(id);
+			if (previous != null && !previous.equals(redirect)) {
+				logger.warning("Unable to record the change of redirect "
+						+ id + " in snapshot " + file
+						+ ", no longer answering lookups from it.");
+				stale = true;
+				overlay.clear();
+				return;
+			}
+		}
+		if (isMergeDue() && mergeQueued.compareAndSet(false, true)) {
+			try {
+				merger.execute(mergeTask);
+			} catch (RuntimeException e) {
+				logger.log(Level.WARNING, "Unable to start merging redirect "
+						+ "snapshot " + file + ", keeping the overlay in "
+						+ "memory.", e);
+				writable = false;
+				mergeQueued.set(false);
+			}
+		}
+	}
+
+	/**
+	 * @return {@code true} if a change could not be recorded and lookups are
+	 *         no longer answered from the snapshot.
+	 */
+	public boolean isStale() {
+		return stale;
+	}
+
+	/**
+	 * @return The number of redirects held in the mapped table.
+	 */
+	public int tableSize() {
+		return table.size();
+	}
+
+	/**
+	 * @return The number of redirects waiting to be merged.
+	 */
+	public int overlaySize() {
+		return overlay.size();
+	}
+
+	/**
+	 * Merge the overlay if it has reached the merge threshold or has not been
+	 * merged within the merge interval. Only one caller merges at a time, other
+	 * callers return immediately.
+	 *
+	 * @return {@code true} if a merge was performed.
+	 */
+	public boolean mergeIfDue() {
+		if (!isMergeDue() || !mergeLock.tryLock()) {
+			return false;
+		}
+		try {
+			mergeInternal();
+			return true;
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Unable to merge redirect snapshot "
+					+ file + ", keeping the overlay in memory.", e);
+			writable = false;
+			return false;
+		} finally {
+			mergeLock.unlock();
+		}
+	}
+
+	/**
+	 * Merge the overlay into a new table, waiting for any merge in progress.
+	 *
+	 * @throws IOException
+	 *             If the new table cannot be written.
+	 */
+	public void merge() throws IOException {
+		mergeLock.lock();
+		try {
+			mergeInternal();
+		} finally {
+			mergeLock.unlock();
+		}
+	}
+
+	private boolean isMergeDue() {
+		if (!writable || stale || overlay.isEmpty()) {
+			return false;
+		}
+		return overlay.size() >= mergeThreshold
+				|| System.currentTimeMillis() - lastMerge >= mergeIntervalMillis;
+	}
+
+	private void mergeInternal() throws IOException {
+		final Map<String, String> merging = new ConcurrentHashMap<>(overlay);
+		try (final RedirectTable.Writer writer = new RedirectTable.Writer(file)) {
+			final IOException[] failure = new IOException[1];
+			table.forEach(new RedirectTable.EntryVisitor() {
+				@Override
+				public void visit(String id, String redirect) {
+					if (failure[0] == null && !merging.containsKey(id)) {
+						try {
+							writer.add(id, redirect);
+						} catch (IOException e) {
+							failure[0] = e;
+						}
+					}
+				}
+			});
+			if (failure[0] != null) {
+				throw failure[0];
+			}
+			for (Map.Entry<String, String> entry : merging.entrySet()) {
+				writer.add(entry.getKey(), entry.getValue());
+			}
+			writer.commit();
+		}
+		table = RedirectTable.open(file);
+		// Only drop entries that have not been replaced while merging.
+		for (Map.Entry<String, String> entry : merging.entrySet()) {
+			overlay.remove(entry.getKey(), entry.getValue());
+		}
+		lastMerge = System.currentTimeMillis();
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine("Merged " + merging.size()
+					+ " redirects into snapshot of " + table.size() + ".");
+		}
+	}
+
+	/**
+	 * Runs merges on a background thread, which is only created by the first
+	 * merge, so snapshots that never merge need no thread.
+	 */
+	private static final class BackgroundMerger implements Executor {
+
+		private ExecutorService executor;
+
+		@Override
+		public synchronized void execute(Runnable merge) {
+			if (executor == null) {
+				executor = Executors.newSingleThreadExecutor(ThreadManager
+						.backgroundThreadFactory());
+			}
+			executor.execute(merge);
+		}
+	}
+}
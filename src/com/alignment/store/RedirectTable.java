@@ -0,0 +1,382 @@
+package com.alignment.store;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Read only id to redirect table backed by a memory mapped file. The file is
+ * laid out as a fixed header, an open addressing hash index and a heap of
+ * UTF-8 encoded id and redirect strings:
+ *
+ * <pre>
+ * header: int magic, int version, int slotCount, int size, long heapStart
+ * index:  slotCount * (long hash, long heapOffset), hash 0 marks an empty slot
+ * heap:   size * (int idLength, int redirectLength, id bytes, redirect bytes)
+ * </pre>
+ *
+ * Lookups are lock free and only touch the mapped pages, so once the file has
+ * been paged in a lookup costs a hash and a couple of probes. Tables are
+ * created with a {@link Writer} and are never modified once written.
+ */
+public final class RedirectTable {
+
+	private static final int MAGIC = 0x414C5254;
+
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 24;
+
+	private static final int SLOT_SIZE = 16;
+
+	private static final HashFunction HASH = Hashing.murmur3_128();
+
+	private final ByteBuffer buffer;
+
+	private final int mask;
+
+	private final int size;
+
+	private RedirectTable(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+			throw new IOException("Not a redirect table.");
+		}
+		if (buffer.getInt(4) != VERSION) {
+			throw new IOException("Unsupported redirect table version "
+					+ buffer.getInt(4));
+		}
+		int slotCount = buffer.getInt(8);
+		if (Integer.bitCount(slotCount) != 1) {
+			throw new IOException("Corrupt redirect table index.");
+		}
+		this.mask = slotCount - 1;
+		this.size = buffer.getInt(12);
+	}
+
+	/**
+	 * Map the table stored in the provided file. The mapping stays valid after
+	 * the channel has been closed.
+	 *
+	 * @param file
+	 *            The file written by a {@link Writer}.
+	 *
+	 * @return The mapped table.
+	 *
+	 * @throws IOException
+	 *             If the file cannot be read or is not a redirect table.
+	 */
+	public static RedirectTable open(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.READ)) {
+			MappedByteBuffer mapped = channel.map(MapMode.READ_ONLY, 0,
+					channel.size());
+			return new RedirectTable(mapped);
+		}
+	}
+
+	/**
+	 * Create a table that does not contain any redirects.
+	 */
+	public static RedirectTable empty() {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + SLOT_SIZE);
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, VERSION);
+		buffer.putInt(8, 1);
+		buffer.putInt(12, 0);
+		buffer.putLong(16, HEADER_SIZE + SLOT_SIZE);
+		try {
+			return new RedirectTable(buffer);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return The number of redirects in the table.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Look up the redirect for the provided id.
+	 *
+	 * @param id
+	 *            The link id.
+	 *
+	 * @return The redirect, or {@code null} if the table does not contain the
+	 *         id.
+	 */
+	public String get(String id) {
+		byte[] key = id.getBytes(Charsets.UTF_8);
+		long hash = hash(key);
+		int slot = (int) hash & mask;
+		while (true) {
+			int slotPosition = HEADER_SIZE + slot * SLOT_SIZE;
+			long slotHash = buffer.getLong(slotPosition);
+			if (slotHash == 0) {
+				return null;
+			}
+			if (slotHash == hash) {
+				int entry = (int) buffer.getLong(slotPosition + 8);
+				if (keyEquals(buffer, entry, key)) {
+					return readValue(buffer, entry);
+				}
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**
+	 * Call the visitor for every redirect in the table, in index order.
+	 */
+	void forEach(EntryVisitor visitor) {
+		for (int slot = 0; slot <= mask; slot++) {
+			int slotPosition = HEADER_SIZE + slot * SLOT_SIZE;
+			if (buffer.getLong(slotPosition) != 0) {
+				int entry = (int) buffer.getLong(slotPosition + 8);
+				int keyLength = buffer.getInt(entry);
+				visitor.visit(readString(buffer, entry + 8, keyLength),
+						readValue(buffer, entry));
+			}
+		}
+	}
+
+	/**
+	 * Callback for {@link RedirectTable#forEach(EntryVisitor)}.
+	 */
+	interface EntryVisitor {
+		void visit(String id, String redirect);
+	}
+
+	private static long hash(byte[] key) {
+		long hash = HASH.hashBytes(key).asLong();
+		// Zero marks an empty slot.
+		return hash == 0 ? 1 : hash;
+	}
+
+	private static boolean keyEquals(ByteBuffer heap, int entry, byte[] key) {
+		if (heap.getInt(entry) != key.length) {
+			return false;
+		}
+		int start = entry + 8;
+		for (int i = 0; i < key.length; i++) {
+			if (heap.get(start + i) != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String readValue(ByteBuffer heap, int entry) {
+		int keyLength = heap.getInt(entry);
+		int valueLength = heap.getInt(entry + 4);
+		return readString(heap, entry + 8 + keyLength, valueLength);
+	}
+
+	private static String readString(ByteBuffer heap, int position, int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = heap.get(position + i);
+		}
+		return new String(bytes, Charsets.UTF_8);
+	}
+
+	/**
+	 * Streaming writer for redirect tables. Entries are appended to a heap file
+	 * as they are added so only the hashes and offsets are held in memory. The
+	 * table is written to a temporary file and moved over the target when
+	 * committed so readers never see a partial table. If the same id is added
+	 * more than once the last redirect wins.
+	 */
+	public static final class Writer implements Closeable {
+
+		private final Path target;
+
+		private final Path heapFile;
+
+		private final DataOutputStream heap;
+
+		private long heapSize = 0;
+
+		private long[] hashes = new long[1024];
+
+		private long[] offsets = new long[1024];
+
+		private int count = 0;
+
+		private boolean closed = false;
+
+		/**
+		 * Create a writer for the provided target file.
+		 *
+		 * @param target
+		 *            The file that will hold the table once committed.
+		 *
+		 * @throws IOException
+		 *             If the temporary heap file cannot be created.
+		 */
+		public Writer(Path target) throws IOException {
+			this.target = checkNotNull(target, "Must have a target file.");
+			Path directory = target.toAbsolutePath().getParent();
+			this.heapFile = Files.createTempFile(directory, "redirects", ".heap");
+			this.heap = new DataOutputStream(new BufferedOutputStream(
+					Files.newOutputStream(heapFile)));
+		}
+
+		/**
+		 * Add a redirect to the table.
+		 *
+		 * @param id
+		 *            The link id.
+		 *
+		 * @param redirect
+		 *            The redirect url for the id.
+		 */
+		public void add(String id, String redirect) throws IOException {
+			checkNotNull(id, "Must have a non-null id.");
+			checkNotNull(redirect, "Must have a non-null redirect.");
+			byte[] key = id.getBytes(Charsets.UTF_8);
+			byte[] value = redirect.getBytes(Charsets.UTF_8);
+			if (count == hashes.length) {
+				hashes = Arrays.copyOf(hashes, count * 2);
+				offsets = Arrays.copyOf(offsets, count * 2);
+			}
+			hashes[count] = hash(key);
+			offsets[count] = heapSize;
+			count++;
+			heap.writeInt(key.length);
+			heap.writeInt(value.length);
+			heap.write(key);
+			heap.write(value);
+			heapSize += 8 + key.length + value.length;
+		}
+
+		/**
+		 * Build the index and atomically replace the target file with the
+		 * finished table.
+		 *
+		 * @return The number of distinct ids in the table.
+		 *
+		 * @throws IOException
+		 *             If the table cannot be written or would be too large to
+		 *             map.
+		 */
+		public int commit() throws IOException {
+			heap.close();
+			int slotCount = Integer.highestOneBit(Math.max(1, count) * 2 - 1) << 1;
+			long heapStart = HEADER_SIZE + (long) slotCount * SLOT_SIZE;
+			if (heapStart + heapSize > Integer.MAX_VALUE) {
+				throw new IOException("Redirect table would exceed 2GB.");
+			}
+			long[] slotHashes = new long[slotCount];
+			int[] slotEntries = new int[slotCount];
+			int mask = slotCount - 1;
+			int distinct = 0;
+
+			try (FileChannel heapChannel = FileChannel.open(heapFile,
+					StandardOpenOption.READ)) {
+				ByteBuffer heapBuffer = heapChannel.map(MapMode.READ_ONLY, 0,
+						heapSize);
+				for (int i = 0; i < count; i++) {
+					int entry = (int) offsets[i];
+					int slot = (int) hashes[i] & mask;
+					while (slotHashes[slot] != 0) {
+						if (slotHashes[slot] == hashes[i]
+								&& sameKey(heapBuffer, slotEntries[slot], entry)) {
+							break;
+						}
+						slot = (slot + 1) & mask;
+					}
+					if (slotHashes[slot] == 0) {
+						distinct++;
+					}
+					slotHashes[slot] = hashes[i];
+					slotEntries[slot] = entry;
+				}
+			}
+
+			Path temp = Files.createTempFile(target.toAbsolutePath()
+					.getParent(), "redirects", ".tmp");
+			boolean moved = false;
+			try {
+				try (FileChannel out = FileChannel.open(temp,
+						StandardOpenOption.WRITE)) {
+					ByteBuffer index = ByteBuffer.allocate((int) heapStart);
+					index.putInt(MAGIC).putInt(VERSION).putInt(slotCount)
+							.putInt(distinct).putLong(heapStart);
+					for (int slot = 0; slot < slotCount; slot++) {
+						index.putLong(slotHashes[slot]);
+						index.putLong(slotHashes[slot] == 0 ? 0 : heapStart
+								+ slotEntries[slot]);
+					}
+					index.flip();
+					while (index.hasRemaining()) {
+						out.write(index);
+					}
+					try (FileChannel heapChannel = FileChannel.open(heapFile,
+							StandardOpenOption.READ)) {
+						long copied = 0;
+						while (copied < heapSize) {
+							copied += heapChannel.transferTo(copied, heapSize
+									- copied, out.position(heapStart + copied));
+						}
+					}
+					out.force(true);
+				}
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				moved = true;
+			} finally {
+				if (!moved) {
+					Files.deleteIfExists(temp);
+				}
+			}
+			close();
+			return distinct;
+		}
+
+		private static boolean sameKey(ByteBuffer heap, int first, int second) {
+			int length = heap.getInt(first);
+			if (heap.getInt(second) != length) {
+				return false;
+			}
+			for (int i = 0; i < length; i++) {
+				if (heap.get(first + 8 + i) != heap.get(second + 8 + i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Discard the writer, removing the temporary heap file. Closing a
+		 * writer that has not been committed leaves the target untouched.
+		 */
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				heap.close();
+				Files.deleteIfExists(heapFile);
+			}
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package com.alignment.store;
+
+import java.util.concurrent.TimeUnit;
+
+import com.alignment.metrics.Histogram;
+import com.alignment.metrics.Metrics;
+import com.alignment.metrics.Trace;
+import com.alignment.metrics.TraceEvent;
+
+/**
+ * The tiers a redirect can be resolved from, fastest first.
+ */
+public enum RedirectTier {
+	// The memory mapped redirect snapshot and its overlay.
+	SNAPSHOT,
+	// The bounded instance local cache.
+	LOCAL,
+	// The shared memcache.
+	MEMCACHE,
+	// The datastore.
+	DATASTORE;
+
+	private final Histogram latency = Metrics.latency("redirect.tier."
+			+ name().toLowerCase());
+
+	/**
+	 * @return The latency of lookups resolved by this tier.
+	 */
+	public Histogram latency() {
+		return latency;
+	}
+
+	/**
+	 * Record a lookup resolved by this tier, started at the provided
+	 * {@link System#nanoTime()} reading.
+	 */
+	void resolved(String id, long startNanos) {
+		long elapsed = System.nanoTime() - startNanos;
+		latency.record(TimeUnit.NANOSECONDS.toMicros(elapsed));
+		if (Trace.isEnabled()) {
+			Trace.record(TraceEvent.redirectResolved(elapsed, id, name()));
+		}
+	}
+}
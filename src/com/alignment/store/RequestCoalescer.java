@@ -0,0 +1,161 @@
+package com.alignment.store;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.Futures;
+
+/**
+ * Coalesces concurrent backend fetches for the same key. The first caller for
+ * a key becomes the leader and starts the fetch, callers that arrive while
+ * the fetch is in flight share its result instead of issuing their own. Once
+ * the result is known, or a caller times out waiting for it, the key is
+ * released so later callers fetch again, which means a coalesced result is
+ * never older than the fetch it came from.
+ *
+ * @param <V>
+ *            The type of the fetched value.
+ */
+public final class RequestCoalescer<V> {
+
+	private final ConcurrentMap<String, InFlight> inFlight = new ConcurrentHashMap<>();
+
+	private final AtomicLong leaders = new AtomicLong();
+
+	private final AtomicLong coalesced = new AtomicLong();
+
+	/**
+	 * Join the fetch in flight for the key, or start one with the provided
+	 * fetch if there is none. The fetch is only called by the leader. Both
+	 * synchronous fetches, returning a completed future, and asynchronous
+	 * fetches are supported. A fetch that throws completes the shared future
+	 * with the thrown exception.
+	 *
+	 * @param key
+	 *            The key being fetched.
+	 *
+	 * @param fetch
+	 *            Starts the backend fetch for the key.
+	 *
+	 * @return The shared result of the fetch.
+	 */
+	public Future<V> fetch(String key, Callable<Future<V>> fetch) {
+		InFlight created = new InFlight(key);
+		InFlight existing = inFlight.putIfAbsent(key, created);
+		if (existing != null) {
+			coalesced.incrementAndGet();
+			return existing;
+		}
+		leaders.incrementAndGet();
+		Future<V> delegate;
+		try {
+			delegate = fetch.call();
+		} catch (Exception e) {
+			delegate = Futures.immediateFailedFuture(e);
+		}
+		created.start(delegate);
+		if (delegate.isDone()) {
+			created.release();
+		}
+		return created;
+	}
+
+	/**
+	 * @return The number of callers that started a backend fetch.
+	 */
+	public long getLeaderCount() {
+		return leaders.get();
+	}
+
+	/**
+	 * @return The number of callers that shared a fetch already in flight.
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	/**
+	 * @return The number of keys with a fetch in flight.
+	 */
+	public int getInFlightCount() {
+		return inFlight.size();
+	}
+
+	/**
+	 * The fetch shared by the callers of a key. Followers can join before the
+	 * leader has started the backend fetch, so they wait for it to start.
+	 */
+	private final class InFlight implements Future<V> {
+
+		private final String key;
+
+		private final CountDownLatch started = new CountDownLatch(1);
+
+		private volatile Future<V> delegate;
+
+		private InFlight(String key) {
+			this.key = key;
+		}
+
+		private void start(Future<V> fetch) {
+			delegate = fetch;
+			started.countDown();
+		}
+
+		private void release() {
+			inFlight.remove(key, this);
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			// The fetch is shared, a single caller giving up does not cancel it.
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public boolean isDone() {
+			Future<V> fetch = delegate;
+			return fetch != null && fetch.isDone();
+		}
+
+		@Override
+		public V get() throws InterruptedException, ExecutionException {
+			started.await();
+			try {
+				return delegate.get();
+			} finally {
+				release();
+			}
+		}
+
+		// A caller that gives up on the fetch releases the key too, otherwise
+		// a fetch that never completes would be shared with every later
+		// caller.
+		@Override
+		public V get(long timeout, TimeUnit unit) throws InterruptedException,
+				ExecutionException, TimeoutException {
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			try {
+				if (!started.await(timeout, unit)) {
+					throw new TimeoutException();
+				}
+				return delegate.get(deadline - System.nanoTime(),
+						TimeUnit.NANOSECONDS);
+			} finally {
+				release();
+			}
+		}
+	}
+}
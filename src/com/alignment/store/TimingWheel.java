@@ -0,0 +1,250 @@
+package com.alignment.store;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hierarchical timing wheel of ids that expire. Time moves in ticks, and each
+ * of the {@link #LEVELS} wheels has {@link #SLOTS} slots, each slot of a wheel
+ * spanning a whole turn of the wheel below it. An id is kept in the lowest
+ * wheel whose turn ends after its deadline, and moves down a wheel each time
+ * the wheel above reaches its slot, until it expires from the lowest wheel.
+ *
+ * Scheduling and cancelling an id are constant time. An advance jumps over
+ * the ticks on which the lower wheels are empty, so catching up after a long
+ * idle time costs at most a turn of each wheel that holds ids, plus the ids
+ * it moves or expires. Deadlines are rounded up to the next tick, so ids
+ * expire up to a tick late.
+ */
+final class TimingWheel {
+
+	// Bits of the tick number consumed by each wheel.
+	private static final int SLOT_BITS = 6;
+
+	static final int SLOTS = 1 << SLOT_BITS;
+
+	// Six wheels of 64 slots cover 2^36 ticks, over two thousand years of
+	// one second ticks.
+	static final int LEVELS = 6;
+
+	private final long tickMillis;
+
+	// Head of the list of timers in each slot of each wheel.
+	private final Timer[][] wheels = new Timer[LEVELS][SLOTS];
+
+	// Number of timers in each wheel.
+	private final int[] counts = new int[LEVELS];
+
+	private final Map<String, Timer> timers = new HashMap<>();
+
+	// Timers that were already due when they were scheduled.
+	private final List<String> due = new ArrayList<>();
+
+	// The last tick that was expired, read without the lock to decide whether
+	// an advance is due.
+	private volatile long currentTick;
+
+	/**
+	 * @param tickMillis
+	 *            The length of a tick.
+	 *
+	 * @param nowMillis
+	 *            The current time.
+	 */
+	TimingWheel(long tickMillis, long nowMillis) {
+		checkArgument(tickMillis > 0, "Tick must be positive.");
+		this.tickMillis = tickMillis;
+		this.currentTick = nowMillis / tickMillis;
+	}
+
+	/**
+	 * @return {@code true} if a tick has passed since the last advance.
+	 */
+	boolean isAdvanceDue(long nowMillis) {
+		return nowMillis / tickMillis > currentTick;
+	}
+
+	/**
+	 * Schedule an id to expire, replacing its previous deadline.
+	 */
+	synchronized void schedule(String id, long deadlineMillis) {
+		Timer timer = timers.get(id);
+		if (timer != null) {
+			unlink(timer);
+		} else {
+			timer = new Timer(id);
+			timers.put(id, timer);
+		}
+		// Rounded up, so an id never expires before its deadline.
+		timer.deadline = (deadlineMillis + tickMillis - 1) / tickMillis;
+		if (timer.deadline <= currentTick) {
+			timers.remove(id);
+			due.add(id);
+		} else {
+			place(timer);
+		}
+	}
+
+	/**
+	 * Stop an id from expiring.
+	 *
+	 * @return {@code true} if the id was scheduled.
+	 */
+	synchronized boolean cancel(String id) {
+		Timer timer = timers.remove(id);
+		if (timer == null) {
+			return due.remove(id);
+		}
+		unlink(timer);
+		return true;
+	}
+
+	/**
+	 * @return The number of ids scheduled.
+	 */
+	synchronized int size() {
+		return timers.size() + due.size();
+	}
+
+	/**
+	 * Move time forward, expiring the ids whose deadlines have passed.
+	 *
+	 * @return The expired ids, which are no longer scheduled.
+	 */
+	synchronized List<String> advance(long nowMillis) {
+		List<String> expired = new ArrayList<>(due);
+		due.clear();
+		long target = nowMillis / tickMillis;
+		while (currentTick < target) {
+			// Nothing happens until the lowest wheel that holds timers turns
+			// to its next slot, so skip the ticks before that.
+			int empty = 0;
+			while (empty < LEVELS && counts[empty] == 0) {
+				empty++;
+			}
+			if (empty == LEVELS) {
+				currentTick = target;
+				break;
+			}
+			if (empty > 0) {
+				currentTick = Math.min(target,
+						currentTick | ((1L << (SLOT_BITS * empty)) - 1));
+				if (currentTick == target) {
+					break;
+				}
+			}
+			long tick = currentTick + 1;
+			// Cascade from the highest wheel that has turned to this slot, so
+			// ids can fall through several wheels in one tick.
+			int level = 0;
+			while (level + 1 < LEVELS
+					&& (tick & ((1L << (SLOT_BITS * (level + 1))) - 1)) == 0) {
+				level++;
+			}
+			currentTick = tick;
+			for (; level > 0; level--) {
+				int slot = slot(tick, level);
+				Timer timer = wheels[level][slot];
+				wheels[level][slot] = null;
+				while (timer != null) {
+					Timer next = timer.next;
+					counts[level]--;
+					timer.prev = null;
+					timer.next = null;
+					place(timer);
+					timer = next;
+				}
+			}
+			int slot = slot(tick, 0);
+			Timer timer = wheels[0][slot];
+			wheels[0][slot] = null;
+			while (timer != null) {
+				Timer next = timer.next;
+				counts[0]--;
+				timer.prev = null;
+				timer.next = null;
+				if (timer.deadline > tick) {
+					// Deadlines beyond the top wheel come round again.
+					place(timer);
+				} else {
+					timers.remove(timer.id);
+					expired.add(timer.id);
+				}
+				timer = next;
+			}
+		}
+		return expired;
+	}
+
+	// Put a timer in the lowest wheel that will reach its slot before the
+	// deadline: the wheel below which the deadline and the current tick
+	// agree on every higher slot.
+	private void place(Timer timer) {
+		long deadline = timer.deadline;
+		int level = 0;
+		while (level < LEVELS - 1
+				&& deadline >>> (SLOT_BITS * (level + 1)) != currentTick >>> (SLOT_BITS * (level + 1))) {
+			level++;
+		}
+		if (deadline >>> (SLOT_BITS * LEVELS) != currentTick >>> (SLOT_BITS * LEVELS)) {
+			// Too far away for the wheels, parked in the first slot of the top
+			// wheel, which comes round at the start of each of its turns.
+			deadline = currentTick >>> (SLOT_BITS * LEVELS) << (SLOT_BITS * LEVELS);
+		}
+		int slot = slot(deadline, level);
+		timer.level = level;
+		timer.slot = slot;
+		timer.prev = null;
+		timer.next = wheels[level][slot];
+		if (timer.next != null) {
+			timer.next.prev = timer;
+		}
+		wheels[level][slot] = timer;
+		counts[level]++;
+	}
+
+	private void unlink(Timer timer) {
+		counts[timer.level]--;
+		if (timer.prev != null) {
+			timer.prev.next = timer.next;
+		} else {
+			wheels[timer.level][timer.slot] = timer.next;
+		}
+		if (timer.next != null) {
+			timer.next.prev = timer.prev;
+		}
+		timer.prev = null;
+		timer.next = null;
+	}
+
+	private static int slot(long tick, int level) {
+		return (int) (tick >>> (SLOT_BITS * level)) & (SLOTS - 1);
+	}
+
+	/**
+	 * An id in a slot of a wheel, linked to the other ids of the slot.
+	 */
+	private static final class Timer {
+
+		private final String id;
+
+		// The tick the id expires at.
+		private long deadline;
+
+		private int level;
+
+		private int slot;
+
+		private Timer prev;
+
+		private Timer next;
+
+		Timer(String id) {
+			this.id = id;
+		}
+	}
+}
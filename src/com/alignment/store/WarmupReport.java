@@ -0,0 +1,101 @@
+package com.alignment.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * Summary of what a {@link CacheWarmer} loaded into the local and memcache
+ * tiers.
+ */
+public final class WarmupReport {
+
+	int hotLinksLoaded;
+
+	int campaignLinksLoaded;
+
+	int memcacheHits;
+
+	int datastoreReads;
+
+	long bytesLoaded;
+
+	long elapsedMillis;
+
+	String stopReason;
+
+	final List<String> campaigns = new ArrayList<>();
+
+	WarmupReport() {
+	}
+
+	/**
+	 * @return The number of hot links loaded.
+	 */
+	public int getHotLinksLoaded() {
+		return hotLinksLoaded;
+	}
+
+	/**
+	 * @return The number of links of recent campaigns loaded.
+	 */
+	public int getCampaignLinksLoaded() {
+		return campaignLinksLoaded;
+	}
+
+	/**
+	 * @return The number of hot links that were already in memcache.
+	 */
+	public int getMemcacheHits() {
+		return memcacheHits;
+	}
+
+	/**
+	 * @return The number of redirects read from the datastore.
+	 */
+	public int getDatastoreReads() {
+		return datastoreReads;
+	}
+
+	/**
+	 * @return The estimated heap used by the loaded redirects.
+	 */
+	public long getBytesLoaded() {
+		return bytesLoaded;
+	}
+
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	/**
+	 * @return The campaigns whose links were loaded, most recent first.
+	 */
+	public List<String> getCampaigns() {
+		return Collections.unmodifiableList(campaigns);
+	}
+
+	/**
+	 * @return Why warming stopped before loading everything, or {@code null}
+	 *         if it completed.
+	 */
+	public String getStopReason() {
+		return stopReason;
+	}
+
+	@Override
+	public String toString() {
+		return MoreObjects.toStringHelper(WarmupReport.class)
+				.add("hotLinks", hotLinksLoaded)
+				.add("campaignLinks", campaignLinksLoaded)
+				.add("campaigns", campaigns)
+				.add("memcacheHits", memcacheHits)
+				.add("datastoreReads", datastoreReads)
+				.add("bytes", bytesLoaded)
+				.add("elapsedMillis", elapsedMillis)
+				.add("stopReason", stopReason)
+				.toString();
+	}
+}
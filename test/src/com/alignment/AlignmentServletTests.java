@@ -1,10 +1,15 @@
 package com.alignment;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertNotNull;
 
 import java.util.HashMap;
 import java.util.Map;
 
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -17,6 +22,7 @@ import org.mockito.stubbing.Answer;
 
 import com.alignment.servlets.AlignmentServlet;
 import com.alignment.store.EmailLinkStore;
+import com.alignment.store.RedirectPolicy;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
@@ -37,6 +43,15 @@ public class AlignmentServletTests extends Mockito {
 		helper.tearDown();
 	}
 
+	// A servlet initialised without any init parameters, with its own store.
+	private static AlignmentServlet servlet() throws ServletException {
+		ServletConfig config = mock(ServletConfig.class);
+		when(config.getServletContext()).thenReturn(mock(ServletContext.class));
+		AlignmentServlet servlet = new AlignmentServlet();
+		servlet.init(config);
+		return servlet;
+	}
+
 	@Test
 	public void testAlignmentPut() throws Exception {
 		EmailLinkStore store = new EmailLinkStore();
@@ -54,11 +69,11 @@ public class AlignmentServletTests extends Mockito {
 		doAnswer(new Answer<Void>() {
 			@Override
 			public Void answer(InvocationOnMock invocation) throws Throwable {
-				out.put("REDIRECT", invocation.getArguments()[0]);
+				out.put("REDIRECT", invocation.getArguments()[1]);
 				return null;
 			}
 
-		}).when(response).sendRedirect(anyString());
+		}).when(response).setHeader(eq("Location"), anyString());
 
 		doAnswer(new Answer<Void>() {
 			@Override
@@ -69,11 +84,95 @@ public class AlignmentServletTests extends Mockito {
 
 		}).when(response).sendError(anyInt(), anyString());
 
-		new AlignmentServlet().doGet(request, response);
+		servlet().doGet(request, response);
 
 		System.out.println(out);
 
 		assertNotNull(out.get("REDIRECT"));
+		verify(response).setStatus(302);
+		verify(response).setHeader("Cache-Control", "no-cache");
+	}
+
+	@Test
+	public void testRedirectPolicy() throws Exception {
+		EmailLinkStore store = new EmailLinkStore();
+		store.createUrlRedirect("LOGO", "http://www.google.com/logo.png", null,
+				RedirectPolicy.parse("permanent,max-age=86400,untracked"));
+
+		for (String method : new String[] { "GET", "HEAD" }) {
+			HttpServletRequest request = mock(HttpServletRequest.class);
+			when(request.getParameter("id")).thenReturn("LOGO");
+			HttpServletResponse response = mock(HttpServletResponse.class);
+
+			if (method.equals("GET")) {
+				servlet().doGet(request, response);
+			} else {
+				servlet().doHead(request, response);
+			}
+
+			verify(response).setStatus(301);
+			verify(response).setHeader("Location",
+					"http://www.google.com/logo.png");
+			verify(response).setHeader("Cache-Control",
+					"public, max-age=86400");
+		}
+		// Every lookup tier returns the url alone.
+		assertEquals("http://www.google.com/logo.png",
+				store.getRedirect("LOGO"));
+	}
+
+	@Test
+	public void testPolicyText() {
+		RedirectPolicy policy = RedirectPolicy.of(true, 3600, false);
+		assertEquals("permanent,max-age=3600,untracked", policy.toString());
+		assertEquals(policy, RedirectPolicy.parse(policy.toString()));
+		assertEquals(RedirectPolicy.DEFAULT, RedirectPolicy.parse(null));
+		assertEquals(RedirectPolicy.DEFAULT, RedirectPolicy.parse("tracked"));
+		// Tracked links are never cached, whatever their max age.
+		assertEquals("no-cache", RedirectPolicy.of(true, 3600, true)
+				.getCacheControl());
+
+		RedirectPolicy expiring = RedirectPolicy.parse("ttl=60");
+		assertEquals("temporary,tracked,ttl=60", expiring.toString());
+		assertEquals(61000, expiring.expiresMillis(1000));
+		assertEquals(0, RedirectPolicy.DEFAULT.expiresMillis(1000));
+	}
+
+	@Test
+	public void testExpiringCacheControl() {
+		long now = 1000000;
+		// A permanent redirect is only cached for the life the link has left.
+		RedirectPolicy permanent = RedirectPolicy.parse("permanent,untracked,ttl=3600");
+		assertNull(permanent.getCacheControl());
+		assertEquals("public, max-age=600",
+				permanent.getCacheControl(now + 600000, now));
+
+		// A max age is cut to the life left.
+		RedirectPolicy cached = RedirectPolicy.parse("temporary,max-age=86400,untracked,ttl=3600");
+		assertEquals("public, max-age=86400", cached.getCacheControl(0, now));
+		assertEquals("public, max-age=600",
+				cached.getCacheControl(now + 600000, now));
+		assertEquals("public, max-age=86400",
+				cached.getCacheControl(now + 100000000, now));
+
+		// Tracked and uncached temporary redirects are not cached anyway.
+		assertEquals("no-cache", RedirectPolicy.parse("permanent,ttl=3600")
+				.getCacheControl(now + 600000, now));
+		assertNull(RedirectPolicy.parse("untracked,ttl=3600").getCacheControl(
+				now + 600000, now));
+	}
+
+	@Test
+	public void testUnknownRedirect() throws Exception {
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		when(request.getParameter("id")).thenReturn("NOBODY");
+
+		HttpServletResponse response = mock(HttpServletResponse.class);
+
+		servlet().doGet(request, response);
+
+		verify(response).sendError(404, "Unknown redirect.");
+		verify(response, never()).setHeader(eq("Location"), anyString());
 	}
 
 }
@@ -4,15 +4,47 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
 
+import com.alignment.html.HtmlAllocationTests;
 import com.alignment.html.HtmlParserTests;
 import com.alignment.html.HtmlTagTests;
+import com.alignment.html.LinkRewriterTests;
+import com.alignment.html.ParsePipelineTests;
+import com.alignment.html.TreeReducerTests;
 import com.alignment.html.TreeNodeTests;
+import com.alignment.metrics.MetricsTests;
+import com.alignment.store.CacheWarmerTests;
+import com.alignment.store.ClickClassifierTests;
+import com.alignment.store.ClickRollupsTests;
+import com.alignment.store.HitArchiveTests;
+import com.alignment.store.HotLinkTrackerTests;
+import com.alignment.store.LinkIdsTests;
+import com.alignment.store.LocalRedirectCacheTests;
+import com.alignment.store.RedirectAllocationTests;
+import com.alignment.store.RedirectTableTests;
+import com.alignment.store.RequestCoalescerTests;
+import com.alignment.store.TimingWheelTests;
 
 @RunWith(Suite.class)
 @SuiteClasses({ AlignmentServletTests.class,
 	TreeNodeTests.class,
 	HtmlTagTests.class,
-	HtmlParserTests.class})
+	HtmlParserTests.class,
+	LinkRewriterTests.class,
+	RedirectTableTests.class,
+	CacheWarmerTests.class,
+	ClickRollupsTests.class,
+	RequestCoalescerTests.class,
+	LinkIdsTests.class,
+	HitArchiveTests.class,
+	MetricsTests.class,
+	ClickClassifierTests.class,
+	ParsePipelineTests.class,
+	TreeReducerTests.class,
+	LocalRedirectCacheTests.class,
+	TimingWheelTests.class,
+	HtmlAllocationTests.class,
+	RedirectAllocationTests.class,
+	HotLinkTrackerTests.class})
 public class AllTests {
 	
 }
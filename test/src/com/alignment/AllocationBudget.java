@@ -0,0 +1,139 @@
+package com.alignment;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+
+/**
+ * Measures the bytes allocated by hot path operations and checks them
+ * against the budgets recorded in {@code allocation-budgets.properties}, so
+ * a change that allocates more on a hot path fails the tests even when it
+ * still behaves the same.
+ *
+ * Allocation is read from the allocation counter the JVM keeps for each
+ * thread. Operations are warmed up first so that the measurement is of
+ * compiled code, and the smallest of several rounds is taken so that class
+ * loading and similar one off allocation is left out. The tests are skipped
+ * on JVMs without the counter.
+ *
+ * To record a new budget, run the tests with
+ * {@code -Dallocation.budget.print=true} and copy the measured value, with a
+ * little headroom, into the budget file.
+ */
+public final class AllocationBudget {
+
+	private static final String BUDGET_FILE = "allocation-budgets.properties";
+
+	private static final String PRINT_PROPERTY = "allocation.budget.print";
+
+	// Rounds run before measuring, enough for the JIT to compile the
+	// operation.
+	private static final int WARMUP_ROUNDS = 10;
+
+	private static final int ROUNDS = 5;
+
+	private static final Properties BUDGETS = loadBudgets();
+
+	// Keeps results reachable so the operations are not optimized away.
+	private static volatile Object sink;
+
+	private AllocationBudget() {
+	}
+
+	/**
+	 * Measure the bytes an operation allocates each time it runs, and fail
+	 * if it is over the budget of the provided name.
+	 *
+	 * @param name
+	 *            The name of the budget in the budget file.
+	 *
+	 * @param operations
+	 *            The number of times to run the operation in each round.
+	 *
+	 * @return The measured bytes per operation.
+	 */
+	public static long assertWithinBudget(String name, int operations,
+			Callable<?> operation) throws Exception {
+		return assertWithinBudget(name, operations, 1, operation);
+	}
+
+	/**
+	 * Measure the bytes an operation allocates for each unit of work it
+	 * does, such as each kilobyte of input, and fail if it is over the budget
+	 * of the provided name.
+	 *
+	 * @param units
+	 *            The units of work done by each run of the operation.
+	 */
+	public static long assertWithinBudget(String name, int operations,
+			long units, Callable<?> operation) throws Exception {
+		long bytes = bytesPerOperation(operations, operation) / units;
+		if (Boolean.getBoolean(PRINT_PROPERTY)) {
+			System.out.println(name + "=" + bytes);
+		}
+		String budget = BUDGETS.getProperty(name);
+		assertNotNull("No allocation budget recorded for " + name + ".", budget);
+		assertTrue(name + " allocates " + bytes + " bytes, over its budget of "
+				+ budget + ".", bytes <= Long.parseLong(budget.trim()));
+		return bytes;
+	}
+
+	/**
+	 * Measure the bytes an operation allocates each time it runs.
+	 *
+	 * @param operations
+	 *            The number of times to run the operation in each round.
+	 */
+	public static long bytesPerOperation(int operations, Callable<?> operation)
+			throws Exception {
+		com.sun.management.ThreadMXBean threads = threads();
+		long thread = Thread.currentThread().getId();
+		for (int i = 0; i < WARMUP_ROUNDS * operations; i++) {
+			sink = operation.call();
+		}
+		long least = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++) {
+			long before = threads.getThreadAllocatedBytes(thread);
+			for (int i = 0; i < operations; i++) {
+				sink = operation.call();
+			}
+			long allocated = threads.getThreadAllocatedBytes(thread) - before;
+			least = Math.min(least, allocated);
+		}
+		return least / operations;
+	}
+
+	// The thread bean with allocation counting on, skipping the test on JVMs
+	// that do not count allocation.
+	private static com.sun.management.ThreadMXBean threads() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory
+				.getThreadMXBean();
+		assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean counting = (com.sun.management.ThreadMXBean) threads;
+		assumeTrue(counting.isThreadAllocatedMemorySupported());
+		if (!counting.isThreadAllocatedMemoryEnabled()) {
+			counting.setThreadAllocatedMemoryEnabled(true);
+		}
+		return counting;
+	}
+
+	private static Properties loadBudgets() {
+		Properties budgets = new Properties();
+		try (InputStream in = AllocationBudget.class
+				.getResourceAsStream(BUDGET_FILE)) {
+			if (in != null) {
+				budgets.load(in);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not read " + BUDGET_FILE
+					+ ".", e);
+		}
+		return budgets;
+	}
+}
@@ -0,0 +1,90 @@
+package com.alignment.html;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.alignment.AllocationBudget;
+import com.alignment.html.parser.HtmlParser;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Allocation budgets of parsing and of building and walking tags.
+ */
+public class HtmlAllocationTests
+{
+	private static final int KILOBYTE = 1024;
+
+	private static String email;
+
+	private static Map<String, String> attributes;
+
+	private static HtmlTag body;
+
+	@BeforeClass
+	public static void setUpClass()
+	{
+		//Only tags the parser has types for, unknown tags are logged and would be
+		//measured along with the parse.
+		StringBuilder html = new StringBuilder("<html><body>");
+		for(int row = 0; html.length() < 16 * KILOBYTE; row++)
+		{
+			html.append("<h2>Spring collection</h2>")
+					.append("<p class=\"row").append(row).append("\">")
+					.append("Save on the new season and discover more styles for every occasion.</p>")
+					.append("<p><a href=\"http://www.example.com/alignment/").append(row)
+					.append("\" style=\"color:#0066cc\">Shop now</a></p>");
+		}
+		email = html.append("</body></html>").toString();
+
+		attributes = ImmutableMap.of("href", "http://www.example.com/", "style", "color:#0066cc");
+
+		TagBuilder builder = TagBuilder.create().ofType(TagType.BODY).withText("");
+		for(int i = 0; i < 8; i++)
+		{
+			builder.andChild(TagBuilder.create().ofType(TagType.P).withText("Paragraph " + i)
+					.withAttributes(ImmutableMap.of("class", "p" + i)).build());
+		}
+		body = builder.build();
+	}
+
+	@Test
+	public void testParseSingleTag() throws Exception
+	{
+		AllocationBudget.assertWithinBudget("html.parseSingleTag.perKilobyte", 20,
+				email.length() / KILOBYTE, new Callable<HtmlTag>() {
+					@Override
+					public HtmlTag call()
+					{
+						return HtmlParser.parseSingleTag(email);
+					}
+				});
+	}
+
+	@Test
+	public void testBuild() throws Exception
+	{
+		AllocationBudget.assertWithinBudget("html.TagBuilder.build", 10000, new Callable<HtmlTag>() {
+			@Override
+			public HtmlTag call()
+			{
+				return TagBuilder.create().ofType(TagType.A).withText("Shop now")
+						.withAttributes(attributes).build();
+			}
+		});
+	}
+
+	@Test
+	public void testGetChildren() throws Exception
+	{
+		AllocationBudget.assertWithinBudget("html.getChildren", 10000, new Callable<Object>() {
+			@Override
+			public Object call()
+			{
+				return body.getChildren();
+			}
+		});
+	}
+}
@@ -1,14 +1,29 @@
 package com.alignment.html;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.junit.Test;
 
 import com.alignment.html.parser.HtmlParser;
+import com.alignment.html.parser.ParseOptions;
+import com.alignment.html.parser.ParseOptions.LimitAction;
+import com.alignment.html.parser.ParseOptions.ParseLimit;
+import com.alignment.html.parser.ParseResult;
+import com.alignment.html.parser.StringPool;
 
 /**
  * Tests for parsing HTML. There are a lot of tests in here as this is the core functionality.
@@ -47,4 +62,157 @@ public class HtmlParserTests {
 		assertTrue(child.getAttributes().get("href").equals("//cdn.sstatic.net/stackoverflow/all.css?v=fd40bcfb3c2e"));
 	}
 	
+	@Test
+	public void testTextParsing()
+	{
+		HtmlTag tag = HtmlParser.parseSingleTag("<p>Hello <a>sir</a> how are you?</p>");
+		HtmlTag body = tag.getChildren().iterator().next();
+		HtmlTag p = body.getChildren().iterator().next();
+		assertTrue(p.getTagType().equals(TagType.P));
+		assertEquals("Hello  how are you?", p.getText());
+		assertEquals("sir", p.getChildren().iterator().next().getText());
+	}
+	
+	@Test
+	public void testStringPool()
+	{
+		StringPool pool = new StringPool(64, 512);
+		HtmlTag first = link(HtmlParser.parseSingleTag(ATTRIBUTE_TEST, pool));
+		HtmlTag second = link(HtmlParser.parseSingleTag(ATTRIBUTE_TEST, pool));
+		
+		//The second document shares the strings of the first.
+		assertSame(first.getAttributes().get("href"), second.getAttributes().get("href"));
+		assertSame(first.getAttributes().get("rel"), second.getAttributes().get("rel"));
+		assertTrue(pool.getHitCount() > 0);
+		assertTrue(pool.hitRate() > 0 && pool.hitRate() < 1);
+		
+		char[] chars = "xstylex".toCharArray();
+		assertSame(pool.intern("style"), pool.intern(chars, 1, 5));
+	}
+	
+	@Test
+	public void testCharsets() throws Exception
+	{
+		String latin = "<html><head><meta http-equiv=\"Content-Type\" content=\"text/html; charset=ISO-8859-1\">"
+				+ "</head><body><p>caf\u00e9</p></body></html>";
+		HtmlTag tag = HtmlParser.parseSingleTag(ByteBuffer.wrap(latin.getBytes(StandardCharsets.ISO_8859_1)), null);
+		assertEquals("caf\u00e9", paragraph(tag).getText());
+		
+		//A byte order mark wins over the default and is not part of the text.
+		byte[] utf16 = ("\ufeff<p>caf\u00e9</p>").getBytes(StandardCharsets.UTF_16LE);
+		tag = HtmlParser.parseSingleTag(new ByteArrayInputStream(utf16), null);
+		assertEquals("caf\u00e9", paragraph(tag).getText());
+		
+		Path file = Files.createTempFile("email", ".html");
+		try
+		{
+			Files.write(file, "<meta charset='utf-8'><p>caf\u00e9</p>".getBytes(StandardCharsets.UTF_8));
+			tag = HtmlParser.parseSingleTag(file, null);
+			assertEquals("caf\u00e9", paragraph(tag).getText());
+		}
+		finally
+		{
+			Files.delete(file);
+		}
+	}
+	
+	@Test
+	public void testParseLimits()
+	{
+		String nested = "<div><div><div><div>deep</div></div></div></div><p>after</p>";
+		
+		//Truncating drops the deep elements and keeps the rest of the document.
+		ParseResult truncated = HtmlParser.parse(nested, ParseOptions.builder().maxDepth(4).build());
+		assertEquals(ParseLimit.DEPTH, truncated.getLimit());
+		assertTrue(truncated.isComplete());
+		HtmlTag body = truncated.getRoot().getChildren().iterator().next();
+		assertEquals(2, body.getChildren().size());
+		
+		//Aborting keeps what was parsed before the limit.
+		ParseResult aborted = HtmlParser.parse(nested, ParseOptions.builder().maxDepth(4)
+				.onLimit(LimitAction.ABORT).build());
+		assertEquals(ParseLimit.DEPTH, aborted.getLimit());
+		assertFalse(aborted.isComplete());
+		body = aborted.getRoot().getChildren().iterator().next();
+		assertEquals(1, body.getChildren().size());
+		
+		ParseResult text = HtmlParser.parse("<p>Hello there</p>", ParseOptions.builder().maxTextChars(5).build());
+		assertEquals(ParseLimit.TEXT, text.getLimit());
+		assertEquals("Hello", paragraph(text.getRoot()).getText());
+		
+		ParseResult within = HtmlParser.parse(nested, ParseOptions.defaults());
+		assertTrue(within.isWithinLimits());
+		assertNull(within.getLimit());
+	}
+	
+	@Test
+	public void testDocumentIndexes()
+	{
+		HtmlDocument document = HtmlParser.parseDocument("<p><a href='http://a.com/x'>one</a><a href=' http://a.com/x '>two</a>"
+				+ "<a href='http://b.com'>three</a></p><p class='foot'>end</p>");
+		assertEquals(7, document.getElementCount());
+		assertEquals(14, document.getTextLength());
+		
+		//Tags are numbered in document order, so siblings that look the same are kept apart.
+		assertEquals(TagType.HTML, document.getTag(1).getTagType());
+		assertNull(document.getTag(8));
+		assertEquals(2, document.getTags(TagType.P).size());
+		assertEquals(3, document.getTags(TagType.A).size());
+		
+		List<HtmlTag> links = document.getLinks("http://a.com/x");
+		assertEquals(2, links.size());
+		assertEquals("one", links.get(0).getText());
+		assertEquals("two", links.get(1).getText());
+		assertEquals(1, document.getTags("href", "http://a.com/x").size());
+		assertEquals("end", document.getTags("class", "foot").get(0).getText());
+		assertTrue(document.getTags("class", "head").isEmpty());
+		
+		//Indexes are built once and kept.
+		assertSame(document.getTags(TagType.A), document.getTags(TagType.A));
+	}
+	
+	@Test
+	public void testTreeNumbering()
+	{
+		HtmlDocument document = HtmlParser.parseDocument("<div><p><a href='#'>one</a></p><p><a href='#'>two</a></p></div>"
+				+ "<p class='footer'><a href='#'>unsubscribe</a></p>");
+		HtmlTag html = document.getRoot();
+		HtmlTag footer = document.getTags("class", "footer").get(0);
+		List<HtmlTag> links = document.getTags(TagType.A);
+		HtmlTag one = links.get(0);
+		HtmlTag two = links.get(1);
+		HtmlTag unsubscribe = links.get(2);
+		
+		assertEquals(0, document.getDepth(html));
+		assertEquals(4, document.getDepth(one));
+		assertTrue(document.isAncestorOf(footer, unsubscribe));
+		assertFalse(document.isAncestorOf(footer, one));
+		assertFalse(document.isAncestorOf(unsubscribe, footer));
+		assertFalse(document.isAncestorOf(footer, footer));
+		assertTrue(document.isAncestorOf(html, two));
+		
+		//The div holding both paragraphs is the lowest tag above the first two links.
+		assertEquals(5, document.getSubtreeSize(document.getCommonAncestor(one, two)));
+		assertSame(one.getParent().getParent(), document.getCommonAncestor(one, two));
+		assertSame(footer, document.getCommonAncestor(footer, unsubscribe));
+		assertSame(html.getChildren().iterator().next(), document.getCommonAncestor(two, unsubscribe));
+	}
+	
+	private static HtmlTag paragraph(HtmlTag html)
+	{
+		for(HtmlTag child : html.getChildren())
+		{
+			if(child.getTagType().equals(TagType.BODY))
+			{
+				return child.getChildren().iterator().next();
+			}
+		}
+		throw new AssertionError("No body.");
+	}
+	
+	private static HtmlTag link(HtmlTag html)
+	{
+		return html.getChildren().iterator().next().getChildren().iterator().next();
+	}
+	
 }
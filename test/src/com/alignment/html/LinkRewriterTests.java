@@ -0,0 +1,55 @@
+package com.alignment.html;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+import com.alignment.html.parser.LinkRewriter;
+
+/**
+ * Tests for rewriting the links of an email as it is parsed.
+ */
+public class LinkRewriterTests {
+
+	private static final String EMAIL = "<!DOCTYPE html><html><body>"
+			+ "<!--[if mso]><table><![endif]-->"
+			+ "<p>Hello<a href=\"http://www.google.com/?a=1&amp;b=2\">one</a>"
+			+ "<a href=\"mailto:bob@example.com\">mail</a>"
+			+ "<a href=\"#top\">top</a>"
+			+ "<map><area href=\"HTTPS://www.bing.com/\"></map>"
+			+ "</body></html>";
+
+	@Test
+	public void testRewriteLinks() throws IOException, SAXException
+	{
+		final List<String> links = new ArrayList<>();
+		StringWriter out = new StringWriter();
+		int rewritten = LinkRewriter.rewrite(new StringReader(EMAIL), out,
+				new LinkRewriter.LinkMapper() {
+					@Override
+					public String map(String href, int position) {
+						links.add(href);
+						return "http://t.example.com/alignment?id=" + position;
+					}
+				});
+
+		assertEquals(2, rewritten);
+		assertEquals("http://www.google.com/?a=1&b=2", links.get(0));
+		assertEquals("HTTPS://www.bing.com/", links.get(1));
+		String html = out.toString();
+		assertTrue(html.startsWith("<!DOCTYPE html>"));
+		assertTrue(html.contains("<a href=\"http://t.example.com/alignment?id=0\">one</a>"));
+		assertTrue(html.contains("<area href=\"http://t.example.com/alignment?id=1\">"));
+		assertTrue(html.contains("<a href=\"mailto:bob@example.com\">"));
+		assertTrue(html.contains("<a href=\"#top\">"));
+		assertTrue(html.contains("<!--[if mso]><table><![endif]-->"));
+	}
+}
@@ -0,0 +1,127 @@
+package com.alignment.html;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+import com.alignment.html.parser.DocumentStats;
+import com.alignment.html.parser.HtmlParser;
+import com.alignment.html.parser.LinkRewriter;
+import com.alignment.html.parser.ParseOptions;
+import com.alignment.html.parser.ParseOptions.LimitAction;
+import com.alignment.html.parser.ParseOptions.ParseLimit;
+import com.alignment.html.parser.ParsePipeline;
+import com.alignment.html.parser.ParseResult;
+import com.alignment.html.parser.TextExtractor;
+
+/**
+ * Tests for handing one parse to several stages.
+ */
+public class ParsePipelineTests {
+
+	private static final String EMAIL = "<html><head><style>p { color: red; }</style></head>"
+			+ "<body><h1>Spring   sale</h1><p>Save <a href=\"http://www.example.com/\">now</a>"
+			+ "</p><div><div><div>deep</div></div></div></body></html>";
+
+	private static final LinkRewriter.LinkMapper MAPPER = new LinkRewriter.LinkMapper() {
+		@Override
+		public String map(String href, int position) {
+			return "http://t.example.com/alignment?id=" + position;
+		}
+	};
+
+	@Test
+	public void testStages() throws IOException, SAXException
+	{
+		StringWriter out = new StringWriter();
+		LinkRewriter.RewriteStage rewrite = LinkRewriter.stage(out, MAPPER);
+		HtmlParser.TreeStage tree = HtmlParser.treeStage(ParseOptions.defaults());
+		TextExtractor text = new TextExtractor();
+		DocumentStats stats = new DocumentStats();
+
+		new ParsePipeline().add(rewrite).add(tree).add(text).add(stats)
+				.parse(new StringReader(EMAIL));
+
+		assertEquals(1, rewrite.getLinkCount());
+		assertTrue(out.toString().contains("http://t.example.com/alignment?id=0"));
+		assertEquals("Spring sale\nSave now\ndeep", text.getText());
+		assertEquals(1, stats.getLinkCount());
+		assertEquals(10, stats.getElementCount());
+		assertEquals(5, stats.getMaxDepth());
+
+		ParseResult result = tree.getResult();
+		assertTrue(result.isComplete());
+		assertEquals(TagType.HTML, result.getRoot().getTagType());
+		assertEquals(2, result.getRoot().getChildren().size());
+	}
+
+	@Test
+	public void testStoppedStage() throws IOException, SAXException
+	{
+		HtmlParser.TreeStage tree = HtmlParser.treeStage(ParseOptions.builder()
+				.maxDepth(3).onLimit(LimitAction.ABORT).build());
+		DocumentStats stats = new DocumentStats();
+
+		new ParsePipeline().add(tree).add(stats).parse(new StringReader(EMAIL));
+
+		//The tree stopped at the limit, the other stage saw the whole document.
+		ParseResult result = tree.getResult();
+		assertFalse(result.isComplete());
+		assertEquals(ParseLimit.DEPTH, result.getLimit());
+		assertEquals(TagType.HTML, result.getRoot().getTagType());
+		assertEquals(10, stats.getElementCount());
+	}
+
+	@Test
+	public void testConcurrentUnknownTags() throws Exception
+	{
+		final int expected = elementCount("unknown");
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try
+		{
+			List<Future<Boolean>> parses = new ArrayList<>();
+			for(int i = 0; i < 400; i++)
+			{
+				//Every document has an element the schema has not seen before.
+				final String name = "custom" + i;
+				parses.add(executor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws Exception
+					{
+						return elementCount(name) == expected;
+					}
+				}));
+			}
+			for(Future<Boolean> parse : parses)
+			{
+				assertTrue(parse.get());
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	private static int elementCount(String unknown) throws IOException, SAXException
+	{
+		DocumentStats stats = new DocumentStats();
+		new ParsePipeline().add(HtmlParser.treeStage(ParseOptions.defaults())).add(stats)
+				.parse(new StringReader("<html><body><p>Before</p><" + unknown + ">Inside</"
+						+ unknown + "><p>After</p></body></html>"));
+		return stats.getElementCount();
+	}
+}
@@ -0,0 +1,118 @@
+package com.alignment.html;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import com.alignment.html.TreeReducer.Mapper;
+import com.alignment.html.TreeReducer.Reducer;
+import com.alignment.html.parser.HtmlParser;
+
+/**
+ * Tests for reducing documents in parallel.
+ */
+public class TreeReducerTests {
+
+	private static final Mapper<Integer> ONE = new Mapper<Integer>() {
+		@Override
+		public Integer map(HtmlTag tag)
+		{
+			return 1;
+		}
+	};
+	
+	private static final Reducer<Integer> SUM = new Reducer<Integer>() {
+		@Override
+		public Integer reduce(Integer first, Integer second)
+		{
+			return first + second;
+		}
+	};
+	
+	private static final Mapper<String> TEXT = new Mapper<String>() {
+		@Override
+		public String map(HtmlTag tag)
+		{
+			return tag.getText();
+		}
+	};
+	
+	private static final Reducer<String> CONCAT = new Reducer<String>() {
+		@Override
+		public String reduce(String first, String second)
+		{
+			return first + second;
+		}
+	};
+	
+	@Test
+	public void testSubtreeSizes()
+	{
+		HtmlDocument document = HtmlParser.parseDocument("<p><a href='#'>one</a><a href='#'>two</a></p><p>three</p>");
+		assertEquals(6, document.getSubtreeSize(document.getRoot()));
+		assertEquals(3, document.getSubtreeSize(document.getTag(3)));
+		assertEquals(1, document.getSubtreeSize(document.getTag(4)));
+	}
+	
+	@Test
+	public void testParallelReduce()
+	{
+		StringBuilder html = new StringBuilder();
+		StringBuilder text = new StringBuilder();
+		for(int i = 0; i < 500; i++)
+		{
+			html.append("<p>").append(i).append("<a href='#'>.</a></p>");
+			text.append(i).append('.');
+		}
+		HtmlDocument document = HtmlParser.parseDocument(html.toString());
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try
+		{
+			//Small thresholds split the document into many tasks.
+			for(int threshold : new int[] { 1, 7, 100, Integer.MAX_VALUE })
+			{
+				assertEquals(document.getElementCount(),
+						(int) TreeReducer.mapReduce(pool, document, ONE, SUM, threshold));
+				//Concatenation is not commutative, so the text only comes out right in document order.
+				assertEquals(text.toString(), TreeReducer.mapReduce(pool, document, TEXT, CONCAT, threshold));
+			}
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+		assertEquals(1002, (int) TreeReducer.mapReduce(document, ONE, SUM));
+	}
+
+	@Test
+	public void testDeepDocument()
+	{
+		//A chain of nested tags, each also holding a leaf, deeper than the
+		//stack could take a frame per tag.
+		int depth = 50000;
+		StringBuilder html = new StringBuilder();
+		StringBuilder text = new StringBuilder();
+		for(int i = 0; i < depth; i++)
+		{
+			html.append("<div><b>").append(i % 10).append("</b>");
+			text.append(i % 10);
+		}
+		HtmlDocument document = HtmlParser.parseDocument(html.toString());
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try
+		{
+			for(int threshold : new int[] { 1, 100 })
+			{
+				assertEquals(document.getElementCount(),
+						(int) TreeReducer.mapReduce(pool, document, ONE, SUM, threshold));
+				assertEquals(text.toString(), TreeReducer.mapReduce(pool, document, TEXT, CONCAT, threshold));
+			}
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+}
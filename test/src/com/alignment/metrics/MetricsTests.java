@@ -0,0 +1,99 @@
+package com.alignment.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for the metrics histograms and reporting.
+ */
+public class MetricsTests {
+
+	@Test
+	public void testBuckets() {
+		// Every value falls in a bucket whose highest value is within 1/16.
+		long[] values = { 0, 1, 31, 32, 33, 47, 48, 1000, 123456789L,
+				Long.MAX_VALUE };
+		for (long value : values) {
+			long highest = Histogram.highestValue(Histogram.bucket(value));
+			assertTrue(highest >= value);
+			assertTrue(highest - value <= value / 16);
+		}
+	}
+
+	@Test
+	public void testPercentiles() {
+		Histogram histogram = new Histogram(Metrics.MICROSECONDS);
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i);
+		}
+		assertEquals(1000, histogram.getCount());
+		assertEquals(1000, histogram.getMax());
+		assertEquals(500.5, histogram.getMean(), 0.001);
+		long median = histogram.getPercentile(50);
+		assertTrue(median >= 500 && median <= 500 + 500 / 16);
+		long p99 = histogram.getPercentile(99);
+		assertTrue(p99 >= 990 && p99 <= 1000);
+		assertEquals(1000, histogram.getPercentile(100));
+	}
+
+	@Test
+	public void testReports() throws IOException {
+		Metrics.counter("test.counter").add(3);
+		Metrics.latency("test.latency").record(42);
+		Metrics.gauge("test.gauge", new Gauge() {
+			@Override
+			public long get() {
+				return 7;
+			}
+		});
+
+		StringBuilder text = new StringBuilder();
+		Metrics.writeText(text);
+		assertTrue(text.toString().contains("test.counter 3\n"));
+		assertTrue(text.toString().contains("test.gauge 7\n"));
+		assertTrue(text.toString().contains("test.latency count=1"));
+
+		StringBuilder json = new StringBuilder();
+		Metrics.writeJson(json);
+		assertTrue(json.toString().contains("\"test.counter\":3"));
+		assertTrue(json.toString().contains(
+				"\"test.latency\":{\"unit\":\"us\",\"count\":1,\"mean\":42.0,"
+						+ "\"p50\":42,\"p90\":42,\"p99\":42,\"p999\":42,\"max\":42}"));
+	}
+
+	@Test
+	public void testTraceBuffer() {
+		TraceBuffer buffer = new TraceBuffer(2);
+		buffer.record(TraceEvent.cacheEviction("abc", "SIZE"));
+		buffer.record(TraceEvent.cacheEviction("def", "EXPIRED"));
+		buffer.record(TraceEvent.redirectResolved(3000, "abc", "LOCAL"));
+
+		// The oldest event is overwritten.
+		List<TraceEvent> events = buffer.snapshot();
+		assertEquals(3, buffer.getRecordedCount());
+		assertEquals(2, events.size());
+		assertEquals(TraceEvent.Type.CACHE_EVICTION, events.get(0).getType());
+		assertEquals("def", events.get(0).getFields().get("id"));
+		assertTrue(events.get(1).toString().endsWith(
+				" REDIRECT_RESOLVED 3us id=abc tier=LOCAL"));
+	}
+
+	@Test
+	public void testTraceOff() {
+		TraceBuffer buffer = new TraceBuffer(1);
+		Trace.setRecorder(buffer);
+		assertTrue(Trace.isEnabled());
+		Trace.record(TraceEvent.cacheEviction("abc", "SIZE"));
+		Trace.setRecorder(null);
+		assertFalse(Trace.isEnabled());
+		Trace.record(TraceEvent.cacheEviction("def", "SIZE"));
+
+		assertEquals(1, buffer.getRecordedCount());
+	}
+}
@@ -0,0 +1,67 @@
+package com.alignment.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * Tests for warming the local redirect tier of a new store.
+ */
+public class CacheWarmerTests {
+
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+			new LocalDatastoreServiceTestConfig(),
+			new LocalMemcacheServiceTestConfig());
+
+	@Before
+	public void setUp() throws InterruptedException {
+		helper.setUp();
+		EmailLinkStore store = new EmailLinkStore();
+		store.createUrlRedirect("OLD1", "http://www.yahoo.com/", "OLD");
+		// Make sure the campaigns have distinct creation times.
+		Thread.sleep(10);
+		store.createUrlRedirect("NEW1", "http://www.google.com/", "NEW");
+		store.createUrlRedirect("NEW2", "http://www.bing.com/", "NEW");
+	}
+
+	@After
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	@Test
+	public void testWarmRecentCampaigns() {
+		// A fresh store stands in for a new instance.
+		EmailLinkStore store = new EmailLinkStore();
+		WarmupReport report = new CacheWarmer(store, CacheWarmer.Budget
+				.create().withCampaigns(1)).warm();
+
+		assertNull(report.getStopReason());
+		assertEquals(1, report.getCampaigns().size());
+		assertEquals("NEW", report.getCampaigns().get(0));
+		assertEquals(2, report.getCampaignLinksLoaded());
+		assertTrue(store.getLocalCache().contains("NEW1"));
+		assertTrue(store.getLocalCache().contains("NEW2"));
+		assertFalse(store.getLocalCache().contains("OLD1"));
+	}
+
+	@Test
+	public void testMemoryBudget() {
+		EmailLinkStore store = new EmailLinkStore();
+		WarmupReport report = new CacheWarmer(store, CacheWarmer.Budget
+				.create().withMaxBytes(1)).warm();
+
+		assertNotNull(report.getStopReason());
+		assertEquals(1, report.getCampaignLinksLoaded());
+	}
+}
@@ -0,0 +1,64 @@
+package com.alignment.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.alignment.store.ClickClassifier.ClickClass;
+
+/**
+ * Tests for telling real clicks from bot prefetches.
+ */
+public class ClickClassifierTests {
+
+	private static final String BROWSER = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) "
+			+ "AppleWebKit/537.36 (KHTML, like Gecko) Chrome/50.0 Safari/537.36";
+
+	@Test
+	public void testUserAgents() {
+		assertFalse(ClickClassifier.isBotAgent(BROWSER));
+		assertTrue(ClickClassifier.isBotAgent(null));
+		assertTrue(ClickClassifier.isBotAgent(""));
+		assertTrue(ClickClassifier.isBotAgent("Googlebot/2.1"));
+		assertTrue(ClickClassifier.isBotAgent("python-requests/2.9.1"));
+		assertTrue(ClickClassifier
+				.isBotAgent("Microsoft Office Existence Discovery"));
+	}
+
+	@Test
+	public void testClassify() {
+		ClickClassifier classifier = new ClickClassifier();
+		long now = System.currentTimeMillis();
+		String old = LinkIds.encode(LinkIds.newId(now - 3600000));
+		String fresh = LinkIds.encode(LinkIds.newId(now - 2000));
+
+		assertEquals(ClickClass.HUMAN, classifier.classify(old, "GET",
+				BROWSER, now));
+		assertEquals(ClickClass.PREFETCH, classifier.classify(old, "HEAD",
+				BROWSER, now));
+		assertEquals(ClickClass.USER_AGENT, classifier.classify(old, "GET",
+				"curl/7.43.0", now));
+		assertEquals(ClickClass.TOO_SOON, classifier.classify(fresh, "GET",
+				BROWSER, now));
+		// Legacy ids carry no creation time.
+		assertEquals(ClickClass.HUMAN, classifier.classify("BOB", "GET",
+				BROWSER, now));
+	}
+
+	@Test
+	public void testBurst() {
+		ClickClassifier classifier = new ClickClassifier(0, 3);
+		long second = 1420070400000L;
+		for (int i = 0; i < 3; i++) {
+			assertEquals(ClickClass.HUMAN, classifier.classify("BOB", "GET",
+					BROWSER, second + i));
+		}
+		assertEquals(ClickClass.BURST, classifier.classify("BOB", "GET",
+				BROWSER, second + 3));
+		// The count starts over the next second.
+		assertEquals(ClickClass.HUMAN, classifier.classify("BOB", "GET",
+				BROWSER, second + 1000));
+	}
+}
@@ -0,0 +1,123 @@
+package com.alignment.store;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.alignment.store.ClickRollups.Resolution;
+import com.alignment.store.ClickRollups.Scope;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * Tests for the minute, hour and day click rollups.
+ */
+public class ClickRollupsTests {
+
+	// Midnight, so the day, hour and minute buckets all start here.
+	private static final long DAY = TimeUnit.DAYS.toMillis(16500);
+
+	private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+	private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+			new LocalDatastoreServiceTestConfig());
+
+	@Before
+	public void setUp() {
+		helper.setUp();
+	}
+
+	@After
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	@Test
+	public void testUnflushedClicks() {
+		ClickRollups rollups = new ClickRollups();
+		rollups.record("A", "SPRING", DAY);
+		rollups.record("A", "SPRING", DAY + MINUTE + 1);
+		rollups.record("B", "SPRING", DAY + MINUTE + 2);
+
+		assertArrayEquals(new long[] { 1, 1, 0 }, rollups.getClicks(
+				Scope.LINK, "A", Resolution.MINUTE, DAY, DAY + 3 * MINUTE));
+		assertArrayEquals(new long[] { 3 }, rollups.getClicks(
+				Scope.CAMPAIGN, "SPRING", Resolution.DAY, DAY, DAY + 1));
+	}
+
+	@Test
+	public void testFlushedClicks() {
+		ClickRollups rollups = new ClickRollups();
+		rollups.record("A", "SPRING", DAY + 59 * MINUTE);
+		rollups.record("A", "SPRING", DAY + HOUR);
+		rollups.record("A", null, DAY + 2 * HOUR);
+		// The link touches three minute entities and the campaign two, each
+		// also touches one hour and one day entity.
+		assertEquals(5 + 4, rollups.flush());
+
+		// A second instance sees the flushed clicks.
+		ClickRollups other = new ClickRollups();
+		assertArrayEquals(new long[] { 1, 1, 1 }, other.getClicks(Scope.LINK,
+				"A", Resolution.HOUR, DAY, DAY + 3 * HOUR));
+		assertArrayEquals(new long[] { 1, 1 }, other.getClicks(
+				Scope.CAMPAIGN, "SPRING", Resolution.MINUTE, DAY + 59 * MINUTE,
+				DAY + 61 * MINUTE));
+
+		// Flushes add to the stored counts.
+		other.record("A", "SPRING", DAY + HOUR);
+		other.flush();
+		assertArrayEquals(new long[] { 4 }, rollups.getClicks(Scope.LINK, "A",
+				Resolution.DAY, DAY, DAY + 1));
+		assertEquals(0, rollups.flush());
+	}
+
+	@Test
+	public void testSpilledMinutes() {
+		ClickRollups rollups = new ClickRollups();
+		// Minutes further apart than the ring are kept until the flush.
+		rollups.record("A", null, DAY);
+		rollups.record("A", null, DAY + 16 * MINUTE);
+		assertArrayEquals(new long[] { 2 }, rollups.getClicks(Scope.LINK, "A",
+				Resolution.HOUR, DAY, DAY + HOUR));
+		rollups.flush();
+		assertArrayEquals(new long[] { 2 }, new ClickRollups().getClicks(
+				Scope.LINK, "A", Resolution.HOUR, DAY, DAY + HOUR));
+	}
+
+	@Test
+	public void testRetriedFlush() throws IOException {
+		Map<String, long[]> deltas = new HashMap<>();
+		ClickRollups rollups = new ClickRollups();
+		rollups.record("A", "SPRING", DAY);
+		rollups.flush();
+
+		// A task whose commit succeeded but that is retried anyway.
+		long[] minutes = new long[60];
+		minutes[0] = 2;
+		deltas.put("LINK/A/MINUTE/" + DAY / HOUR, minutes);
+		byte[] payload = ClickRollups.encodeFlush("flush-1", deltas);
+		assertTrue(ClickRollups.writeFlush(new ByteArrayInputStream(payload)));
+		assertTrue(ClickRollups.writeFlush(new ByteArrayInputStream(payload)));
+
+		assertArrayEquals(new long[] { 3 }, new ClickRollups().getClicks(
+				Scope.LINK, "A", Resolution.MINUTE, DAY, DAY + MINUTE));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testQueryLimit() {
+		new ClickRollups().getClicks(Scope.LINK, "A", Resolution.MINUTE, 0,
+				ClickRollups.MAX_QUERY_BUCKETS * MINUTE + 1);
+	}
+}
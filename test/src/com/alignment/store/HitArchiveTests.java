@@ -0,0 +1,88 @@
+package com.alignment.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for the columnar hit archive.
+ */
+public class HitArchiveTests {
+
+	private static final long START = 1420070400000L;
+
+	@Test
+	public void testWriteAndRead() throws IOException {
+		int count = HitArchive.BLOCK_HITS * 2 + 10;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (HitArchive.Writer writer = new HitArchive.Writer(out)) {
+			for (int i = 0; i < count; i++) {
+				writer.add("link" + i % 50, START + i * 250L);
+			}
+			assertEquals(count, writer.getHitCount());
+		}
+
+		HitArchive archive = HitArchive.wrap(out.toByteArray());
+		assertEquals(3, archive.blockCount());
+		assertEquals(count, archive.size());
+		final List<String> links = new ArrayList<>();
+		final List<Long> times = new ArrayList<>();
+		archive.forEach(new HitArchive.HitVisitor() {
+			@Override
+			public void visit(String linkId, long timeMillis) {
+				links.add(linkId);
+				times.add(timeMillis);
+			}
+		});
+		assertEquals(count, links.size());
+		for (int i = 0; i < count; i++) {
+			assertEquals("link" + i % 50, links.get(i));
+			assertEquals(START + i * 250L, (long) times.get(i));
+		}
+		// Dictionary links and small time deltas take a few bytes a hit.
+		assertTrue(out.size() < count * 4);
+	}
+
+	@Test
+	public void testTimeRange() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (HitArchive.Writer writer = new HitArchive.Writer(out)) {
+			// Out of order hits are kept in the order they were added.
+			writer.add("A", START + 1000);
+			writer.add("B", START);
+			writer.add("A", START + 2000);
+		}
+
+		final List<String> links = new ArrayList<>();
+		HitArchive.wrap(out.toByteArray()).forEach(START, START + 1500,
+				new HitArchive.HitVisitor() {
+					@Override
+					public void visit(String linkId, long timeMillis) {
+						links.add(linkId + "@" + (timeMillis - START));
+					}
+				});
+		assertEquals(2, links.size());
+		assertEquals("A@1000", links.get(0));
+		assertEquals("B@0", links.get(1));
+	}
+
+	@Test
+	public void testEmpty() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new HitArchive.Writer(out).close();
+		HitArchive archive = HitArchive.wrap(out.toByteArray());
+		assertEquals(0, archive.blockCount());
+		assertEquals(0, archive.size());
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotAnArchive() throws IOException {
+		HitArchive.wrap(new byte[64]);
+	}
+}
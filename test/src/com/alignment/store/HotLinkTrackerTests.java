@@ -0,0 +1,64 @@
+package com.alignment.store;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * Tests for counting the hottest links of an instance.
+ */
+public class HotLinkTrackerTests {
+
+	@Test
+	public void testTop() {
+		HotLinkTracker tracker = new HotLinkTracker();
+		for (int i = 0; i < 5; i++) {
+			for (int hit = 0; hit <= i; hit++) {
+				tracker.record("link" + i);
+			}
+		}
+		assertEquals(Arrays.asList("link4", "link3", "link2"), tracker.top(3));
+		assertEquals(5, tracker.top(10).size());
+		assertEquals(Collections.emptyList(), tracker.top(0));
+
+		tracker.reset();
+		assertEquals(Collections.emptyList(), tracker.top(3));
+	}
+
+	@Test
+	public void testTopWhileRecording() throws Exception {
+		final HotLinkTracker tracker = new HotLinkTracker();
+		for (int i = 0; i < 2000; i++) {
+			tracker.record("link" + i);
+		}
+		final AtomicBoolean done = new AtomicBoolean();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int seed = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; !done.get(); i++) {
+						tracker.record("link" + (i * 31 + seed) % 2000);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		try {
+			// Counts change while they are read, which must not fail.
+			for (int i = 0; i < 200; i++) {
+				assertEquals(100, tracker.top(100).size());
+			}
+		} finally {
+			done.set(true);
+			for (Thread thread : threads) {
+				thread.join();
+			}
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package com.alignment.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for compact and derived link ids and the live id filter.
+ */
+public class LinkIdsTests {
+
+	@Test
+	public void testEncodeDecode() {
+		long[] ids = { 0L, 1L, 61L, 62L, Long.MAX_VALUE, Long.MIN_VALUE, -1L,
+				LinkIds.newId() };
+		for (long id : ids) {
+			String encoded = LinkIds.encode(id);
+			assertEquals(LinkIds.LENGTH, encoded.length());
+			assertTrue(LinkIds.isCompact(encoded));
+			assertEquals(id, LinkIds.decode(encoded));
+		}
+	}
+
+	@Test
+	public void testCheckCharacter() {
+		String id = LinkIds.encode(LinkIds.newId());
+		// Every single character change is detected.
+		for (int i = 0; i < id.length(); i++) {
+			char[] chars = id.toCharArray();
+			chars[i] = chars[i] == 'x' ? 'y' : 'x';
+			assertFalse(LinkIds.isCompact(new String(chars)));
+		}
+		assertFalse(LinkIds.isCompact(id.substring(1)));
+		assertFalse(LinkIds.isCompact("BOB"));
+		assertFalse(LinkIds.isCompact(null));
+		// Larger than 2^64 - 1.
+		assertFalse(LinkIds.isCompact("zzzzzzzzzzz0"));
+	}
+
+	@Test
+	public void testCreatedTime() {
+		long id = LinkIds.newId(1420070400123L);
+		assertEquals(1420070400000L, LinkIds.createdMillis(id));
+	}
+
+	@Test
+	public void testDerivedIds() {
+		long id = LinkIds.deriveId("spring", "http://example.com/", 3, 0);
+		assertEquals(id, LinkIds.deriveId("spring", "http://example.com/", 3, 0));
+		assertNotEquals(id, LinkIds.deriveId("spring", "http://example.com/", 4, 0));
+		assertNotEquals(id, LinkIds.deriveId("spring", "http://example.com/", 3, 1));
+		assertNotEquals(id, LinkIds.deriveId("summer", "http://example.com/", 3, 0));
+		assertNotEquals(id, LinkIds.deriveId(null, "http://example.com/", 3, 0));
+		// Fields do not run into each other.
+		assertNotEquals(LinkIds.deriveId("a", "bc", 0, 0),
+				LinkIds.deriveId("ab", "c", 0, 0));
+
+		String encoded = LinkIds.encodeDerived(id);
+		assertEquals(LinkIds.LENGTH, encoded.length());
+		assertTrue(LinkIds.isDerived(encoded));
+		assertFalse(LinkIds.isCompact(encoded));
+		assertFalse(LinkIds.isDerived(LinkIds.encode(id)));
+		assertEquals(id, LinkIds.decode(encoded));
+	}
+
+	@Test
+	public void testDerivedIdCache() {
+		DerivedIdCache cache = new DerivedIdCache(10);
+		cache.put("a", "bc", 0, "first");
+		assertEquals("first", cache.get("a", "bc", 0));
+		assertNull(cache.get("ab", "c", 0));
+		assertNull(cache.get("a", "bc", 1));
+		assertNull(cache.get(null, "abc", 0));
+	}
+
+	@Test
+	public void testLiveIdFilter() {
+		long now = System.currentTimeMillis();
+		LiveIdFilter filter = LiveIdFilter.create(1000, 0.01, now, false);
+		String live = LinkIds.encode(LinkIds.newId(now - 60000));
+		String unknown = LinkIds.encode(LinkIds.newId(now - 60000));
+		String recent = LinkIds.encode(LinkIds.newId(now + 60000));
+		filter.put(live);
+
+		assertTrue(filter.mightBeLive(live));
+		assertFalse(filter.mightBeLive(unknown));
+		// Ids newer than the filter are not judged.
+		assertTrue(filter.mightBeLive(recent));
+		// A compact looking id with a bad check character may be a legacy id.
+		String badCheck = live.substring(0, 11) + 'a';
+		for (char c = 'b'; LinkIds.isCompact(badCheck)
+				|| LinkIds.isDerived(badCheck); c++) {
+			badCheck = live.substring(0, 11) + c;
+		}
+		assertTrue(filter.mightBeLive(badCheck));
+		// Legacy ids pass unless the filter rejects them.
+		assertTrue(filter.mightBeLive("BOB"));
+		// Derived ids carry no creation time and always pass.
+		assertTrue(filter.mightBeLive(LinkIds.encodeDerived(LinkIds.deriveId(
+				"spring", "http://example.com/", 0, 0))));
+		assertEquals(1, filter.getRejectedCount());
+
+		LiveIdFilter strict = LiveIdFilter.create(1000, 0.01, now, true);
+		strict.put("BOB");
+		assertTrue(strict.mightBeLive("BOB"));
+		assertFalse(strict.mightBeLive("ALICE"));
+		strict.put(badCheck);
+		assertFalse(strict.mightBeLive(badCheck));
+	}
+
+	@Test
+	public void testCompactLookingLegacyId() {
+		long now = System.currentTimeMillis();
+		// Twelve alphanumeric characters, like a compact id, but made before
+		// compact ids existed.
+		String legacy = "NEWSLETTER01";
+		assertTrue(!LinkIds.isCompact(legacy) && !LinkIds.isDerived(legacy));
+
+		LiveIdFilter filter = LiveIdFilter.create(1000, 0.01, now, false);
+		assertTrue(filter.mightBeLive(legacy));
+		assertEquals(0, filter.getRejectedCount());
+	}
+}
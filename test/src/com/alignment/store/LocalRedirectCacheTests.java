@@ -0,0 +1,200 @@
+package com.alignment.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.alignment.store.LocalRedirectCache.PartitionStats;
+
+/**
+ * Tests for sharing the local redirect tier between campaigns.
+ */
+public class LocalRedirectCacheTests {
+
+	@Test
+	public void testBorrowing() {
+		LocalRedirectCache cache = new LocalRedirectCache(100);
+		for (int i = 0; i < 150; i++) {
+			cache.put("big" + i, "http://example.com/" + i, "big");
+		}
+		// Alone, a campaign may use the whole cache.
+		assertEquals(100, cache.size());
+		assertEquals(100, cache.partitionStats("big").getSize());
+		assertNull(cache.get("big0"));
+		assertEquals("http://example.com/149", cache.get("big149"));
+	}
+
+	@Test
+	public void testNoisyCampaign() {
+		LocalRedirectCache cache = new LocalRedirectCache(100);
+		for (int i = 0; i < 20; i++) {
+			cache.put("small" + i, "http://example.com/" + i, "small");
+		}
+		for (int i = 0; i < 1000; i++) {
+			cache.put("big" + i, "http://example.com/" + i, "big");
+		}
+		// The large campaign only evicts its own redirects, the small one
+		// stays within its share.
+		assertEquals(100, cache.size());
+		for (int i = 0; i < 20; i++) {
+			assertTrue(cache.contains("small" + i));
+		}
+		PartitionStats big = cache.partitionStats("big");
+		assertEquals(80, big.getSize());
+		assertEquals(50, big.getShare());
+		assertEquals(1000, big.getLoadCount());
+		assertEquals(920, big.getEvictionCount());
+		assertEquals(0, cache.partitionStats("small").getEvictionCount());
+
+		// Once both are full the weights decide the shares.
+		cache.setWeight("small", 3);
+		assertEquals(75, cache.partitionStats("small").getShare());
+		for (int i = 0; i < 100; i++) {
+			cache.put("small" + i, "http://example.com/" + i, "small");
+		}
+		assertEquals(75, cache.partitionStats("small").getSize());
+		assertEquals(25, cache.partitionStats("big").getSize());
+	}
+
+	@Test
+	public void testStats() {
+		LocalRedirectCache cache = new LocalRedirectCache(10);
+		cache.put("a", "http://example.com/a", "spring");
+		cache.put("b", "http://example.com/b");
+		cache.get("a");
+		cache.get("b");
+		cache.get("c");
+		assertEquals(2, cache.stats().hitCount());
+		assertEquals(1, cache.stats().missCount());
+		assertEquals(1, cache.partitionStats("spring").getHitCount());
+		assertEquals(1, cache.partitionStats(null).getHitCount());
+		assertEquals(0, cache.partitionStats("autumn").getSize());
+
+		// Moving a redirect to another campaign moves it between partitions.
+		cache.put("b", "http://example.com/b", "spring");
+		assertEquals(2, cache.partitionStats("spring").getSize());
+		assertEquals(0, cache.partitionStats(null).getSize());
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void testExpiry() {
+		long now = System.currentTimeMillis();
+		String expiring = Redirect.pack("http://example.com/sale",
+				RedirectPolicy.DEFAULT, now + 5000);
+		Redirect redirect = Redirect.unpack(expiring);
+		assertEquals("http://example.com/sale", redirect.getUrl());
+		assertEquals(RedirectPolicy.DEFAULT, redirect.getPolicy());
+		assertEquals(now + 5000, redirect.getExpiresMillis());
+		assertEquals("http://example.com/sale", Redirect.urlOf(expiring));
+		assertTrue(redirect.isExpired(now + 5000));
+		assertEquals(0, Redirect.expiresOf("http://example.com/"));
+
+		LocalRedirectCache cache = new LocalRedirectCache(10);
+		cache.put("sale", expiring, "spring");
+		cache.put("logo", "http://example.com/logo.png", "spring");
+		// Redirects that have expired already are only cached briefly.
+		String old = Redirect.pack("http://example.com/old",
+				RedirectPolicy.DEFAULT, now - 1000);
+		cache.put("old", old);
+		assertEquals(3, cache.size());
+		assertEquals(old, cache.get("old"));
+
+		assertEquals(0, cache.expire(now + 4000));
+		assertEquals(1, cache.expire(now + 7000));
+		assertNull(cache.get("sale"));
+		assertEquals("http://example.com/logo.png", cache.get("logo"));
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.partitionStats("spring").getSize());
+		assertEquals(1, cache.expirationCount());
+
+		assertEquals(1, cache.expire(now + 7000
+				+ LocalRedirectCache.EXPIRED_MARKER_MILLIS));
+		assertFalse(cache.contains("old"));
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testLineBreaksInUrl() {
+		String wrapped = "http://example.com/sale?a=1\nb=2";
+		String encoded = "http://example.com/sale?a=1%0Ab=2";
+
+		String packed = Redirect.pack(wrapped, RedirectPolicy.DEFAULT);
+		assertEquals(encoded, packed);
+		assertEquals(encoded, Redirect.urlOf(packed));
+		assertEquals(encoded, Redirect.unpack(packed).getUrl());
+		assertEquals(RedirectPolicy.DEFAULT, Redirect.unpack(packed).getPolicy());
+
+		RedirectPolicy permanent = RedirectPolicy.of(true, 3600, true);
+		packed = Redirect.pack(wrapped + "\r\n", permanent, 5000);
+		Redirect redirect = Redirect.unpack(packed);
+		assertEquals(encoded + "%0D%0A", redirect.getUrl());
+		assertEquals(permanent, redirect.getPolicy());
+		assertEquals(5000, redirect.getExpiresMillis());
+
+		assertEquals(encoded, new Redirect(wrapped, permanent).getUrl());
+	}
+
+	@Test
+	public void testCampaignOf() {
+		LocalRedirectCache cache = new LocalRedirectCache(10);
+		cache.put("sale", "http://example.com/sale", "spring");
+		cache.put("logo", "http://example.com/logo.png");
+		assertEquals("spring", cache.campaignOf("sale"));
+		assertNull(cache.campaignOf("logo"));
+		assertNull(cache.campaignOf("unknown"));
+
+		// Campaigns past the last partition still keep their own name.
+		for (int i = 0; i < LocalRedirectCache.MAX_PARTITIONS; i++) {
+			cache.setWeight("campaign" + i, 1);
+		}
+		cache.put("late", "http://example.com/late", "autumn");
+		assertEquals("autumn", cache.campaignOf("late"));
+		assertEquals(0, cache.partitionStats("autumn").getSize());
+	}
+
+	@Test
+	public void testConcurrentMoves() throws Exception {
+		final LocalRedirectCache cache = new LocalRedirectCache(100);
+		final String[] campaigns = { null, "spring", "autumn" };
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int seed = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 50000; i++) {
+						String id = "link" + (i * 7 + seed) % 5;
+						if (i % 5 == 0) {
+							cache.remove(id);
+						} else {
+							cache.put(id, "http://example.com/" + id,
+									campaigns[(i + seed) % campaigns.length]);
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		// The size, the cached ids and the partitions still agree.
+		long cached = 0;
+		for (int i = 0; i < 5; i++) {
+			if (cache.contains("link" + i)) {
+				cached++;
+			}
+		}
+		long partitioned = 0;
+		for (String campaign : campaigns) {
+			partitioned += cache.partitionStats(campaign).getSize();
+		}
+		assertEquals(cached, cache.size());
+		assertEquals(cached, partitioned);
+	}
+}
@@ -0,0 +1,32 @@
+package com.alignment.store;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.Callable;
+
+import org.junit.Test;
+
+import com.alignment.AllocationBudget;
+
+/**
+ * Allocation budgets of the redirect lookups answered by the local tiers.
+ */
+public class RedirectAllocationTests {
+
+	@Test
+	public void testLocalCacheHit() throws Exception {
+		final EmailLinkStore store = new EmailLinkStore();
+		store.getLocalCache().put("LOGO", "http://www.example.com/logo.png",
+				"SPRING");
+		assertEquals("http://www.example.com/logo.png",
+				store.getRedirect("LOGO"));
+
+		AllocationBudget.assertWithinBudget("store.getRedirect.localHit",
+				10000, new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						return store.getRedirect("LOGO");
+					}
+				});
+	}
+}
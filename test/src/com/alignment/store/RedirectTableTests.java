@@ -0,0 +1,174 @@
+package com.alignment.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Tests for the memory mapped redirect table and the snapshot tier.
+ */
+public class RedirectTableTests {
+
+	private Path directory;
+
+	private Path file;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("redirects");
+		file = directory.resolve("redirects.table");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(file);
+		Files.deleteIfExists(directory);
+	}
+
+	@Test
+	public void testWriteAndRead() throws IOException {
+		try (RedirectTable.Writer writer = new RedirectTable.Writer(file)) {
+			for (int i = 0; i < 5000; i++) {
+				writer.add("id" + i, "http://www.google.com/" + i);
+			}
+			assertEquals(5000, writer.commit());
+		}
+
+		RedirectTable table = RedirectTable.open(file);
+		assertEquals(5000, table.size());
+		for (int i = 0; i < 5000; i++) {
+			assertEquals("http://www.google.com/" + i, table.get("id" + i));
+		}
+		assertNull(table.get("id5000"));
+		assertNull(table.get(""));
+	}
+
+	@Test
+	public void testLastRedirectWins() throws IOException {
+		try (RedirectTable.Writer writer = new RedirectTable.Writer(file)) {
+			writer.add("BOB", "http://www.google.com/");
+			writer.add("B\u00d8B", "http://www.bing.com/");
+			writer.add("BOB", "http://www.yahoo.com/");
+			assertEquals(2, writer.commit());
+		}
+
+		RedirectTable table = RedirectTable.open(file);
+		assertEquals("http://www.yahoo.com/", table.get("BOB"));
+		assertEquals("http://www.bing.com/", table.get("B\u00d8B"));
+	}
+
+	@Test
+	public void testFailedCommitLeavesNoFiles() throws IOException {
+		// A non empty directory cannot be replaced by the table.
+		Path held = Files.createDirectory(file).resolve("held");
+		Files.createFile(held);
+		try (RedirectTable.Writer writer = new RedirectTable.Writer(file)) {
+			writer.add("BOB", "http://www.google.com/");
+			writer.commit();
+			fail("Should not have replaced the directory.");
+		} catch (IOException e) {
+			// Expected.
+		} finally {
+			Files.delete(held);
+		}
+
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path left : files) {
+				assertEquals(file, left);
+			}
+		}
+	}
+
+	@Test
+	public void testSnapshotOverlayMerge() throws IOException {
+		RedirectSnapshot snapshot = RedirectSnapshot.open(file, 2,
+				Long.MAX_VALUE, MoreExecutors.directExecutor());
+		assertNull(snapshot.get("BOB"));
+
+		snapshot.put("BOB", "http://www.google.com/");
+		assertEquals("http://www.google.com/", snapshot.get("BOB"));
+		assertEquals(1, snapshot.overlaySize());
+		assertEquals(0, snapshot.tableSize());
+
+		// Reaching the threshold merges the overlay into the mapped table.
+		snapshot.put("ALICE", "http://www.bing.com/");
+		assertEquals(0, snapshot.overlaySize());
+		assertEquals(2, snapshot.tableSize());
+		assertTrue(Files.exists(file));
+
+		// A new instance starts warm from the merged file.
+		RedirectSnapshot reopened = RedirectSnapshot.open(file);
+		assertEquals("http://www.google.com/", reopened.get("BOB"));
+		assertEquals("http://www.bing.com/", reopened.get("ALICE"));
+	}
+
+	@Test
+	public void testMergeRunsOnMerger() throws IOException {
+		final List<Runnable> merges = new ArrayList<>();
+		RedirectSnapshot snapshot = RedirectSnapshot.open(file, 2,
+				Long.MAX_VALUE, new Executor() {
+					@Override
+					public void execute(Runnable merge) {
+						merges.add(merge);
+					}
+				});
+		snapshot.put("BOB", "http://www.google.com/");
+		snapshot.put("ALICE", "http://www.bing.com/");
+		snapshot.put("CAROL", "http://www.yahoo.com/");
+
+		// The adding thread only hands over a single merge.
+		assertEquals(1, merges.size());
+		assertEquals(3, snapshot.overlaySize());
+		assertEquals(0, snapshot.tableSize());
+
+		merges.get(0).run();
+		assertEquals(0, snapshot.overlaySize());
+		assertEquals(3, snapshot.tableSize());
+		assertEquals("http://www.bing.com/", snapshot.get("ALICE"));
+	}
+
+	@Test
+	public void testRefusedMergeFallsThrough() throws IOException {
+		RedirectSnapshot written = RedirectSnapshot.open(file, 1,
+				Long.MAX_VALUE, MoreExecutors.directExecutor());
+		written.put("BOB", "http://www.google.com/");
+		assertEquals(1, written.tableSize());
+
+		RedirectSnapshot snapshot = RedirectSnapshot.open(file, 1,
+				Long.MAX_VALUE, new Executor() {
+					@Override
+					public void execute(Runnable merge) {
+						throw new IllegalStateException("No threads.");
+					}
+				});
+		// The overlay keeps what fits once merging is refused.
+		snapshot.put("ALICE", "http://www.bing.com/");
+		snapshot.put("CAROL", "http://www.yahoo.com/");
+		assertEquals("http://www.bing.com/", snapshot.get("ALICE"));
+		assertNull(snapshot.get("CAROL"));
+		assertEquals("http://www.google.com/", snapshot.get("BOB"));
+		assertFalse(snapshot.isStale());
+
+		// A change that cannot be recorded must not leave the old redirect.
+		snapshot.put("BOB", "http://www.duckduckgo.com/");
+		assertTrue(snapshot.isStale());
+		assertNull(snapshot.get("BOB"));
+		assertNull(snapshot.get("ALICE"));
+	}
+}
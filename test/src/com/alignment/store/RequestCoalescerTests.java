@@ -0,0 +1,111 @@
+package com.alignment.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Tests for sharing backend fetches between concurrent misses.
+ */
+public class RequestCoalescerTests {
+
+	@Test
+	public void testConcurrentFetchesShareLeader() throws Exception {
+		RequestCoalescer<String> coalescer = new RequestCoalescer<>();
+		final SettableFuture<String> backend = SettableFuture.create();
+		final AtomicInteger fetches = new AtomicInteger();
+		Callable<Future<String>> fetch = new Callable<Future<String>>() {
+			@Override
+			public Future<String> call() {
+				fetches.incrementAndGet();
+				return backend;
+			}
+		};
+
+		Future<String> leader = coalescer.fetch("BOB", fetch);
+		Future<String> follower = coalescer.fetch("BOB", fetch);
+		Future<String> other = coalescer.fetch("ALICE", fetch);
+		assertSame(leader, follower);
+		assertEquals(2, fetches.get());
+		assertEquals(2, coalescer.getLeaderCount());
+		assertEquals(1, coalescer.getCoalescedCount());
+
+		backend.set("http://www.google.com/");
+		assertEquals("http://www.google.com/", follower.get());
+		assertEquals("http://www.google.com/", leader.get());
+		assertEquals("http://www.google.com/", other.get());
+
+		// Once the result is known the next miss fetches again.
+		assertEquals(0, coalescer.getInFlightCount());
+		coalescer.fetch("BOB", fetch).get();
+		assertEquals(3, fetches.get());
+	}
+
+	@Test
+	public void testTimeoutReleasesKey() throws Exception {
+		RequestCoalescer<String> coalescer = new RequestCoalescer<>();
+		final AtomicInteger fetches = new AtomicInteger();
+		Callable<Future<String>> hung = new Callable<Future<String>>() {
+			@Override
+			public Future<String> call() {
+				fetches.incrementAndGet();
+				return SettableFuture.create();
+			}
+		};
+
+		Future<String> leader = coalescer.fetch("BOB", hung);
+		try {
+			leader.get(10, TimeUnit.MILLISECONDS);
+			fail("Should have timed out.");
+		} catch (TimeoutException e) {
+			// Expected, the fetch never completes.
+		}
+		assertEquals(0, coalescer.getInFlightCount());
+
+		// The next miss does not join the fetch that was given up on.
+		Future<String> next = coalescer.fetch("BOB", hung);
+		assertNotSame(leader, next);
+		assertEquals(2, fetches.get());
+	}
+
+	@Test
+	public void testFetchFailureIsShared() throws Exception {
+		RequestCoalescer<String> coalescer = new RequestCoalescer<>();
+		Future<String> result = coalescer.fetch("BOB",
+				new Callable<Future<String>>() {
+					@Override
+					public Future<String> call() throws Exception {
+						throw new IllegalStateException("Unknown");
+					}
+				});
+		try {
+			result.get();
+			fail("Should have failed with the fetch exception.");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+		assertEquals(0, coalescer.getInFlightCount());
+
+		assertEquals("http://www.bing.com/", coalescer.fetch("BOB",
+				new Callable<Future<String>>() {
+					@Override
+					public Future<String> call() {
+						return Futures.immediateFuture("http://www.bing.com/");
+					}
+				}).get());
+	}
+}
@@ -0,0 +1,107 @@
+package com.alignment.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for expiring ids with a timing wheel.
+ */
+public class TimingWheelTests {
+
+	@Test
+	public void testExpiry() {
+		TimingWheel wheel = new TimingWheel(1000, 0);
+		wheel.schedule("soon", 2500);
+		wheel.schedule("later", 70000);
+		wheel.schedule("much later", 5000000);
+		wheel.schedule("overdue", 0);
+		assertEquals(4, wheel.size());
+
+		assertEquals(Arrays.asList("overdue"), wheel.advance(2000));
+		// Deadlines are rounded up to the next tick.
+		assertEquals(Arrays.asList("soon"), wheel.advance(3000));
+		assertTrue(wheel.advance(69999).isEmpty());
+		assertEquals(Arrays.asList("later"), wheel.advance(70000));
+		assertEquals(Arrays.asList("much later"), wheel.advance(6000000));
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void testRescheduleAndCancel() {
+		TimingWheel wheel = new TimingWheel(1000, 0);
+		wheel.schedule("link", 5000);
+		wheel.schedule("link", 9000);
+		assertEquals(1, wheel.size());
+		assertTrue(wheel.advance(8000).isEmpty());
+		assertEquals(Arrays.asList("link"), wheel.advance(9000));
+
+		wheel.schedule("link", 20000);
+		assertTrue(wheel.cancel("link"));
+		assertFalse(wheel.cancel("link"));
+		assertTrue(wheel.advance(30000).isEmpty());
+	}
+
+	@Test
+	public void testCascades() {
+		// Deadlines spread over several wheels all expire on their own tick,
+		// however the wheel is advanced.
+		Random random = new Random(42);
+		TimingWheel wheel = new TimingWheel(1, 1000);
+		List<Long> deadlines = new ArrayList<>();
+		for (int i = 0; i < 2000; i++) {
+			long deadline = 1001 + (long) Math.pow(2, random.nextInt(22))
+					+ random.nextInt(64);
+			deadlines.add(deadline);
+			wheel.schedule(Long.toString(deadline) + ":" + i, deadline);
+		}
+		Collections.sort(deadlines);
+		long now = 1000;
+		int expired = 0;
+		while (expired < deadlines.size()) {
+			now += 1 + random.nextInt(5000);
+			for (String id : wheel.advance(now)) {
+				long deadline = Long.parseLong(id.substring(0, id.indexOf(':')));
+				assertTrue(deadline <= now);
+				expired++;
+			}
+			// Nothing that is due is left behind.
+			int due = 0;
+			for (long deadline : deadlines) {
+				if (deadline <= now) {
+					due++;
+				}
+			}
+			assertEquals(due, expired);
+		}
+		assertEquals(0, wheel.size());
+	}
+
+	@Test(timeout = 5000)
+	public void testLongIdle() {
+		// Catching up after a long time skips the ticks with nothing to do,
+		// rather than walking every one of them.
+		TimingWheel wheel = new TimingWheel(1, 0);
+		assertTrue(wheel.advance(1L << 50).isEmpty());
+
+		long now = 1L << 50;
+		wheel.schedule("soon", now + 10);
+		wheel.schedule("far", now + (1L << 30));
+		wheel.schedule("beyond", now + (1L << 40));
+		assertTrue(wheel.advance(now + 9).isEmpty());
+		assertEquals(Arrays.asList("soon"), wheel.advance(now + 10));
+		assertTrue(wheel.advance(now + (1L << 30) - 1).isEmpty());
+		assertEquals(Arrays.asList("far"), wheel.advance(now + (1L << 35)));
+		assertTrue(wheel.advance(now + (1L << 40) - 1).isEmpty());
+		assertEquals(Arrays.asList("beyond"), wheel.advance(now + (1L << 41)));
+		assertEquals(0, wheel.size());
+	}
+}